@@ -0,0 +1,40 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Run the benchmarks, as JMH's own main would with these arguments, but
+ * always with the GC profiler, so that the allocation rate of each is
+ * reported alongside its time.
+ *
+ * @author simon
+ *
+ */
+public class Benchmarks {
+
+    /**
+     * @param args JMH command line options; e.g. a regular expression
+     * selecting benchmarks to run.
+     * @throws CommandLineOptionException if the options are bad.
+     * @throws RunnerException if a benchmark fails.
+     */
+    public static void main(String[] args) throws CommandLineOptionException,
+            RunnerException {
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
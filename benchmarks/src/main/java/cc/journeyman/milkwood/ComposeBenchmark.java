@@ -0,0 +1,93 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How fast whole pieces of output are composed, end to end, from the rules
+ * of the real corpus; reported both as compositions and as tokens per
+ * second.
+ *
+ * @author simon
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ComposeBenchmark {
+
+    /**
+     * The number of tokens to compose.
+     */
+    @Param({"100", "10000"})
+    public int length;
+    /**
+     * The tuple length of the rules.
+     */
+    @Param({"2"})
+    public int tupleLength;
+    /**
+     * The rules to compose to.
+     */
+    private FrozenRuleTree rules;
+    /**
+     * The composer, with a seeded generator so that runs are comparable.
+     */
+    private Composer composer;
+
+    /**
+     * Counts the tokens composed, which JMH reports as a rate.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Tokens {
+
+        public long tokens;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            tokens = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        rules = Corpora.rules(Corpora.file(Corpora.UNDERMILKWOOD),
+                tupleLength);
+        composer = new Composer(new Random(1913), false);
+    }
+
+    @Benchmark
+    public WordSequence compose(Tokens counter) {
+        final WordSequence result = composer.compose(rules, length);
+
+        if (result != null) {
+            counter.tokens += result.size();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Texts for the benchmarks to chew on, written to temporary files so that
+ * they are digested by the same (mapped) path as real input.
+ *
+ * @author simon
+ *
+ */
+final class Corpora {
+
+    /**
+     * The name of the real corpus, which is packaged as a resource.
+     */
+    static final String UNDERMILKWOOD = "undermilkwood";
+    /**
+     * The name of the synthetic corpus.
+     */
+    static final String SYNTHETIC = "synthetic";
+    /**
+     * The size in bytes of the synthetic corpus.
+     */
+    static final int SYNTHETICSIZE = 16 * 1024 * 1024;
+    /**
+     * The number of distinct words in the synthetic corpus.
+     */
+    static final int SYNTHETICWORDS = 50000;
+
+    private Corpora() {
+    }
+
+    /**
+     * @param name the name of a corpus, either UNDERMILKWOOD or SYNTHETIC.
+     * @return a temporary file holding that corpus, deleted on exit.
+     * @throws IOException if the file cannot be written.
+     */
+    static File file(String name) throws IOException {
+        final File result = File.createTempFile("milkwood-" + name, ".txt");
+        result.deleteOnExit();
+
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(
+                result))) {
+            switch (name) {
+                case UNDERMILKWOOD:
+                    try (InputStream in = Corpora.class
+                            .getResourceAsStream("/undermilkwood.txt")) {
+                        final byte[] buffer = new byte[64 * 1024];
+                        for (int read = in.read(buffer); read >= 0; read = in
+                                .read(buffer)) {
+                            out.write(buffer, 0, read);
+                        }
+                    }
+                    break;
+                case SYNTHETIC:
+                    synthesise(out, SYNTHETICSIZE);
+                    break;
+                default:
+                    throw new IllegalArgumentException(String.format(
+                            "Unknown corpus '%s'", name));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Write this many bytes, or thereabouts, of nonsense in which words are
+     * drawn from a fixed vocabulary with roughly Zipfian frequencies, and
+     * sentences end every fifteen words or so; always the same nonsense.
+     *
+     * @param out the stream to write to.
+     * @param size the number of bytes to write.
+     * @throws IOException if it cannot be written.
+     */
+    private static void synthesise(OutputStream out, int size)
+            throws IOException {
+        final Random random = new Random(1913);
+        final byte[][] words = new byte[SYNTHETICWORDS][];
+        final double[] cumulative = new double[SYNTHETICWORDS];
+        double total = 0;
+
+        for (int i = 0; i < SYNTHETICWORDS; i++) {
+            final StringBuilder word = new StringBuilder();
+            for (int n = i + 1; n > 0; n /= 26) {
+                word.append((char) ('a' + n % 26));
+            }
+            words[i] = word.toString().getBytes("UTF-8");
+            total += 1.0 / (i + 1);
+            cumulative[i] = total;
+        }
+
+        for (int written = 0; written < size;) {
+            final int index = Arrays.binarySearch(cumulative, random
+                    .nextDouble() * total);
+            final byte[] word = words[index < 0 ? -index - 1 : index];
+
+            out.write(word);
+            written += word.length;
+            switch (random.nextInt(15)) {
+                case 0:
+                    out.write(". ".getBytes("UTF-8"));
+                    written += 2;
+                    break;
+                case 1:
+                    out.write(", ".getBytes("UTF-8"));
+                    written += 2;
+                    break;
+                default:
+                    out.write(' ');
+                    written++;
+                    break;
+            }
+        }
+    }
+
+    /**
+     * @param file a corpus.
+     * @param tupleLength the tuple length to digest it to.
+     * @param vocabulary the vocabulary in which to intern its tokens.
+     * @return the root of its rules, as digested.
+     * @throws IOException if it cannot be read.
+     */
+    static RuleTreeNode digest(File file, int tupleLength,
+            Vocabulary vocabulary) throws IOException {
+        final RuleTreeNode result = new RuleTreeNode();
+
+        try (InputStream in = new FileInputStream(file)) {
+            new Digester(vocabulary).digest(in, tupleLength, result);
+        }
+        return result;
+    }
+
+    /**
+     * @param file a corpus.
+     * @param tupleLength the tuple length to digest it to.
+     * @return its rules, frozen.
+     * @throws IOException if it cannot be read.
+     */
+    static FrozenRuleTree rules(File file, int tupleLength) throws IOException {
+        final Vocabulary vocabulary = new Vocabulary();
+
+        return digest(file, tupleLength, vocabulary).freeze(vocabulary,
+                tupleLength);
+    }
+
+    /**
+     * @param file a corpus.
+     * @param vocabulary the vocabulary in which to intern its tokens.
+     * @return the identifiers of its tokens, in order.
+     * @throws IOException if it cannot be read.
+     */
+    static int[] tokens(File file, Vocabulary vocabulary) throws IOException {
+        int[] result = new int[1024];
+        int size = 0;
+
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            final ByteTokeniser tokeniser = new ByteTokeniser(channel
+                    .map(FileChannel.MapMode.READ_ONLY, 0, channel.size()),
+                    vocabulary);
+
+            for (int token = tokeniser.nextToken(); token != ByteTokeniser.EOF;
+                    token = tokeniser.nextToken()) {
+                if (size == result.length) {
+                    result = Arrays.copyOf(result, size * 2);
+                }
+                result[size++] = token;
+            }
+        }
+
+        return Arrays.copyOf(result, size);
+    }
+}
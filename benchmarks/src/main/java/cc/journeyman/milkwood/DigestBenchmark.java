@@ -0,0 +1,84 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How long it takes to digest a whole corpus into a rule tree, and to freeze
+ * it.
+ *
+ * @author simon
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DigestBenchmark {
+
+    /**
+     * The corpus to digest.
+     */
+    @Param({Corpora.UNDERMILKWOOD, Corpora.SYNTHETIC})
+    public String corpus;
+    /**
+     * The tuple length to digest it to.
+     */
+    @Param({"2"})
+    public int tupleLength;
+    /**
+     * The corpus, written out.
+     */
+    private File file;
+
+    @Setup
+    public void setUp() throws IOException {
+        file = Corpora.file(corpus);
+    }
+
+    @Benchmark
+    public RuleTreeNode digest() throws IOException {
+        final RuleTreeNode result = new RuleTreeNode();
+
+        try (InputStream in = new FileInputStream(file)) {
+            new Digester(new Vocabulary()).digest(in, tupleLength, result);
+        }
+
+        return result;
+    }
+
+    @Benchmark
+    public FrozenRuleTree digestAndFreeze() throws IOException {
+        final Vocabulary vocabulary = new Vocabulary();
+        final RuleTreeNode root = new RuleTreeNode();
+
+        try (InputStream in = new FileInputStream(file)) {
+            new Digester(vocabulary).digest(in, tupleLength, root);
+        }
+
+        return root.freeze(vocabulary, tupleLength);
+    }
+}
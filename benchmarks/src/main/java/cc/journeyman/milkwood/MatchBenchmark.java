@@ -0,0 +1,108 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How long it takes to match a window against the rules, both in the
+ * digested tree and in the frozen one, across tuple lengths. The windows
+ * matched are those actually found in the corpus, visited in order, so that
+ * every match succeeds.
+ *
+ * @author simon
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatchBenchmark {
+
+    /**
+     * The tuple length of the rules, and so of the windows matched.
+     */
+    @Param({"1", "2", "3", "4"})
+    public int tupleLength;
+    /**
+     * The rules, as digested.
+     */
+    private RuleTreeNode root;
+    /**
+     * The rules, frozen.
+     */
+    private FrozenRuleTree rules;
+    /**
+     * Windows to match, one for each token of the corpus.
+     */
+    private Window[] windows;
+    /**
+     * The index of the next window to match.
+     */
+    private int next = 0;
+    /**
+     * A random number generator for the digested tree to shuffle with.
+     */
+    private final Random random = new Random(1913);
+
+    @Setup
+    public void setUp() throws IOException {
+        final File file = Corpora.file(Corpora.UNDERMILKWOOD);
+        final Vocabulary vocabulary = new Vocabulary();
+
+        root = Corpora.digest(file, tupleLength, vocabulary);
+        rules = root.freeze(vocabulary, tupleLength);
+
+        final int[] tokens = Corpora.tokens(file, vocabulary);
+        windows = new Window[tokens.length - tupleLength];
+        for (int end = tupleLength; end < tokens.length; end++) {
+            final Window window = new Window(tupleLength);
+
+            for (int i = end - tupleLength; i < end; i++) {
+                window.shift(tokens[i]);
+            }
+            windows[end - tupleLength] = window;
+        }
+    }
+
+    /**
+     * @return the next window to match.
+     */
+    private Window nextWindow() {
+        final Window result = windows[next];
+
+        next = (next + 1) % windows.length;
+        return result;
+    }
+
+    @Benchmark
+    public int[] matchDigested() {
+        return root.match(this.nextWindow(), random);
+    }
+
+    @Benchmark
+    public long matchFrozen() {
+        return rules.match(this.nextWindow());
+    }
+}
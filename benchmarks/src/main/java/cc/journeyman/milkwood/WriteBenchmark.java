@@ -0,0 +1,100 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How fast a composed sequence of tokens is written out, with its
+ * orthography sorted out, to a stream which throws it away; reported both as
+ * sequences and as tokens per second.
+ *
+ * @author simon
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriteBenchmark {
+
+    /**
+     * The number of tokens to write.
+     */
+    @Param({"10000"})
+    public int length;
+    /**
+     * The rules which composed the sequence, for their vocabulary.
+     */
+    private FrozenRuleTree rules;
+    /**
+     * The sequence to write.
+     */
+    private WordSequence tokens;
+    /**
+     * Where it is written to.
+     */
+    private final OutputStream sink = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    /**
+     * Counts the tokens written, which JMH reports as a rate.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Tokens {
+
+        public long tokens;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            tokens = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        rules = Corpora.rules(Corpora.file(Corpora.UNDERMILKWOOD), 2);
+        tokens = new Composer(new Random(1913), false).compose(rules, length);
+    }
+
+    @Benchmark
+    public void writeSequence(Tokens counter) throws IOException {
+        final Writer scrivenor = new Writer(sink, rules.getVocabulary(),
+                new Random(1913), false);
+
+        scrivenor.writeSequence(tokens);
+        scrivenor.flush();
+        counter.tokens += tokens.size();
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * A composition given a budget must stop when it is spent, with what it has
+ * composed up to its last sentence end; and must compose as if it had none
+ * should it not be spent.
+ *
+ * @author simon
+ *
+ */
+public class BudgetTest {
+
+    /**
+     * The number of tokens to compose; far more than can be had in the
+     * steps allowed.
+     */
+    private static final int LENGTH = 1000;
+    /**
+     * The most steps allowed, when they are limited.
+     */
+    private static final long STEPS = 200;
+    /**
+     * The rules to compose from.
+     */
+    private static FrozenRuleTree rules;
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        rules = Corpora.rules(Corpora.file(Corpora.UNDERMILKWOOD), 2);
+    }
+
+    /**
+     * @param seed a seed.
+     * @param budget a budget.
+     * @return what a composer seeded so composes within that budget.
+     */
+    private static WordSequence compose(long seed, Budget budget) {
+        return new Composer(new Random(seed), false).compose(rules, LENGTH,
+                budget);
+    }
+
+    /**
+     * Fail unless this sequence is empty or ends a sentence.
+     *
+     * @param sequence the sequence.
+     */
+    private static void assertEndsSentence(WordSequence sequence) {
+        if (!sequence.isEmpty()) {
+            assertEquals(Milkwood.PERIOD, rules.getVocabulary().getWord(
+                    sequence.get(sequence.size() - 1)));
+        }
+    }
+
+    @Test
+    public void unspentBudgetComposesAsNone() {
+        for (long seed = 0; seed < 10; seed++) {
+            final Budget budget = new Budget(Budget.UNLIMITED,
+                    Budget.UNLIMITED);
+            final WordSequence budgeted = compose(seed, budget);
+
+            assertFalse(budget.isExhausted());
+            assertEquals(new Composer(new Random(seed), false).compose(rules,
+                    LENGTH).toString(), budgeted.toString());
+        }
+    }
+
+    @Test
+    public void stepsCutShortAtASentenceEnd() {
+        for (long seed = 0; seed < 10; seed++) {
+            final Budget budget = new Budget(Budget.UNLIMITED, STEPS);
+            final WordSequence cut = compose(seed, budget);
+            final String whole = compose(seed, Budget.NONE).toString();
+
+            assertTrue(budget.isExhausted());
+            assertEquals(STEPS, budget.getSteps());
+            assertNotNull(cut);
+            assertTrue(cut.size() < LENGTH);
+            assertEndsSentence(cut);
+            /* these rules carry reach, so the search never goes back on
+             * what it has composed */
+            assertTrue(whole.startsWith(cut.toString().replace("]", ", ")));
+        }
+    }
+
+    @Test
+    public void timeCutsShort() {
+        final Budget budget = new Budget(0, Budget.UNLIMITED);
+        final WordSequence cut = compose(1, budget);
+
+        assertTrue(budget.isExhausted());
+        assertNotNull(cut);
+        assertEndsSentence(cut);
+    }
+
+    @Test
+    public void streamingCutsShortAtASentenceEnd() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final Budget budget = new Budget(Budget.UNLIMITED, STEPS);
+        final boolean whole;
+
+        try (Writer scrivenor = new Writer(out, rules.getVocabulary(),
+                new Random(2), false)) {
+            whole = new Composer(new Random(2), false).compose(rules, LENGTH,
+                    scrivenor, budget);
+        }
+        final String text = new String(out.toByteArray(), Vocabulary.UTF8)
+                .trim();
+
+        assertFalse(whole);
+        assertTrue(budget.isExhausted());
+        assertFalse(text.isEmpty());
+        assertTrue(text, text.endsWith(Milkwood.PERIOD));
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StreamTokenizer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Tokenising bytes must give exactly the tokens that the character
+ * {@link Tokeniser} gives from the same text read as UTF-8, whether the bytes
+ * are mapped from a file, read from a stream, or held in a buffer.
+ *
+ * @author simon
+ *
+ */
+public class ByteTokeniserTest {
+
+    /**
+     * Text which is not all ASCII: accented and capital letters, a character
+     * outside the basic multilingual plane, bytes which are not UTF-8 at all,
+     * and the marks the tokenisers treat as whitespace.
+     */
+    private static final byte[] MIXED = mixed();
+
+    /**
+     * @return the mixed text.
+     */
+    private static byte[] mixed() {
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        final byte[] text = ("Caf\u00e9 na\u00efve, \u00c9COLE \ud834\udd1e "
+                + "don't-stop_now \"quoted\" 42 3.14 x\tY\r\nZ. ")
+                .getBytes(Vocabulary.UTF8);
+
+        result.write(text, 0, text.length);
+        /* Latin-1, a lone continuation byte, a truncated sequence */
+        for (int b : new int[] {'c', 'a', 'f', 0xe9, ' ', 0x80, ' ', 0xc3,
+            ' ', 0xff, 'E', 'n', 'd', '.'}) {
+            result.write(b);
+        }
+
+        return result.toByteArray();
+    }
+
+    /**
+     * @param in a stream of text.
+     * @return its tokens, as the character tokeniser reads them as UTF-8.
+     * @throws IOException if it cannot be read.
+     */
+    private static List<String> characterTokens(InputStream in)
+            throws IOException {
+        final List<String> result = new ArrayList<>();
+        final Tokeniser tok = new Tokeniser(new InputStreamReader(in,
+                Vocabulary.UTF8));
+
+        for (int type = tok.nextToken(); type != StreamTokenizer.TT_EOF;
+                type = tok.nextToken()) {
+            result.add(tok.readBareToken());
+        }
+
+        return result;
+    }
+
+    /**
+     * @param tok a byte tokeniser.
+     * @param vocabulary the vocabulary it interns tokens into.
+     * @return the tokens it reads, spelled out.
+     * @throws IOException if they cannot be read.
+     */
+    private static List<String> byteTokens(ByteTokeniser tok,
+            Vocabulary vocabulary) throws IOException {
+        final List<String> result = new ArrayList<>();
+
+        for (int token = tok.nextToken(); token != ByteTokeniser.EOF;
+                token = tok.nextToken()) {
+            result.add(vocabulary.getWord(token));
+        }
+
+        return result;
+    }
+
+    /**
+     * Fail unless every way of tokenising these bytes gives the same tokens
+     * as the character tokeniser.
+     *
+     * @param text the bytes.
+     * @throws IOException should it somehow be impossible to read them.
+     */
+    private static void assertSameTokens(byte[] text) throws IOException {
+        final List<String> expected = characterTokens(
+                new ByteArrayInputStream(text));
+        final Vocabulary vocabulary = new Vocabulary();
+
+        assertEquals(expected, byteTokens(new ByteTokeniser(ByteBuffer.wrap(
+                text), vocabulary), vocabulary));
+        assertEquals(expected, byteTokens(new ByteTokeniser(Channels
+                .newChannel(new ByteArrayInputStream(text)), vocabulary),
+                vocabulary));
+    }
+
+    @Test
+    public void tokenisesTheCorpusAsCharactersDo() throws IOException {
+        final File file = Corpora.file(Corpora.UNDERMILKWOOD);
+        final Vocabulary vocabulary = new Vocabulary();
+        final List<String> expected;
+        final List<String> mapped;
+
+        try (InputStream in = new FileInputStream(file)) {
+            expected = characterTokens(in);
+        }
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            mapped = byteTokens(new ByteTokeniser(channel, 0, channel.size(),
+                    vocabulary), vocabulary);
+        }
+
+        assertEquals(expected, mapped);
+        try (InputStream in = new FileInputStream(file)) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                bytes.write(buffer, 0, n);
+            }
+            assertSameTokens(bytes.toByteArray());
+        }
+    }
+
+    @Test
+    public void tokenisesMixedTextAsCharactersDo() throws IOException {
+        assertSameTokens(MIXED);
+    }
+}
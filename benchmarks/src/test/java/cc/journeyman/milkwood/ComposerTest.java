@@ -0,0 +1,130 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Given the same seed and the same rules, a composer must compose the same
+ * text, whether streaming or not, and however many other composers share
+ * the rules at once.
+ *
+ * @author simon
+ *
+ */
+public class ComposerTest {
+
+    /**
+     * The number of tokens to compose.
+     */
+    private static final int LENGTH = 500;
+    /**
+     * The number of threads composing at once.
+     */
+    private static final int THREADS = 8;
+    /**
+     * The rules to compose from.
+     */
+    private static FrozenRuleTree rules;
+
+    /**
+     * Where model files are written.
+     */
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        rules = Corpora.rules(Corpora.file(Corpora.UNDERMILKWOOD), 3);
+    }
+
+    /**
+     * @param rules the rules to compose from.
+     * @param seed a seed.
+     * @return what a composer seeded so composes from them, held.
+     */
+    private static String compose(FrozenRuleTree rules, long seed) {
+        final WordSequence result = new Composer(new Random(seed), false)
+                .compose(rules, LENGTH);
+
+        assertNotNull(result);
+
+        return result.toString();
+    }
+
+    /**
+     * @param seed a seed.
+     * @return what a composer seeded so composes, streamed through a writer
+     * seeded so.
+     * @throws IOException should it somehow be impossible to write to an
+     * array.
+     */
+    private static String stream(long seed) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try (Writer scrivenor = new Writer(out, rules.getVocabulary(),
+                new Random(seed), false)) {
+            new Composer(new Random(seed), false).compose(rules, LENGTH,
+                    scrivenor);
+        }
+
+        return new String(out.toByteArray(), Vocabulary.UTF8);
+    }
+
+    @Test
+    public void sameSeedComposesTheSame() throws IOException {
+        for (long seed = 0; seed < 10; seed++) {
+            assertEquals(compose(rules, seed), compose(rules, seed));
+            assertEquals(stream(seed), stream(seed));
+        }
+    }
+
+    @Test
+    public void sharedModelComposesAsAlone() throws Exception {
+        final ModelFile file = new ModelFile(folder.newFile());
+
+        file.save(rules);
+
+        final FrozenRuleTree mapped = file.load();
+        final ExecutorService executor = Executors.newFixedThreadPool(
+                THREADS);
+        final List<Future<String>> composed = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < 4 * THREADS; i++) {
+                final long seed = i;
+
+                composed.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        return compose(mapped, seed);
+                    }
+                }));
+            }
+            for (int i = 0; i < composed.size(); i++) {
+                assertEquals(compose(rules, i), composed.get(i).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
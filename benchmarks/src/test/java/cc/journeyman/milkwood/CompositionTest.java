@@ -0,0 +1,136 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * A composition from rules which carry no reach, and so must backtrack, must
+ * not search the same dead end twice.
+ *
+ * @author simon
+ *
+ */
+public class CompositionTest {
+
+    /**
+     * The number of layers of dead ends.
+     */
+    private static final int LAYERS = 20;
+    /**
+     * The length of the document in which 'c' and 'd' alternate; long enough
+     * that most compositions start from one of them.
+     */
+    private static final int CYCLE = 200;
+    /**
+     * The number of tokens to compose.
+     */
+    private static final int LENGTH = 500;
+    /**
+     * The most steps a composition may take; enough to search every dead end
+     * a few times over, and far too few to search every path through them.
+     */
+    private static final long STEPS = 100000;
+
+    /**
+     * Rules at a tuple length of one, from a suffix index, so that every
+     * reach is INFINITE: 'c' and 'd' follow one another for ever, but 'c' may
+     * also, now and then, lead into a stack of layers of two words each, each
+     * of which may be followed by either of the next layer, and the last of
+     * which ends the text. There are two to the power of LAYERS ways through
+     * the stack, all of which come to an end; but only two words at each
+     * layer from which the search fails.
+     *
+     * @return the rules.
+     */
+    private static Rules deadEnds() {
+        final Vocabulary vocabulary = new Vocabulary();
+        int[] tokens = new int[0];
+
+        final String[] cycle = new String[CYCLE];
+
+        for (int i = 0; i < CYCLE; i++) {
+            cycle[i] = i % 2 == 0 ? "c" : "d";
+        }
+        tokens = document(tokens, vocabulary, cycle);
+        tokens = document(tokens, vocabulary, "c", "p0");
+        tokens = document(tokens, vocabulary, "c", "q0");
+        for (int layer = 0; layer < LAYERS; layer++) {
+            for (String from : new String[] {"p", "q"}) {
+                for (String to : new String[] {"p", "q"}) {
+                    tokens = document(tokens, vocabulary, from + layer, to
+                            + (layer + 1));
+                }
+            }
+        }
+
+        return new SuffixIndex(vocabulary, tokens).atOrder(1);
+    }
+
+    /**
+     * @param tokens the tokens of the documents so far.
+     * @param vocabulary the vocabulary into which to intern words.
+     * @param words the words of another document.
+     * @return those tokens, followed by the identifiers of those words, and
+     * the root magic token to end the document.
+     */
+    private static int[] document(int[] tokens, Vocabulary vocabulary,
+            String... words) {
+        final int[] result = Arrays.copyOf(tokens, tokens.length
+                + words.length + 1);
+
+        for (int i = 0; i < words.length; i++) {
+            result[tokens.length + i] = vocabulary.intern(words[i]);
+        }
+        result[result.length - 1] = Vocabulary.ROOT;
+
+        return result;
+    }
+
+    /**
+     * @param rules the rules of the dead ends.
+     * @param word the identifier of a word of them.
+     * @return true if it is a word of the stack of dead ends.
+     */
+    private static boolean inStack(Rules rules, int word) {
+        final String spelled = rules.getVocabulary().getWord(word);
+
+        return !spelled.equals("c") && !spelled.equals("d");
+    }
+
+    @Test
+    public void neverSearchesTheSameDeadEndTwice() {
+        final Rules rules = deadEnds();
+        final Random random = new Random(14);
+        /* those which start in the stack cannot succeed; the rest must */
+        int succeeded = 0;
+
+        for (int i = 0; i < 20; i++) {
+            final Budget budget = new Budget(Budget.UNLIMITED, STEPS);
+            final Composition composition = new Composition(rules, LENGTH,
+                    false, random, budget, false);
+
+            while (composition.step()) {
+                /* keep going */
+            }
+            assertFalse(String.format("composition %d ran out of steps", i),
+                    composition.wasCutShort());
+            if (!inStack(rules, composition.getResult().get(0))) {
+                assertTrue(String.format("composition %d failed", i),
+                        composition.succeeded());
+                succeeded++;
+            }
+        }
+
+        assertTrue(succeeded > 0);
+    }
+}
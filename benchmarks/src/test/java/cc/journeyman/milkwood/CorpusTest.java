@@ -0,0 +1,172 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * However many documents a corpus has, wherever they are and however
+ * compressed, and however many threads digest them, the result must be as if
+ * each had been digested into the same tree in turn: the same vocabulary, in
+ * the same order, and the same tree.
+ *
+ * @author simon
+ *
+ */
+public class CorpusTest {
+
+    /**
+     * The words from which documents are made.
+     */
+    private static final String[] WORDS = {"the", "cat", "dog", "sat", "on",
+        "mat", "under", "milk", "wood", "and", "a", "bird", "sang", ",", "."};
+
+    /**
+     * Where the documents are written.
+     */
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * The text of each document written, by its file.
+     */
+    private final Map<File, String> texts = new HashMap<>();
+
+    /**
+     * Write a document of nonsense, compressed with gzip if its name says
+     * so.
+     *
+     * @param file the file to write it to.
+     * @param random the generator from which to draw its words.
+     * @throws IOException if it cannot be written.
+     */
+    private void write(File file, Random random) throws IOException {
+        final StringBuilder text = new StringBuilder();
+
+        for (int i = random.nextInt(60); i >= 0; i--) {
+            text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        file.getParentFile().mkdirs();
+        try (OutputStream out = file.getName().endsWith(Corpus.GZIP)
+                ? new GZIPOutputStream(new FileOutputStream(file))
+                : new FileOutputStream(file)) {
+            out.write(text.toString().getBytes(Vocabulary.UTF8));
+        }
+        texts.put(file, text.toString());
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        final Random random = new Random(19);
+
+        for (int i = 0; i < 100; i++) {
+            write(new File(folder.getRoot(), String.format("a/%03d.txt%s", i,
+                    i % 3 == 0 ? Corpus.GZIP : "")), random);
+        }
+        for (int i = 0; i < 50; i++) {
+            write(new File(folder.getRoot(), String.format("b/%s/%03d.gz",
+                    i % 2 == 0 ? "even" : "odd", i)), random);
+        }
+        write(new File(folder.getRoot(), "b/plain.txt"), random);
+    }
+
+    /**
+     * @param files some of the documents written.
+     * @return them, in the order of their names, as a corpus adds them.
+     */
+    private static List<File> sorted(List<File> files) {
+        final List<File> result = new ArrayList<>(files);
+
+        Collections.sort(result);
+
+        return result;
+    }
+
+    /**
+     * @param directory a directory the documents were written to.
+     * @param suffix the suffix of the documents wanted.
+     * @return the documents written to it, or below it, with that suffix.
+     */
+    private List<File> below(String directory, String suffix) {
+        final List<File> result = new ArrayList<>();
+        final String prefix = new File(folder.getRoot(), directory).getPath()
+                + File.separator;
+
+        for (File file : texts.keySet()) {
+            if (file.getPath().startsWith(prefix) && file.getName()
+                    .endsWith(suffix)) {
+                result.add(file);
+            }
+        }
+
+        return sorted(result);
+    }
+
+    @Test
+    public void pipelineDigestsEachDocumentInTurn() throws IOException {
+        final List<File> order = new ArrayList<>();
+
+        order.addAll(below("a", ""));
+        order.addAll(below("b", Corpus.GZIP));
+        order.add(new File(folder.getRoot(), "b/plain.txt"));
+
+        for (int tupleLength : new int[] {1, 3}) {
+            final Vocabulary vocabulary = new Vocabulary();
+            final RuleTreeNode root = new RuleTreeNode();
+
+            for (File file : order) {
+                new Digester(vocabulary).digest(new ByteArrayInputStream(
+                        texts.get(file).getBytes(Vocabulary.UTF8)),
+                        tupleLength, root);
+            }
+            final String expected = Texts.describe(root.freeze(vocabulary,
+                    tupleLength));
+
+            for (int jobs : new int[] {1, 4}) {
+                final Corpus corpus = new Corpus(null);
+                final Vocabulary digested = new Vocabulary();
+                final RuleTreeNode tree = new RuleTreeNode();
+
+                corpus.add(new File(folder.getRoot(), "a").getPath());
+                corpus.add(folder.getRoot().getPath() + "/b/**" + Corpus.GZIP);
+                corpus.add(new File(folder.getRoot(), "b/plain.txt")
+                        .getPath());
+                assertEquals(order.size(), corpus.size());
+                corpus.digest(digested, tupleLength, tree, jobs,
+                        Pruner.NONE);
+
+                assertEquals(String.format("tuple length %d, %d jobs",
+                        tupleLength, jobs), expected, Texts.describe(tree
+                        .freeze(digested, tupleLength)));
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesZstandard() throws IOException {
+        final File file = folder.newFile("c.txt" + Corpus.ZSTD[0]);
+
+        new Corpus(null).add(file.getPath());
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Digesting in parallel must give exactly the rules, and the vocabulary,
+ * that digesting sequentially does: no tuple lost or counted twice where the
+ * input was split, and every word given the same identifier.
+ *
+ * @author simon
+ *
+ */
+public class DigesterTest {
+
+    /**
+     * Enough text to be split into many chunks.
+     */
+    private static byte[] text;
+    /**
+     * A file holding the same text.
+     */
+    private static File file;
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        final StringBuilder builder = new StringBuilder();
+        final Random random = new Random(6);
+
+        while (builder.length() < 12 * Digester.MINCHUNKSIZE) {
+            /* few enough words that tuples recur across chunks */
+            builder.append('w').append(random.nextInt(500));
+            builder.append(random.nextInt(10) == 0 ? " . " : " ");
+        }
+        text = builder.toString().getBytes(Vocabulary.UTF8);
+
+        file = File.createTempFile("milkwood-digester", ".txt");
+        file.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(text);
+        }
+    }
+
+    /**
+     * @param in the input to digest.
+     * @param tupleLength the tuple length to digest it to.
+     * @param parallelism the number of threads with which to digest it.
+     * @return its rules, frozen and described.
+     * @throws IOException if it cannot be read.
+     */
+    private static String digest(InputStream in, int tupleLength,
+            int parallelism) throws IOException {
+        final Vocabulary vocabulary = new Vocabulary();
+        final RuleTreeNode root = new RuleTreeNode();
+
+        try {
+            new Digester(vocabulary).digest(in, tupleLength, root,
+                    parallelism);
+        } finally {
+            in.close();
+        }
+
+        return Texts.describe(root.freeze(vocabulary, tupleLength));
+    }
+
+    @Test
+    public void parallelDigestOfAStreamIsSequentialDigest()
+            throws IOException {
+        for (int tupleLength : new int[] {1, 2, 4}) {
+            assertEquals(digest(new ByteArrayInputStream(text), tupleLength,
+                    1), digest(new ByteArrayInputStream(text), tupleLength,
+                    4));
+        }
+    }
+
+    @Test
+    public void parallelDigestOfAFileIsSequentialDigest() throws IOException {
+        for (int tupleLength : new int[] {1, 2, 4}) {
+            assertEquals(digest(new FileInputStream(file), tupleLength, 1),
+                    digest(new FileInputStream(file), tupleLength, 4));
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+
+/**
+ * The reaches and the alias tables of a frozen tree, and how a composition
+ * chooses by them.
+ *
+ * @author simon
+ *
+ */
+public class FrozenRuleTreeTest {
+
+    /**
+     * At a tuple length of one: 'x' may follow itself for ever, and is the
+     * first word of three tuples; each of 'e', 'f', 'g' and 'h' is the first
+     * word of one, and they lead, in that order, to the end of the text.
+     */
+    private static final String ENDING = "x x x e f g h .";
+    /**
+     * The number of draws over which frequencies are compared.
+     */
+    private static final int DRAWS = 20000;
+    /**
+     * The words from which little random corpora are made.
+     */
+    private static final String[] WORDS = {"a", "b", "c", "d", "."};
+
+    /**
+     * @param rules some rules.
+     * @param word a word in their vocabulary.
+     * @return the node of the window holding only that word.
+     */
+    private static int node(FrozenRuleTree rules, String word) {
+        return (int) rules.match(Texts.window(rules, word));
+    }
+
+    /**
+     * Fail unless this many of so many draws is about this proportion of
+     * them.
+     *
+     * @param expected the proportion expected.
+     * @param actual the number drawn.
+     * @param draws the number of draws.
+     */
+    private static void assertProportion(double expected, int actual,
+            int draws) {
+        assertEquals(expected, (double) actual / draws, 0.02);
+    }
+
+    @Test
+    public void reaches() throws IOException {
+        final FrozenRuleTree rules = Texts.rules(ENDING, 1);
+
+        assertEquals(Rules.INFINITE, rules.getReach(node(rules, "x")));
+        assertEquals(4, rules.getReach(node(rules, "e")));
+        assertEquals(3, rules.getReach(node(rules, "f")));
+        assertEquals(1, rules.getReach(node(rules, "h")));
+        /* the last word begins no window */
+        assertEquals(Rules.NOTFOUND, node(rules, "."));
+        assertEquals(Rules.INFINITE, rules.getReach(Rules.ROOT));
+    }
+
+    @Test
+    public void aliasTablesWeightByCount() throws IOException {
+        final FrozenRuleTree rules = Texts.rules(ENDING, 1);
+        final int[] drawn = new int[rules.getNodeCount()];
+        final Random random = new Random(3);
+
+        for (int i = 0; i < DRAWS; i++) {
+            drawn[(int) rules.getRule(Rules.ROOT, random)]++;
+        }
+
+        /* seven tuples in all */
+        assertProportion(3.0 / 7, drawn[node(rules, "x")], DRAWS);
+        assertProportion(1.0 / 7, drawn[node(rules, "e")], DRAWS);
+        assertProportion(1.0 / 7, drawn[node(rules, "h")], DRAWS);
+    }
+
+    @Test
+    public void finiteReachEnoughIsWeightedByCount() throws IOException {
+        final FrozenRuleTree rules = Texts.rules(ENDING, 1);
+        final Vocabulary vocabulary = rules.getVocabulary();
+        final int[] first = new int[vocabulary.size()];
+        final Random random = new Random(5);
+
+        for (int i = 0; i < DRAWS; i++) {
+            /* three tokens after the preamble: 'x', 'e' and 'f' reach far
+             * enough, 'g' and 'h' don't */
+            final Composition composition = new Composition(rules, 3, false,
+                    random, false);
+
+            while (composition.step()) {
+                /* keep going */
+            }
+            assertTrue(composition.succeeded());
+            first[composition.getResult().get(0)]++;
+        }
+
+        assertProportion(3.0 / 5, first[vocabulary.getId("x")], DRAWS);
+        assertProportion(1.0 / 5, first[vocabulary.getId("e")], DRAWS);
+        assertProportion(1.0 / 5, first[vocabulary.getId("f")], DRAWS);
+        assertEquals(0, first[vocabulary.getId("g")]);
+    }
+
+    /**
+     * Work out, by brute force from the text rather than from the tree, the
+     * greatest number of tokens which could be generated after this window:
+     * the longest walk from it, in which each step is to a word which
+     * follows the window somewhere in the text, and the window then moves
+     * on by that word; INFINITE if a walk can go round in a circle.
+     *
+     * @param window a window, which need not occur in the text.
+     * @param successors the words which follow each window in the text.
+     * @param walking the windows on the walk to this one.
+     * @param known the reaches already worked out.
+     * @return its reach.
+     */
+    private static int bruteReach(List<String> window,
+            Map<List<String>, Set<String>> successors,
+            Set<List<String>> walking, Map<List<String>, Integer> known) {
+        int result = 0;
+
+        if (walking.contains(window)) {
+            result = Rules.INFINITE;
+        } else if (known.containsKey(window)) {
+            result = known.get(window);
+        } else if (successors.containsKey(window)) {
+            walking.add(window);
+            for (String word : successors.get(window)) {
+                final List<String> next = new ArrayList<>(window.subList(1,
+                        window.size()));
+
+                next.add(word);
+                final int onward = bruteReach(next, successors, walking,
+                        known);
+                result = Math.max(result, onward == Rules.INFINITE
+                        ? Rules.INFINITE : onward + 1);
+            }
+            walking.remove(window);
+            known.put(window, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Fail unless every node of these rules below this one at the depth of
+     * windows, or of their successors, has the reach worked out by brute
+     * force.
+     *
+     * @param rules the rules.
+     * @param node the number of a node.
+     * @param path the words from the root to that node.
+     * @param successors the words which follow each window in the text.
+     * @param known the reaches already worked out by brute force.
+     */
+    private static void assertReaches(FrozenRuleTree rules, long node,
+            List<String> path, Map<List<String>, Set<String>> successors,
+            Map<List<String>, Integer> known) {
+        final int tupleLength = rules.getTupleLength();
+        final Set<List<String>> walking = new HashSet<>();
+
+        if (path.size() == tupleLength) {
+            assertEquals(path.toString(), bruteReach(path, successors,
+                    walking, known), rules.getReach(node));
+        } else if (path.size() == tupleLength + 1) {
+            assertEquals(path.toString(), bruteReach(path.subList(1,
+                    path.size()), successors, walking, known), rules
+                    .getReach(node));
+        }
+        for (int i = 0; i < rules.getSuccessorCount(node); i++) {
+            final long successor = rules.getSuccessor(node, i);
+            final List<String> longer = new ArrayList<>(path);
+
+            longer.add(rules.getVocabulary().getWord(rules.getWord(
+                    successor)));
+            assertReaches(rules, successor, longer, successors, known);
+        }
+    }
+
+    @Test
+    public void reachIsTheLongestWalk() throws IOException {
+        final Random random = new Random(13);
+
+        for (int corpus = 0; corpus < 300; corpus++) {
+            final int tupleLength = 1 + random.nextInt(3);
+            final String[] words = new String[tupleLength + 2
+                    + random.nextInt(20)];
+            final StringBuilder text = new StringBuilder();
+            final Map<List<String>, Set<String>> successors = new HashMap<>();
+            final Map<List<String>, Integer> known = new HashMap<>();
+            int longest = 0;
+
+            for (int i = 0; i < words.length; i++) {
+                words[i] = WORDS[random.nextInt(WORDS.length)];
+                text.append(words[i]).append(' ');
+            }
+            for (int i = 0; i + tupleLength < words.length; i++) {
+                final List<String> window = Arrays.asList(words).subList(i,
+                        i + tupleLength);
+
+                if (!successors.containsKey(window)) {
+                    successors.put(window, new HashSet<String>());
+                }
+                successors.get(window).add(words[i + tupleLength]);
+            }
+            for (List<String> window : successors.keySet()) {
+                longest = Math.max(longest, bruteReach(window, successors,
+                        new HashSet<List<String>>(), known));
+            }
+
+            final String spelled = text.toString();
+            final FrozenRuleTree rules = Texts.rules(spelled, tupleLength);
+            final Composer composer = new Composer(random, false);
+
+            assertReaches(rules, Rules.ROOT, new ArrayList<String>(),
+                    successors, known);
+            if (longest == Rules.INFINITE) {
+                assertEquals(spelled, Rules.INFINITE, rules.getReach(
+                        Rules.ROOT));
+                assertNotNull(spelled, composer.compose(rules, 100));
+            } else {
+                /* the whole of the longest walk, and not a token more */
+                assertEquals(spelled, tupleLength + longest, rules.getReach(
+                        Rules.ROOT));
+                assertNotNull(spelled, composer.compose(rules, longest));
+                assertNull(spelled, composer.compose(rules, longest + 1));
+            }
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * However many writers learn at once, and however many readers compose
+ * meanwhile, a live model must end with exactly the rules that learning the
+ * same parts one after another gives.
+ *
+ * @author simon
+ *
+ */
+public class LiveModelTest {
+
+    /**
+     * The number of parts into which the real corpus is cut.
+     */
+    private static final int PARTS = 16;
+    /**
+     * The number of threads learning at once.
+     */
+    private static final int WRITERS = 8;
+    /**
+     * The number of threads composing meanwhile.
+     */
+    private static final int READERS = 4;
+    /**
+     * The tuple length learned to.
+     */
+    private static final int TUPLELENGTH = 2;
+    /**
+     * The parts, each cut at whitespace.
+     */
+    private static final List<byte[]> parts = new ArrayList<>();
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        final ByteArrayOutputStream text = new ByteArrayOutputStream();
+
+        try (InputStream in = LiveModelTest.class.getResourceAsStream(
+                "/undermilkwood.txt")) {
+            final byte[] buffer = new byte[4096];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                text.write(buffer, 0, n);
+            }
+        }
+
+        final byte[] bytes = text.toByteArray();
+        int from = 0;
+        for (int i = 1; i <= PARTS; i++) {
+            int to = (int) ((long) bytes.length * i / PARTS);
+            while (to < bytes.length && bytes[to - 1] != ' ') {
+                to++;
+            }
+            final byte[] part = new byte[to - from];
+            System.arraycopy(bytes, from, part, 0, part.length);
+            parts.add(part);
+            from = to;
+        }
+    }
+
+    /**
+     * @param from the index of the first part to learn.
+     * @param model the model to learn them into.
+     * @return it, having learned all the parts from that one, in turn.
+     * @throws IOException should it somehow be impossible to read an array.
+     */
+    private static LiveModel learnInTurn(int from, LiveModel model)
+            throws IOException {
+        for (int i = from; i < PARTS; i++) {
+            model.learn(new ByteArrayInputStream(parts.get(i)));
+        }
+
+        return model;
+    }
+
+    @Test
+    public void learningAtOnceIsLearningInTurn() throws Exception {
+        final LiveModel model = new LiveModel(TUPLELENGTH);
+        final List<Throwable> failures = Collections.synchronizedList(
+                new ArrayList<Throwable>());
+        final CountDownLatch written = new CountDownLatch(WRITERS);
+        final AtomicBoolean reading = new AtomicBoolean(true);
+        final List<Thread> threads = new ArrayList<>();
+
+        for (int w = 0; w < WRITERS; w++) {
+            final int writer = w;
+
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = writer; i < PARTS; i += WRITERS) {
+                            model.learn(new ByteArrayInputStream(parts
+                                    .get(i)));
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    } finally {
+                        written.countDown();
+                    }
+                }
+            });
+        }
+        for (int r = 0; r < READERS; r++) {
+            final Random random = new Random(r);
+
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (reading.get()) {
+                            new Composer(random, false).compose(model
+                                    .getRules(), 50);
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            });
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        written.await();
+        reading.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertEquals(Texts.spell(learnInTurn(0, new LiveModel(TUPLELENGTH))
+                .getRules()), Texts.spell(model.getRules()));
+    }
+
+    @Test
+    public void whatIsLearnedIsPublishedOnReturn() throws Exception {
+        final LiveModel model = new LiveModel(TUPLELENGTH);
+        final List<Throwable> failures = Collections.synchronizedList(
+                new ArrayList<Throwable>());
+        final List<Thread> threads = new ArrayList<>();
+
+        for (int w = 0; w < WRITERS; w++) {
+            final int writer = w;
+
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < PARTS; i++) {
+                            final String word = "w" + writer + "p" + i;
+
+                            model.learn(new ByteArrayInputStream(("the "
+                                    + word + " sat .").getBytes(
+                                            Vocabulary.UTF8)));
+                            assertTrue(word, model.getRules()
+                                    .getVocabulary().getId(word)
+                                    != Vocabulary.NOTFOUND);
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            });
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue(failures.toString(), failures.isEmpty());
+    }
+
+    @Test
+    public void frozenRulesLearnAsIfDigested() throws IOException {
+        final FrozenRuleTree first = Texts.rules(new String(parts.get(0),
+                Vocabulary.UTF8), TUPLELENGTH);
+
+        assertEquals(Texts.spell(learnInTurn(0, new LiveModel(TUPLELENGTH))
+                .getRules()), Texts.spell(learnInTurn(1, new LiveModel(first))
+                .getRules()));
+    }
+
+    @Test
+    public void snapshotsNeverChange() throws IOException {
+        final LiveModel model = learnInTurn(PARTS - 1, new LiveModel(
+                TUPLELENGTH));
+        final FrozenRuleTree before = model.getRules();
+        final String described = Texts.describe(before);
+
+        learnInTurn(0, model);
+
+        assertEquals(described, Texts.describe(before));
+        assertTrue(model.getRules().getNodeCount() > before.getNodeCount());
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * A model file must give back, node for node, the tree saved to it; and must
+ * refuse to load what is not a whole model file.
+ *
+ * @author simon
+ *
+ */
+public class ModelFileTest {
+
+    /**
+     * Where model files are written.
+     */
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * @param tupleLength a tuple length.
+     * @return the rules of the real corpus, digested to it.
+     * @throws IOException if it cannot be read.
+     */
+    private static FrozenRuleTree rules(int tupleLength) throws IOException {
+        return Corpora.rules(Corpora.file(Corpora.UNDERMILKWOOD),
+                tupleLength);
+    }
+
+    /**
+     * Fail unless these trees are node-for-node identical, alias tables and
+     * all, with the same vocabulary.
+     *
+     * @param expected the tree expected.
+     * @param actual the tree got.
+     */
+    private static void assertIdentical(FrozenRuleTree expected,
+            FrozenRuleTree actual) {
+        assertEquals(Texts.describe(expected), Texts.describe(actual));
+        assertEquals(expected.getWords(), actual.getWords());
+        assertEquals(expected.getFirstSuccessors(),
+                actual.getFirstSuccessors());
+        assertEquals(expected.getCounts(), actual.getCounts());
+        assertEquals(expected.getThresholds(), actual.getThresholds());
+        assertEquals(expected.getAliases(), actual.getAliases());
+        assertEquals(expected.getReaches(), actual.getReaches());
+    }
+
+    @Test
+    public void loadsWhatWasSaved() throws IOException {
+        for (int tupleLength = 1; tupleLength <= 3; tupleLength++) {
+            final FrozenRuleTree saved = rules(tupleLength);
+            final ModelFile file = new ModelFile(folder.newFile());
+
+            file.save(saved);
+            final FrozenRuleTree loaded = file.load();
+
+            assertEquals(tupleLength, loaded.getTupleLength());
+            assertIdentical(saved, loaded);
+        }
+    }
+
+    @Test
+    public void loadedComposesAsSaved() throws IOException {
+        final FrozenRuleTree saved = rules(2);
+        final ModelFile file = new ModelFile(folder.newFile());
+
+        file.save(saved);
+        final FrozenRuleTree loaded = file.load();
+
+        for (long seed = 0; seed < 10; seed++) {
+            assertEquals(new Composer(new Random(seed), false).compose(saved,
+                    200).toString(), new Composer(new Random(seed), false)
+                    .compose(loaded, 200).toString());
+        }
+    }
+
+    @Test
+    public void offHeapRulesAreTheRulesOnHeap() throws IOException {
+        final FrozenRuleTree heap = rules(2);
+        final FrozenRuleTree offHeap = heap.offHeap();
+        final ModelFile file = new ModelFile(folder.newFile());
+
+        assertTrue(offHeap.getVocabulary().isOffHeap());
+        assertIdentical(heap, offHeap);
+        for (long seed = 0; seed < 10; seed++) {
+            assertEquals(new Composer(new Random(seed), false).compose(heap,
+                    200).toString(), new Composer(new Random(seed), false)
+                    .compose(offHeap, 200).toString());
+        }
+
+        file.save(offHeap);
+        assertIdentical(heap, file.load());
+    }
+
+    @Test
+    public void savesEmptyRules() throws IOException {
+        final FrozenRuleTree saved = Texts.rules("", 2);
+        final ModelFile file = new ModelFile(folder.newFile());
+
+        file.save(saved);
+        final FrozenRuleTree loaded = file.load();
+
+        assertEquals(2, loaded.getTupleLength());
+        assertIdentical(saved, loaded);
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesWhatIsNotAModel() throws IOException {
+        final File file = folder.newFile();
+
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.writeBytes("the cat sat on the mat . the dog sat on the cat .");
+        }
+        new ModelFile(file).load();
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesATruncatedModel() throws IOException {
+        final File file = folder.newFile();
+
+        new ModelFile(file).save(rules(2));
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(out.length() - 4);
+        }
+        new ModelFile(file).load();
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Pruning must leave a tree every branch of which is still a rule: that is,
+ * reaches all the way down to the successors of windows.
+ *
+ * @author simon
+ *
+ */
+public class PrunerTest {
+
+    /**
+     * Seen once each, the successors of 'a' are all forgotten for rarity at
+     * a minimum count of two, though 'a' itself, seen three times, is not.
+     */
+    private static final String RARESUCCESSORS =
+            "a b c . a d e . a f g . x y z . x y z . x y z . x y z .";
+
+    /**
+     * @param text a text.
+     * @param tupleLength the tuple length to digest it to.
+     * @param pruner the pruner to prune it with.
+     * @return its rules, pruned and frozen.
+     * @throws IOException should it somehow be impossible to read a string.
+     */
+    private static FrozenRuleTree pruned(String text, int tupleLength,
+            Pruner pruner) throws IOException {
+        final Vocabulary vocabulary = new Vocabulary();
+
+        return pruner.freeze(Texts.digest(text, tupleLength, vocabulary),
+                vocabulary, tupleLength);
+    }
+
+    /**
+     * Fail unless every node of these rules above the successors of windows
+     * has successors.
+     *
+     * @param rules the rules to check.
+     * @param node the number of a node.
+     * @param depth its depth; the root is at depth zero.
+     */
+    private static void assertReaches(FrozenRuleTree rules, long node,
+            int depth) {
+        if (depth <= rules.getTupleLength()) {
+            assertTrue(String.format("node %d, at depth %d, is a dead end",
+                    node, depth), rules.hasSuccessors(node));
+            for (int i = 0; i < rules.getSuccessorCount(node); i++) {
+                assertReaches(rules, rules.getSuccessor(node, i), depth + 1);
+            }
+        }
+    }
+
+    @Test
+    public void minCountKeepsTupleLength() throws IOException {
+        final FrozenRuleTree rules = pruned(RARESUCCESSORS, 2, new Pruner(2,
+                Pruner.UNLIMITED, Pruner.UNLIMITED, Pruner.UNBOUNDED));
+
+        assertEquals(2, rules.getTupleLength());
+        assertReaches(rules, Rules.ROOT, 0);
+        assertEquals(Rules.NOTFOUND, rules.match(Texts.window(rules, "a",
+                "b")));
+    }
+
+    @Test
+    public void minCountKeepsTupleLengthWhateverComesFirst()
+            throws IOException {
+        final FrozenRuleTree rules = pruned("q r s . " + RARESUCCESSORS, 2,
+                new Pruner(2, Pruner.UNLIMITED, Pruner.UNLIMITED,
+                        Pruner.UNBOUNDED));
+
+        assertEquals(2, rules.getTupleLength());
+        assertReaches(rules, Rules.ROOT, 0);
+    }
+
+    @Test
+    public void minCountLeavesRulesToComposeFrom() throws IOException {
+        final FrozenRuleTree rules = pruned(RARESUCCESSORS, 2, new Pruner(2,
+                Pruner.UNLIMITED, Pruner.UNLIMITED, Pruner.UNBOUNDED));
+        final WordSequence composed = new Composer(new Random(1), false)
+                .compose(rules, 10);
+
+        assertNotNull(composed);
+        assertTrue(composed.size() >= 10);
+    }
+
+    @Test
+    public void maxSuccessorsKeepsBranchesWhichReach() throws IOException {
+        /* 'a' is followed most often by 'b', but never by the same word
+         * twice after that, so only 'c' survives a minimum count of two */
+        final FrozenRuleTree rules = pruned(
+                "a b x . a b y . a b z . a c d . a c d . ", 2, new Pruner(2, 1,
+                        Pruner.UNLIMITED, Pruner.UNBOUNDED));
+
+        assertReaches(rules, Rules.ROOT, 0);
+        assertTrue(rules.match(Texts.window(rules, "a", "c"))
+                != Rules.NOTFOUND);
+    }
+
+    @Test
+    public void budgetPrunesToBranchesWhichReach() throws IOException {
+        /* a sentence common enough to outlast the rare ones around it */
+        final StringBuilder text = new StringBuilder();
+        final Random random = new Random(20);
+
+        for (int i = 0; i < 500; i++) {
+            text.append("the cat sat on the mat . ");
+            for (int j = 0; j < 6; j++) {
+                text.append("w").append(random.nextInt(300)).append(' ');
+            }
+            text.append(". ");
+        }
+
+        final FrozenRuleTree rules = pruned(text.toString(), 3, new Pruner(0,
+                Pruner.UNLIMITED, Pruner.UNLIMITED, 200 * Pruner.NODESIZE));
+
+        assertTrue(rules.getNodeCount() <= 200);
+        assertReaches(rules, Rules.ROOT, 0);
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Requests to a server running on the loopback interface, and what it
+ * answers, especially when things go wrong.
+ *
+ * @author simon
+ *
+ */
+public class ServerTest {
+
+    /**
+     * The text the server starts knowing.
+     */
+    private static final String TEXT =
+            "the cat sat on the mat . the dog sat on the cat . "
+            + "the mat sat on the dog . ";
+    /**
+     * The server under test.
+     */
+    private Server server;
+    /**
+     * The port on which it answers.
+     */
+    private int port;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new Server(Collections.singletonList(Texts.rules(TEXT, 2)),
+                false);
+        port = server.start(0);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    /**
+     * @param in a stream.
+     * @return everything on it, as UTF-8 text.
+     * @throws IOException if it cannot be read.
+     */
+    private static String read(InputStream in) throws IOException {
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+
+        for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+            result.write(buffer, 0, n);
+        }
+
+        return new String(result.toByteArray(), Vocabulary.UTF8);
+    }
+
+    /**
+     * @param path a path, with any query.
+     * @param body the body to POST, or null to GET.
+     * @return the status of the response.
+     * @throws IOException if the server cannot be reached.
+     */
+    private int status(String path, String body) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(
+                "http", "localhost", port, path).openConnection();
+
+        if (body != null) {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.getBytes(Vocabulary.UTF8));
+            }
+        }
+
+        final int result = connection.getResponseCode();
+        connection.disconnect();
+
+        return result;
+    }
+
+    /**
+     * @param path a path, with any query, to GET.
+     * @return the body of the response.
+     * @throws IOException if the server cannot be reached, or the response
+     * is not a success.
+     */
+    private String get(String path) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(
+                "http", "localhost", port, path).openConnection();
+
+        try (InputStream in = connection.getInputStream()) {
+            return read(in);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Test
+    public void generates() throws IOException {
+        assertEquals(200, status(Server.PATH + "?length=20&seed=1", null));
+    }
+
+    @Test
+    public void unseededTextIsSeededFromTheServer() throws IOException {
+        final String[] texts = new String[2];
+
+        for (int i = 0; i < texts.length; i++) {
+            server.stop(0);
+            server = new Server(Collections.singletonList(Texts.rules(TEXT,
+                    2)), new Random(7), false);
+            port = server.start(0);
+            texts[i] = get(Server.PATH + "?length=200");
+        }
+
+        assertEquals(texts[0], texts[1]);
+    }
+
+    @Test
+    public void marksTextCutShort() throws IOException {
+        /* a thousand tokens cannot be had in ten steps */
+        final String body = get(Server.PATH + "?length=1000&seed=1&steps=10");
+
+        assertTrue(body, body.endsWith(Server.CUTSHORT + Writer.NEWLINE));
+    }
+
+    @Test
+    public void leavesTextInTimeUnmarked() throws IOException {
+        final String body = get(Server.PATH
+                + "?length=1000&seed=1&within=60000");
+
+        assertFalse(body, body.contains(Server.CUTSHORT));
+    }
+
+    @Test
+    public void learns() throws IOException {
+        assertEquals(200, status(Server.LEARNPATH, "a bird sat on the mat ."));
+    }
+
+    @Test
+    public void refusesWhatIsNotANumber() throws IOException {
+        assertEquals(400, status(Server.PATH + "?length=lots", null));
+        assertEquals(400, status(Server.LEARNPATH + "?tuple=two", "the ."));
+    }
+
+    @Test
+    public void answersWhenTheTextToLearnIsCutOff() throws IOException {
+        /* the body is promised longer than it is, so that reading it fails */
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(),
+                port)) {
+            final OutputStream out = socket.getOutputStream();
+
+            socket.setSoTimeout(10000);
+            out.write(("POST " + Server.LEARNPATH + " HTTP/1.1\r\n"
+                    + "Host: localhost\r\nContent-Length: 1000\r\n\r\n"
+                    + "the cat sat").getBytes(Vocabulary.UTF8));
+            out.flush();
+            socket.shutdownOutput();
+
+            final String response = read(socket.getInputStream());
+
+            assertTrue(response, response.startsWith("HTTP/1.1 500"));
+        }
+    }
+}
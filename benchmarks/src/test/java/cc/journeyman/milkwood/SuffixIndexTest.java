@@ -0,0 +1,268 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import org.junit.Test;
+
+/**
+ * The rules a suffix index gives at any tuple length must be those of a rule
+ * tree digested from the same text to that tuple length: every window has
+ * the same successors, observed the same number of times.
+ *
+ * @author simon
+ *
+ */
+public class SuffixIndexTest {
+
+    /**
+     * Documents each short enough that a window near its end would, were
+     * documents not kept apart, run on into the next.
+     */
+    private static final String[] DOCUMENTS = {
+        "the cat sat on the mat . ",
+        "the mat sat on the cat . the cat sat . ",
+        "on the mat the cat sat on the dog . ",
+    };
+
+    /**
+     * Gather the successors of every window of these rules, with the number
+     * of times each was observed: as a rule tree records it, as the count of
+     * the successor; or, for a suffix index, as it is found in the text.
+     * Either way, no word may succeed a node twice.
+     *
+     * @param rules the rules.
+     * @param observed for a suffix index, the number of times each sequence
+     * is found in the text, keyed by its path; for a rule tree, null.
+     * @param node the number of a node.
+     * @param path the identifiers of the words from the root to that node.
+     * @param into a map from each window to a map from each word which
+     * succeeds it to the number of times it was observed to.
+     */
+    private static void windows(Rules rules, Map<String, Integer> observed,
+            long node, String path, Map<String, Map<Integer, Integer>> into) {
+        final Map<Integer, Integer> counts = new TreeMap<>();
+        final Map<Integer, Long> successors = new TreeMap<>();
+
+        for (int i = 0; i < rules.getSuccessorCount(node); i++) {
+            final long successor = rules.getSuccessor(node, i);
+            final int word = rules.getWord(successor);
+
+            assertNull(counts.put(word, observed == null
+                    ? ((FrozenRuleTree) rules).getCount(successor)
+                    : observed.get(path + " " + word)));
+            successors.put(word, successor);
+        }
+
+        if (path.split(" ").length > rules.getTupleLength()) {
+            if (!counts.isEmpty()) {
+                into.put(path, counts);
+            }
+        } else {
+            for (Map.Entry<Integer, Long> entry : successors.entrySet()) {
+                windows(rules, observed, entry.getValue(), path + " "
+                        + entry.getKey(), into);
+            }
+        }
+    }
+
+    /**
+     * @param rules some rules.
+     * @param observed as for {@link #windows(Rules, Map, long, String, Map)}.
+     * @return the successors of every window of them, with their counts.
+     */
+    private static Map<String, Map<Integer, Integer>> windows(Rules rules,
+            Map<String, Integer> observed) {
+        final Map<String, Map<Integer, Integer>> result = new TreeMap<>();
+
+        windows(rules, observed, Rules.ROOT, "", result);
+
+        return result;
+    }
+
+    /**
+     * @param tokens tokens, documents separated by the root magic token.
+     * @param longest the length of the longest sequences to count.
+     * @return the number of times each sequence of up to that many tokens
+     * is found within a document, keyed by path, as
+     * {@link #windows(Rules, Map, long, String, Map)} makes them.
+     */
+    private static Map<String, Integer> observed(int[] tokens, int longest) {
+        final Map<String, Integer> result = new HashMap<>();
+
+        for (int start = 0; start < tokens.length; start++) {
+            String path = "";
+
+            for (int i = start; i < Math.min(start + longest, tokens.length)
+                    && tokens[i] != Vocabulary.ROOT; i++) {
+                final Integer count;
+
+                path = path + " " + tokens[i];
+                count = result.get(path);
+                result.put(path, count == null ? 1 : count + 1);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Fail unless the index of these tokens gives the same windows, with the
+     * same successors and counts, as this tree, at this tuple length.
+     *
+     * @param vocabulary the vocabulary of both.
+     * @param tokens the tokens, documents separated by the root magic token.
+     * @param root the root of their rule tree, at this tuple length.
+     * @param tupleLength the tuple length.
+     */
+    private static void assertSameRules(Vocabulary vocabulary, int[] tokens,
+            RuleTreeNode root, int tupleLength) {
+        final Map<String, Map<Integer, Integer>> expected = windows(root
+                .freeze(vocabulary, tupleLength), null);
+        final Map<String, Map<Integer, Integer>> actual = windows(
+                new SuffixIndex(vocabulary, tokens).atOrder(tupleLength),
+                observed(tokens, tupleLength + 1));
+
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * @param in a stream of text.
+     * @param vocabulary the vocabulary into which to intern its words.
+     * @return the identifiers of its tokens, followed by the root magic
+     * token.
+     * @throws IOException if it cannot be read.
+     */
+    private static int[] tokenise(InputStream in, Vocabulary vocabulary)
+            throws IOException {
+        return new Corpus(in).tokenise(vocabulary);
+    }
+
+    /**
+     * @param text a text.
+     * @return a stream of it.
+     */
+    private static InputStream stream(String text) {
+        return new ByteArrayInputStream(text.getBytes(Vocabulary.UTF8));
+    }
+
+    @Test
+    public void indexGivesTheRulesOfATree() throws IOException {
+        for (int tupleLength = 1; tupleLength <= 3; tupleLength++) {
+            final Vocabulary vocabulary = new Vocabulary();
+            final int[] tokens;
+            final RuleTreeNode root = new RuleTreeNode();
+
+            try (InputStream in = new FileInputStream(Corpora.file(
+                    Corpora.UNDERMILKWOOD))) {
+                tokens = tokenise(in, vocabulary);
+            }
+            try (InputStream in = new FileInputStream(Corpora.file(
+                    Corpora.UNDERMILKWOOD))) {
+                new Digester(vocabulary).digest(in, tupleLength, root);
+            }
+
+            assertSameRules(vocabulary, tokens, root, tupleLength);
+        }
+    }
+
+    @Test
+    public void noWindowSpansTwoDocuments() throws IOException {
+        for (int tupleLength = 1; tupleLength <= 3; tupleLength++) {
+            final Vocabulary vocabulary = new Vocabulary();
+            final RuleTreeNode root = new RuleTreeNode();
+            int[] tokens = new int[0];
+
+            for (String document : DOCUMENTS) {
+                final int[] more = tokenise(stream(document), vocabulary);
+                final int size = tokens.length;
+
+                tokens = Arrays.copyOf(tokens, size + more.length);
+                System.arraycopy(more, 0, tokens, size, more.length);
+                new Digester(vocabulary).digest(stream(document),
+                        tupleLength, root);
+            }
+
+            assertSameRules(vocabulary, tokens, root, tupleLength);
+        }
+    }
+
+    @Test
+    public void drawsSuccessorsByRunLength() throws IOException {
+        final Vocabulary vocabulary = new Vocabulary();
+        final Rules rules = new SuffixIndex(vocabulary, tokenise(stream(
+                "a b . a b . a b . a c . "), vocabulary)).atOrder(1);
+        final long node = rules.match(Texts.window(rules, "a"));
+        final Random random = new Random(11);
+        final int draws = 10000;
+        int b = 0;
+
+        assertEquals(2, rules.getSuccessorCount(node));
+        for (int i = 0; i < draws; i++) {
+            if (rules.getWord(rules.getRule(node, random)) == vocabulary
+                    .getId("b")) {
+                b++;
+            }
+        }
+
+        /* b is observed after a three times as often as c is */
+        assertEquals(0.75, (double) b / draws, 0.02);
+    }
+
+    @Test
+    public void viewsABigIndexAtALongTupleLength() {
+        /* more tokens, times the tuple length plus two, than an int holds */
+        final int tupleLength = 1000;
+        final int[] tokens = new int[Integer.MAX_VALUE / (tupleLength + 2)
+                + tupleLength];
+        final Vocabulary vocabulary = new Vocabulary();
+        final Random random = new Random(5);
+
+        for (int i = 0; i < 1000; i++) {
+            vocabulary.intern("w" + i);
+        }
+        for (int i = 0; i < tokens.length - 1; i++) {
+            tokens[i] = 1 + random.nextInt(vocabulary.size() - 1);
+        }
+        tokens[tokens.length - 1] = Vocabulary.ROOT;
+        /* a window near the end, which starts with the greatest word over
+         * and over, so that its suffix sorts last, and its number is big */
+        final int from = tokens.length - tupleLength - 2;
+        for (int i = from; i < from + 5; i++) {
+            tokens[i] = vocabulary.size() - 1;
+        }
+
+        final Rules rules = new SuffixIndex(vocabulary, tokens).atOrder(
+                tupleLength);
+        final Window window = new Window(tupleLength);
+
+        for (int i = from; i < from + tupleLength; i++) {
+            window.shift(tokens[i]);
+        }
+        final long node = rules.match(window);
+
+        assertTrue(node > Integer.MAX_VALUE);
+        assertEquals(tokens[from + tupleLength - 1], rules.getWord(node));
+        assertEquals(1, rules.getSuccessorCount(node));
+        assertEquals(tokens[from + tupleLength], rules.getWord(rules.getRule(
+                node, random)));
+    }
+}
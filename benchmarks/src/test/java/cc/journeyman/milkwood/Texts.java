@@ -0,0 +1,131 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Little texts for the tests to digest, held as strings rather than files,
+ * so that each test shows exactly what it digests.
+ *
+ * @author simon
+ *
+ */
+final class Texts {
+
+    private Texts() {
+    }
+
+    /**
+     * @param text a text.
+     * @param tupleLength the tuple length to digest it to.
+     * @param vocabulary the vocabulary into which to intern its words.
+     * @return the root of the tree it digests into.
+     * @throws IOException should it somehow be impossible to read a string.
+     */
+    static RuleTreeNode digest(String text, int tupleLength,
+            Vocabulary vocabulary) throws IOException {
+        final RuleTreeNode result = new RuleTreeNode();
+
+        new Digester(vocabulary).digest(new ByteArrayInputStream(text
+                .getBytes(Vocabulary.UTF8)), tupleLength, result);
+
+        return result;
+    }
+
+    /**
+     * @param text a text.
+     * @param tupleLength the tuple length to digest it to.
+     * @return its rules, frozen.
+     * @throws IOException should it somehow be impossible to read a string.
+     */
+    static FrozenRuleTree rules(String text, int tupleLength)
+            throws IOException {
+        final Vocabulary vocabulary = new Vocabulary();
+
+        return digest(text, tupleLength, vocabulary).freeze(vocabulary,
+                tupleLength);
+    }
+
+    /**
+     * @param rules some rules.
+     * @param words words, which must be in their vocabulary.
+     * @return a window holding those words, oldest first.
+     */
+    static Window window(Rules rules, String... words) {
+        final Window result = new Window(words.length);
+
+        for (String word : words) {
+            result.shift(rules.getVocabulary().getId(word));
+        }
+
+        return result;
+    }
+
+    /**
+     * @param rules some rules.
+     * @return every node of them, one to a line, with its word, count, reach
+     * and first successor; and then every word of their vocabulary, in order
+     * of identifier. Trees which are node-for-node identical, with the same
+     * vocabulary, describe alike.
+     */
+    static String describe(FrozenRuleTree rules) {
+        final StringBuilder result = new StringBuilder();
+        final Vocabulary vocabulary = rules.getVocabulary();
+
+        result.append(rules.getTupleLength()).append('\n');
+        for (int node = 0; node < rules.getNodeCount(); node++) {
+            result.append(node).append(' ').append(rules.getWord(node))
+                    .append(' ').append(rules.getCount(node)).append(' ')
+                    .append(rules.getReach(node)).append(' ')
+                    .append(rules.hasSuccessors(node) ? rules.getSuccessor(
+                            node, 0) : Rules.NOTFOUND).append('\n');
+        }
+        for (int id = 0; id < vocabulary.size(); id++) {
+            result.append(vocabulary.getWord(id)).append('\n');
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * @param rules some rules.
+     * @return the words from the root to every node of them, spelled out,
+     * each with the count of the node, in order. Trees of the same rules
+     * spell alike, whatever identifiers their vocabularies gave the words.
+     */
+    static List<String> spell(FrozenRuleTree rules) {
+        final List<String> result = new ArrayList<>();
+
+        spell(rules, Rules.ROOT, "", result);
+        Collections.sort(result);
+
+        return result;
+    }
+
+    /**
+     * @param rules some rules.
+     * @param node the number of a node.
+     * @param path the words from the root to that node.
+     * @param into the list to add the paths below it to.
+     */
+    private static void spell(FrozenRuleTree rules, long node, String path,
+            List<String> into) {
+        for (int i = 0; i < rules.getSuccessorCount(node); i++) {
+            final long successor = rules.getSuccessor(node, i);
+            final String spelled = path + rules.getVocabulary().getWord(rules
+                    .getWord(successor)) + " ";
+
+            into.add(spelled + rules.getCount(successor));
+            spell(rules, successor, spelled, into);
+        }
+    }
+}
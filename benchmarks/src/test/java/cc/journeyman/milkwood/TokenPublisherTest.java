@@ -0,0 +1,241 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * A publisher must send each subscriber the words of a document, no more of
+ * them than it has asked for, and the same words however it asks for them.
+ *
+ * @author simon
+ *
+ */
+public class TokenPublisherTest {
+
+    /**
+     * The number of tokens composed for each subscriber.
+     */
+    private static final int LENGTH = 200;
+    /**
+     * Runs each task at once, on the thread which asks, so that what a
+     * request sends has been sent when it returns.
+     */
+    private static final Executor INLINE = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            task.run();
+        }
+    };
+    /**
+     * The rules to compose from.
+     */
+    private static FrozenRuleTree rules;
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        rules = Corpora.rules(Corpora.file(Corpora.UNDERMILKWOOD), 2);
+    }
+
+    /**
+     * A subscriber which records what it is sent, and asks for words in
+     * batches of a given size whenever it has all it last asked for.
+     */
+    private static class Recorder implements TokenPublisher.Subscriber {
+
+        /**
+         * The number of words to ask for at a time, or zero to ask for none
+         * of my own accord.
+         */
+        private final long batch;
+        /**
+         * The words sent.
+         */
+        final List<String> words = new ArrayList<>();
+        /**
+         * Counted down when the document is ended, well or badly.
+         */
+        final CountDownLatch ended = new CountDownLatch(1);
+        /**
+         * The subscription.
+         */
+        TokenPublisher.Subscription subscription;
+        /**
+         * The number of words asked for and not yet sent.
+         */
+        long outstanding = 0;
+        /**
+         * The number of words sent which were not asked for.
+         */
+        int unasked = 0;
+        /**
+         * The number of times the document was ended.
+         */
+        int endings = 0;
+        /**
+         * The error the document ended with, if any.
+         */
+        Throwable error = null;
+
+        /**
+         * @param batch the number of words to ask for at a time, or zero to
+         * ask for none of my own accord.
+         */
+        Recorder(long batch) {
+            this.batch = batch;
+        }
+
+        /**
+         * @param n the number of words to ask for.
+         */
+        void request(long n) {
+            if (n > 0) {
+                outstanding = outstanding + n < 0 ? Long.MAX_VALUE
+                        : outstanding + n;
+            }
+            subscription.request(n);
+        }
+
+        @Override
+        public void onSubscribe(TokenPublisher.Subscription subscription) {
+            this.subscription = subscription;
+            if (batch > 0) {
+                this.request(batch);
+            }
+        }
+
+        @Override
+        public void onNext(String word) {
+            words.add(word);
+            if (outstanding == 0) {
+                unasked++;
+            } else {
+                outstanding--;
+            }
+            if (batch > 0 && outstanding == 0) {
+                this.request(batch);
+            }
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            this.error = error;
+            endings++;
+            ended.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            endings++;
+            ended.countDown();
+        }
+    }
+
+    /**
+     * @param seed the seed of the publisher.
+     * @param executor the executor on which to compose.
+     * @param subscriber the subscriber to subscribe.
+     */
+    private static void subscribe(long seed, Executor executor,
+            Recorder subscriber) {
+        new TokenPublisher(rules, LENGTH, new Random(seed), executor, false)
+                .subscribe(subscriber);
+    }
+
+    @Test
+    public void sendsTheSameWordsHoweverAskedFor() throws InterruptedException {
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        try {
+            List<String> expected = null;
+
+            for (long batch : new long[] {Long.MAX_VALUE, 1, 7}) {
+                final Recorder subscriber = new Recorder(batch);
+
+                subscribe(11, executor, subscriber);
+                assertTrue(subscriber.ended.await(60, TimeUnit.SECONDS));
+                assertNull(subscriber.error);
+                assertEquals(1, subscriber.endings);
+                assertEquals(0, subscriber.unasked);
+                assertFalse(subscriber.words.isEmpty());
+                if (expected == null) {
+                    expected = subscriber.words;
+                } else {
+                    assertEquals("in batches of " + batch, expected,
+                            subscriber.words);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void sendsNoMoreThanAskedFor() {
+        final Recorder subscriber = new Recorder(0);
+
+        subscribe(12, INLINE, subscriber);
+        subscriber.request(10);
+        assertEquals(10, subscriber.words.size());
+        subscriber.request(5);
+        assertEquals(15, subscriber.words.size());
+        assertEquals(0, subscriber.endings);
+    }
+
+    @Test
+    public void sendsNothingAfterCancelling() {
+        final Recorder subscriber = new Recorder(0);
+
+        subscribe(13, INLINE, subscriber);
+        subscriber.request(5);
+        subscriber.subscription.cancel();
+        subscriber.request(5);
+        assertEquals(5, subscriber.words.size());
+        assertEquals(0, subscriber.endings);
+    }
+
+    @Test
+    public void reportsRequestsWhichAreNotPositive() {
+        final Recorder subscriber = new Recorder(0);
+
+        subscribe(14, INLINE, subscriber);
+        subscriber.request(-1);
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+        subscriber.request(5);
+        assertTrue(subscriber.words.isEmpty());
+        assertEquals(1, subscriber.endings);
+    }
+
+    @Test
+    public void subscribersGetDocumentsOfTheirOwn() {
+        final TokenPublisher publisher = new TokenPublisher(rules, LENGTH,
+                new Random(15), INLINE, false);
+        final Recorder first = new Recorder(Long.MAX_VALUE);
+        final Recorder second = new Recorder(Long.MAX_VALUE);
+
+        publisher.subscribe(first);
+        publisher.subscribe(second);
+        assertEquals(1, first.endings);
+        assertEquals(1, second.endings);
+        assertFalse(first.words.equals(second.words));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * A dump of a frozen tree, unlimited, must be what the rule tree it was
+ * frozen from prints; and must show only as much as it is limited to.
+ *
+ * @author simon
+ *
+ */
+public class TreeDumperTest {
+
+    /**
+     * The real corpus.
+     */
+    private static File corpus;
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        corpus = Corpora.file(Corpora.UNDERMILKWOOD);
+    }
+
+    /**
+     * @param spec a dump specification.
+     * @param rules some rules.
+     * @return those rules, dumped to that specification.
+     * @throws IOException should it somehow be impossible to write to an
+     * array.
+     */
+    private static String dump(String spec, FrozenRuleTree rules)
+            throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        TreeDumper.parse(spec).dump(rules, out);
+
+        return new String(out.toByteArray(), Vocabulary.UTF8);
+    }
+
+    /**
+     * @param text some text.
+     * @return the number of lines in it.
+     */
+    private static int lines(String text) {
+        return text.isEmpty() ? 0 : text.split("\n", -1).length - 1;
+    }
+
+    @Test
+    public void textIsWhatTheTreePrints() throws IOException {
+        for (int tupleLength = 1; tupleLength <= 4; tupleLength++) {
+            final Vocabulary vocabulary = new Vocabulary();
+            final RuleTreeNode root = Corpora.digest(corpus, tupleLength,
+                    vocabulary);
+            final String printed = root.toString(vocabulary);
+
+            assertEquals(printed, dump("text", root.freeze(vocabulary,
+                    tupleLength)));
+        }
+    }
+
+    @Test
+    public void jsonHasALineForEachNode() throws IOException {
+        final FrozenRuleTree rules = Corpora.rules(corpus, 2);
+        final String json = dump("json", rules);
+
+        assertEquals(rules.getNodeCount(), lines(json));
+        assertTrue(json, json.startsWith("{"));
+    }
+
+    @Test
+    public void depthIsLimited() throws IOException {
+        final FrozenRuleTree rules = Corpora.rules(corpus, 2);
+
+        assertEquals(1 + rules.getSuccessorCount(Rules.ROOT), lines(dump(
+                "json:1", rules)));
+    }
+
+    @Test
+    public void successorsAreLimited() throws IOException {
+        final FrozenRuleTree rules = Corpora.rules(corpus, 2);
+
+        /* the root, and one successor at each depth below it */
+        assertEquals(rules.getTupleLength() + 2, lines(dump(
+                "json:" + TreeDumper.UNLIMITED + ":1", rules)));
+    }
+}
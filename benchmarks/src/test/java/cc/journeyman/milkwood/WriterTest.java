@@ -0,0 +1,79 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Writers of one vocabulary must share one table of its orthography, made
+ * once, rather than each working it out afresh; and must still write tokens
+ * the vocabulary learns after that table was made.
+ *
+ * @author simon
+ *
+ */
+public class WriterTest {
+
+    /**
+     * @param vocabulary a vocabulary.
+     * @param words words, which are interned into it.
+     * @return those words, written as a sequence.
+     * @throws IOException should it somehow be impossible to write to an
+     * array.
+     */
+    private static String write(Vocabulary vocabulary, String... words)
+            throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final WordSequence sequence = new WordSequence();
+
+        for (String word : words) {
+            sequence.add(vocabulary.intern(word));
+        }
+        try (Writer scrivenor = new Writer(out, vocabulary, new Random(0),
+                false)) {
+            scrivenor.writeSequence(sequence);
+        }
+
+        /* paragraphs fall where the writer's generator says */
+        return new String(out.toByteArray(), Vocabulary.UTF8).trim()
+                .replaceAll("\\s+", " ");
+    }
+
+    @Test
+    public void writersShareTheOrthography() throws IOException {
+        final Vocabulary vocabulary = new Vocabulary();
+
+        assertEquals("The cat sat, ok.", write(vocabulary, "the", "cat", "sat",
+                ",", "ok."));
+        final Orthography shared = vocabulary.getOrthography();
+
+        assertEquals("Cat sat, the cat ok.", write(vocabulary, "cat", "sat", ",",
+                "the", "cat", "ok."));
+        assertSame(shared, vocabulary.getOrthography());
+        assertSame(shared, new Vocabulary(vocabulary).getOrthography());
+    }
+
+    @Test
+    public void writesWordsLearnedSince() throws IOException {
+        final Vocabulary vocabulary = new Vocabulary();
+
+        write(vocabulary, "the", "cat", ".");
+        final Orthography before = vocabulary.getOrthography();
+
+        assertEquals("Dog the cat! The dog.", write(vocabulary, "dog", "the",
+                "cat", "!", "the", "dog", "."));
+        assertEquals(vocabulary.size(), vocabulary.getOrthography().size());
+        assertEquals(before.getCapitalLength(1), vocabulary.getOrthography()
+                .getCapitalLength(1));
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+/**
+ * A limit on the effort one composition may spend: a time, from when I am
+ * made, and a number of steps of its search, either or both of which may be
+ * unlimited. A search which backtracks may take a very long time over rules
+ * which are sparse, or with an unlucky seed; given a budget, a
+ * {@link Composition} which exhausts it stops, with whatever it has composed
+ * up to its last complete sentence, so that however unlucky it is the time
+ * it takes is bounded.
+ * <p>
+ * Since the clock starts when I am made, and the steps I count are spent, a
+ * budget is good for one composition only, on one thread; except for
+ * {@link #NONE}, which spends nothing and may be shared by all.</p>
+ *
+ * @author simon
+ *
+ */
+public class Budget {
+
+    /**
+     * The limit which is no limit, of either time or steps.
+     */
+    public static final long UNLIMITED = Long.MAX_VALUE;
+    /**
+     * The budget which is no budget.
+     */
+    public static final Budget NONE = new Budget(UNLIMITED, UNLIMITED);
+    /**
+     * The number of steps between looks at the clock, which is dearer than a
+     * step's bookkeeping; a power of two.
+     */
+    private static final int CLOCKEVERY = 16;
+    /**
+     * Whether there is a limit on time.
+     */
+    private final boolean timed;
+    /**
+     * When time runs out, by System.nanoTime(), if there is a limit on it.
+     */
+    private final long deadline;
+    /**
+     * The most steps which may be taken.
+     */
+    private final long maxSteps;
+    /**
+     * The number of steps taken so far.
+     */
+    private long steps = 0;
+    /**
+     * True once either time or steps have run out.
+     */
+    private boolean exhausted = false;
+
+    /**
+     * Start a budget, whose time runs from now.
+     *
+     * @param millis the most time which may be spent, in milliseconds, or
+     * UNLIMITED.
+     * @param maxSteps the most steps which may be taken, or UNLIMITED.
+     */
+    public Budget(long millis, long maxSteps) {
+        this.timed = millis != UNLIMITED;
+        /* no more than a century or so, lest the deadline overflow */
+        this.deadline = timed ? System.nanoTime() + Math.min(millis,
+                Long.MAX_VALUE / 4000000) * 1000000 : 0;
+        this.maxSteps = maxSteps;
+    }
+
+    /**
+     * Spend a step, if there is anything left to spend.
+     *
+     * @return true if the step may be taken, false if the budget is
+     * exhausted.
+     */
+    boolean spend() {
+        if (!exhausted && this != NONE) {
+            if (steps >= maxSteps) {
+                exhausted = true;
+            } else if (timed && (steps & (CLOCKEVERY - 1)) == 0
+                    && System.nanoTime() - deadline >= 0) {
+                exhausted = true;
+            } else {
+                steps++;
+            }
+        }
+
+        return !exhausted;
+    }
+
+    /**
+     * @return true if time or steps have run out.
+     */
+    public boolean isExhausted() {
+        return exhausted;
+    }
+
+    /**
+     * @return the number of steps taken so far.
+     */
+    public long getSteps() {
+        return steps;
+    }
+}
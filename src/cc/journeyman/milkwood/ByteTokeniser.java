@@ -0,0 +1,355 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * A tokeniser which scans UTF-8 text as bytes, straight out of a buffer, and
+ * hands back token identifiers from a vocabulary rather than strings. Files
+ * are memory mapped, a window at a time, so there is no copying, no decoding
+ * of characters and no synchronised reader in the way; other channels are
+ * read into a buffer of my own. A string is only made of a token the first
+ * time it is seen, or if it is a word with non-ASCII letters in it which has
+ * to be lower-cased.
+ * <p>
+ * The classes of characters are exactly those of the StreamTokenizer based
+ * {@link Tokeniser}, which this replaces:</p>
+ * <ul>
+ * <li>control characters 8 to 15 and 28 to 32, quote marks, apostrophes,
+ * underscores and hyphens are whitespace;</li>
+ * <li>ASCII letters and digits, and every character above U+00FF, are word
+ * characters, and runs of them are words, lower-cased;</li>
+ * <li>everything else, including the Latin-1 characters U+0080 to U+00FF, is
+ * a token on its own.</li>
+ * </ul>
+ * <p>
+ * Since the only characters below U+0100 which UTF-8 spells with more than
+ * one byte are spelt with a lead byte of 0xC2 or 0xC3, all of this can be
+ * done a byte at a time: any other byte above 0x7F belongs to a word
+ * character.</p>
+ *
+ * @author simon
+ *
+ */
+public class ByteTokeniser {
+
+    /**
+     * The value returned when there are no more tokens.
+     */
+    public static final int EOF = -1;
+    /**
+     * The size of the window onto a file which is mapped at any one time.
+     */
+    public static final int WINDOW = 1 << 28;
+    /**
+     * The size of the buffer into which channels other than files are read.
+     */
+    public static final int BUFFERSIZE = 64 * 1024;
+    /**
+     * Character class of whitespace.
+     */
+    private static final byte WHITESPACE = 0;
+    /**
+     * Character class of word characters.
+     */
+    private static final byte WORD = 1;
+    /**
+     * Character class of characters which are tokens on their own.
+     */
+    private static final byte ORDINARY = 2;
+    /**
+     * The class of each ASCII character.
+     */
+    private static final byte[] CLASSES = new byte[128];
+
+    static {
+        for (int c = 0; c < 128; c++) {
+            if ((c >= 8 && c <= 15) || (c >= 28 && c <= 32) || c == '"'
+                    || c == '\'' || c == '_' || c == '-') {
+                CLASSES[c] = WHITESPACE;
+            } else if ((c >= '0' && c <= '9') || (c >= 'A' && c <= 'Z')
+                    || (c >= 'a' && c <= 'z')) {
+                CLASSES[c] = WORD;
+            } else {
+                CLASSES[c] = ORDINARY;
+            }
+        }
+    }
+    /**
+     * The vocabulary into which I intern the tokens I read.
+     */
+    private final Vocabulary vocabulary;
+    /**
+     * The channel I read from, or null if I read from a buffer I was given.
+     */
+    private final ReadableByteChannel channel;
+    /**
+     * Whether my channel is a file which I map, rather than read.
+     */
+    private final boolean mapped;
+    /**
+     * If I read from a file, the offset in it after the last byte I may
+     * read.
+     */
+    private final long end;
+    /**
+     * If I read from a file, the offset in it of the start of my buffer.
+     */
+    private long base;
+    /**
+     * The bytes I am scanning.
+     */
+    private ByteBuffer buffer;
+    /**
+     * The index in my buffer of the next byte to scan.
+     */
+    private int cursor = 0;
+    /**
+     * Whether a channel which is not a file has been read to its end.
+     */
+    private boolean drained = false;
+    /**
+     * Somewhere to copy, and lower-case, tokens while they are looked up.
+     */
+    private byte[] scratch = new byte[64];
+
+    /**
+     * Scan the bytes remaining in this buffer.
+     *
+     * @param buffer the buffer.
+     * @param vocabulary the vocabulary into which to intern tokens.
+     */
+    public ByteTokeniser(ByteBuffer buffer, Vocabulary vocabulary) {
+        this.vocabulary = vocabulary;
+        this.channel = null;
+        this.mapped = false;
+        this.end = 0;
+        this.buffer = buffer.slice();
+    }
+
+    /**
+     * Scan this region of this file, mapping it a window at a time.
+     *
+     * @param file a channel onto the file.
+     * @param from the offset in the file of the first byte to scan.
+     * @param to the offset in the file after the last byte to scan.
+     * @param vocabulary the vocabulary into which to intern tokens.
+     * @throws IOException if the file cannot be mapped.
+     */
+    public ByteTokeniser(FileChannel file, long from, long to,
+            Vocabulary vocabulary) throws IOException {
+        this.vocabulary = vocabulary;
+        this.channel = file;
+        this.mapped = true;
+        this.end = to;
+        this.base = from;
+        this.buffer = file.map(FileChannel.MapMode.READ_ONLY, from, Math.min(
+                to - from, WINDOW));
+    }
+
+    /**
+     * Scan everything which can be read from this channel.
+     *
+     * @param channel the channel.
+     * @param vocabulary the vocabulary into which to intern tokens.
+     * @throws IOException if the channel cannot be read.
+     */
+    public ByteTokeniser(ReadableByteChannel channel, Vocabulary vocabulary)
+            throws IOException {
+        this.vocabulary = vocabulary;
+        this.channel = channel;
+        this.mapped = false;
+        this.end = 0;
+        this.buffer = ByteBuffer.allocate(BUFFERSIZE);
+        this.buffer.limit(0);
+        this.refill(0);
+    }
+
+    /**
+     * @param b a byte of text encoded in ASCII or a superset of it.
+     * @return true if that byte is a character which I treat as whitespace.
+     */
+    public static boolean isWhitespace(byte b) {
+        return b >= 0 && CLASSES[b] == WHITESPACE;
+    }
+
+    /**
+     * @return the identifier of the next token, or EOF if there are no more.
+     * @throws IOException if the underlying file or channel cannot be read.
+     */
+    public int nextToken() throws IOException {
+        int result = EOF;
+
+        while (result == EOF
+                && (cursor < buffer.limit() || this.available(0, 1))) {
+            final byte b = buffer.get(cursor);
+
+            if (b >= 0) {
+                switch (CLASSES[b]) {
+                    case WHITESPACE:
+                        cursor++;
+                        break;
+                    case WORD:
+                        result = this.word();
+                        break;
+                    default:
+                        result = this.ordinary(1);
+                        break;
+                }
+            } else if (this.startsLatin1(0)) {
+                result = this.ordinary(2);
+            } else {
+                result = this.word();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @param offset an offset from the cursor, at which a byte is available.
+     * @return true if the byte there and the one after spell a character
+     * from U+0080 to U+00FF.
+     * @throws IOException if the underlying file or channel cannot be read.
+     */
+    private boolean startsLatin1(int offset) throws IOException {
+        final byte b = buffer.get(cursor + offset);
+
+        return (b == (byte) 0xC2 || b == (byte) 0xC3)
+                && this.available(offset, 2)
+                && (buffer.get(cursor + offset + 1) & 0xC0) == 0x80;
+    }
+
+    /**
+     * Make a token of the character of this many bytes at the cursor.
+     *
+     * @param length the number of bytes in the character.
+     * @return its identifier.
+     */
+    private int ordinary(int length) {
+        for (int i = 0; i < length; i++) {
+            scratch[i] = buffer.get(cursor + i);
+        }
+        cursor += length;
+
+        return vocabulary.intern(scratch, 0, length);
+    }
+
+    /**
+     * Make a token of the run of word characters starting at the cursor.
+     *
+     * @return its identifier.
+     * @throws IOException if the underlying file or channel cannot be read.
+     */
+    private int word() throws IOException {
+        boolean ascii = true;
+        int length = 0;
+
+        /* copy the word into scratch as we go, lower-casing ASCII letters */
+        while (cursor + length < buffer.limit() || this.available(length, 1)) {
+            final byte b = buffer.get(cursor + length);
+
+            if (b >= 0) {
+                if (CLASSES[b] != WORD) {
+                    break;
+                }
+            } else if (this.startsLatin1(length)) {
+                break;
+            } else {
+                ascii = false;
+            }
+            if (length == scratch.length) {
+                scratch = Arrays.copyOf(scratch, length * 2);
+            }
+            scratch[length++] = b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A'))
+                    : b;
+        }
+        cursor += length;
+
+        final int result;
+        if (ascii) {
+            result = vocabulary.intern(scratch, 0, length);
+        } else {
+            result = vocabulary.intern(new String(scratch, 0, length,
+                    Vocabulary.UTF8).toLowerCase());
+        }
+
+        return result;
+    }
+
+    /**
+     * Make sure this many bytes are in my buffer from this offset from the
+     * cursor, moving the buffer along over the underlying file or channel if
+     * need be. Moving keeps everything from the cursor onwards, so offsets
+     * from the cursor stay valid.
+     *
+     * @param offset an offset from the cursor.
+     * @param count a number of bytes.
+     * @return true if they are there, false if the input ends first.
+     * @throws IOException if the underlying file or channel cannot be read.
+     */
+    private boolean available(int offset, int count) throws IOException {
+        boolean result = cursor + offset + count <= buffer.limit();
+
+        while (!result && channel != null && this.refill(cursor)) {
+            result = cursor + offset + count <= buffer.limit();
+        }
+
+        return result;
+    }
+
+    /**
+     * Move my buffer along the underlying file or channel, keeping
+     * everything from this index onwards.
+     *
+     * @param keep an index into my buffer.
+     * @return true if there are more bytes in the buffer than there were.
+     * @throws IOException if the underlying file or channel cannot be read.
+     */
+    private boolean refill(int keep) throws IOException {
+        boolean result = false;
+
+        if (mapped) {
+            if (base + buffer.limit() < end) {
+                final long from = base + keep;
+                final long window = Math.min(end - from, Math.max(WINDOW,
+                        2L * (buffer.limit() - keep)));
+
+                buffer = ((FileChannel) channel).map(
+                        FileChannel.MapMode.READ_ONLY, from, window);
+                base = from;
+                cursor -= keep;
+                result = true;
+            }
+        } else if (!drained) {
+            if (keep == 0 && buffer.limit() == buffer.capacity()) {
+                /* a token longer than the buffer; make room */
+                final ByteBuffer bigger = ByteBuffer.allocate(buffer
+                        .capacity() * 2);
+
+                bigger.put(buffer);
+                buffer = bigger;
+            } else {
+                buffer.position(keep);
+                buffer.compact();
+            }
+            cursor -= keep;
+
+            final int read = channel.read(buffer);
+            drained = read < 0;
+            result = read > 0;
+            buffer.flip();
+        }
+
+        return result;
+    }
+}
@@ -1,10 +1,14 @@
 package cc.journeyman.milkwood;
 
-import java.util.Collection;
-import java.util.Collections;
+import java.io.IOException;
+import java.util.Random;
 
 /**
- * Composes text output based on a rule tree.
+ * Composes text output based on a rule tree. Each composer makes its choices
+ * from a random number generator of its own, so that any number of composers,
+ * each on its own thread, may compose from the same rule tree at once; and a
+ * composer given a generator with a known seed will compose the same output
+ * from the same rules every time.
  *
  * @author simon
  *
@@ -15,122 +19,131 @@ public class Composer {
      * Whether or not I am in debugging mode.
      */
     private final boolean debug;
+    /**
+     * The random number generator from which I make my choices.
+     */
+    private final Random random;
 
     /**
      *
      * @param debug Whether or not I am in debugging mode.
      */
     public Composer(boolean debug) {
+        this(new Random(), debug);
+    }
+
+    /**
+     *
+     * @param random the random number generator from which to make choices;
+     * not to be shared with any other thread.
+     * @param debug Whether or not I am in debugging mode.
+     */
+    public Composer(Random random, boolean debug) {
+        this.random = random;
         this.debug = debug;
     }
 
     /**
-     * Recursive, backtracking, output generator.
+     * Backtracking output generator. The search is iterative, on an explicit
+     * stack, so it is not limited by the depth of the thread's stack.
+     *
+     * @see Composition
      *
      * @param rules the rule set we're working to.
-     * @param length the number of tokens still to be output.
-     * @return if a successful path forward is found, that path, else null.
+     * @param length the number of tokens to be output after the preamble.
+     * @return if a successful path forward is found, the preamble followed by
+     * that path, else null.
      */
-    protected WordSequence compose(RuleTreeNode rules, int length) {
-        Window preamble = composePreamble(rules);
-        WordSequence result = new WordSequence();
-
-        /* composing the preamble will have ended with *ROOT* on top of the
-         * stack; get rid of it. */
-        preamble.pop();
-
-        Window copy = preamble.duplicate();
-        Collections.reverse(copy);
-        if (debug) {
-            System.err.println("Preamble: " + copy);
-        }
-
-        result.addAll(copy);
-
-        result.addAll(this.compose(preamble, rules, length));
-
-        return result;
+    protected WordSequence compose(Rules rules, int length) {
+        return this.compose(rules, length, Budget.NONE);
     }
 
     /**
-     * Recursively attempt to find sequences in the ruleset to append to what's
-     * been composed so far.
+     * Backtracking output generator, which gives up when its budget is
+     * exhausted, however unlucky the search.
+     *
+     * @see Composition
      *
-     * @param glanceBack the last few words output.
      * @param rules the rule set we're working to.
-     * @param length the number of tokens still to be output.
-     * @return if a successful path forward is found, that path, else null.
+     * @param length the number of tokens to be output after the preamble.
+     * @param budget the limit on the effort to spend; see whether it was
+     * exhausted to know whether the output was cut short.
+     * @return if a successful path forward is found, the preamble followed by
+     * that path; else, if the budget was exhausted first, the longest prefix
+     * of a path ending at a sentence end found so far, which may be empty;
+     * else null.
      */
-    private WordSequence compose(Window glanceBack, RuleTreeNode rules,
-            int length) {
+    protected WordSequence compose(Rules rules, int length, Budget budget) {
+        final Composition composition = new Composition(rules, length, false,
+                random, budget, debug);
         final WordSequence result;
 
-        if (debug) {
-            System.err.println(String.format("%d: %s", length, glanceBack));
+        while (composition.step()) {
+            /* keep going */
         }
 
-        /* are we there yet? */
-        if (length == 0) {
-            result = new WordSequence();
+        if (composition.succeeded()) {
+            result = composition.getResult();
+        } else if (composition.wasCutShort()) {
+            result = composition.getBestResult();
         } else {
-            /*
-             * are there any rules in this ruleset which matches the current
-             * sliding window? if so, then recurse; if not, then fail.
-             */
-            Collection<String> words = rules.match(glanceBack.duplicate());
-
-            if (words.isEmpty()) {
-                /* backtrack */
-                result = null;
-            } else {
-                result = tryOptions(words, glanceBack, rules, length);
-            }
+            result = null;
         }
+
         return result;
     }
 
     /**
-     * Try each of these candidates in turn, attempting to recurse.
+     * Streaming output generator: write each sentence to this writer as soon
+     * as it is committed, rather than holding the whole output until the
+     * search has finished. Store used is bounded by the longest sentence
+     * rather than by the length of the output. The output will stop at the
+     * end of the last sentence committed.
+     *
+     * @see Composition
      *
-     * @param candidates words which could potentially be added to the output.
-     * @param glanceBack the last few words output.
-     * @param allRules the rule set we're working to.
-     * @param length the number of tokens still to be output.
-     * @return if a successful path forward is found, that path, else null.
+     * @param rules the rule set we're working to.
+     * @param length the number of tokens to be output after the preamble.
+     * @param scrivenor the writer to write to.
+     * @return true if a path forward of the full length was found, false if
+     * the search gave up at the end of an earlier sentence.
+     * @throws IOException if it is impossible to write (e.g. file system full).
      */
-    private WordSequence tryOptions(Collection<String> candidates,
-            Window glanceBack, RuleTreeNode allRules, int length) {
-        WordSequence result = null;
-
-        for (String candidate : candidates) {
-            result = compose(new Window(glanceBack, candidate), allRules, length - 1);
-            if (result != null) {
-                /* by Jove, I think she's got it! */
-                result.push(candidate);
-                break;
-            }
-        }
-
-        return result;
+    protected boolean compose(Rules rules, int length,
+            Writer scrivenor) throws IOException {
+        return this.compose(rules, length, scrivenor, Budget.NONE);
     }
 
     /**
-     * Random walk of the rule tree to extract (from the root) a legal sequence
-     * of words the length of our tuple.
+     * Streaming output generator, which gives up when its budget is
+     * exhausted, having written every sentence committed by then.
      *
-     * @param rules the rule tree (fragment) to walk.
-     * @return a sequence of words.
+     * @see Composition
+     *
+     * @param rules the rule set we're working to.
+     * @param length the number of tokens to be output after the preamble.
+     * @param scrivenor the writer to write to.
+     * @param budget the limit on the effort to spend; see whether it was
+     * exhausted to know whether the output was cut short.
+     * @return true if a path forward of the full length was found, false if
+     * the search gave up, or ran out of budget, at the end of an earlier
+     * sentence.
+     * @throws IOException if it is impossible to write (e.g. file system full).
      */
-    private Window composePreamble(RuleTreeNode rules) {
-        final Window result;
-        final RuleTreeNode successor = rules.getRule();
+    protected boolean compose(Rules rules, int length, Writer scrivenor,
+            Budget budget) throws IOException {
+        final Composition composition = new Composition(rules, length, true,
+                random, budget, debug);
+        boolean more;
+
+        do {
+            more = composition.step();
+            while (composition.hasCommitted()) {
+                scrivenor.writeToken(composition.takeCommitted());
+            }
+        } while (more);
+        scrivenor.endSequence();
 
-        if (successor == null) {
-            result = new Window();
-        } else {
-            result = this.composePreamble(successor);
-            result.push(rules.getWord());
-        }
-        return result;
+        return composition.succeeded();
     }
 }
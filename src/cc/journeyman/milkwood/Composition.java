@@ -0,0 +1,678 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A single piece of output in the course of being composed: an iterative,
+ * backtracking, search for a path through a rule tree, carried out one step
+ * at a time on an explicit stack of frames rather than by recursion, so that
+ * the length of output is limited only by store.
+ * <p>
+ * The stack holds one frame for each token generated after the preamble. A
+ * frame records the node of the rule tree which matched the window at that
+ * point, whose successors are the candidates for the token; the candidate
+ * chosen by frequency from among those which reach far enough (see below),
+ * which is tried first; a random {@link Permutation} in
+ * which the remaining candidates are tried, should the first fail, drawn
+ * only then; and how many candidates have been tried so far. The frames are
+ * preallocated int arrays, so that a frame costs nothing to push or pop and
+ * holds on to no collections, and a step whose first candidate will do
+ * costs nothing for the others, however many there are.</p>
+ * <p>
+ * No candidate is ever tried whose reach (see {@link FrozenRuleTree}) is too
+ * short to generate all the tokens still wanted after it; so, if any output
+ * of the length wanted is possible at all, every candidate tried leads on to
+ * another, the search never backtracks, and the time it takes is linear in
+ * the length of the output. If none is possible, that is known at once, and
+ * I finish without trying. Backtracking remains only as a safety net.</p>
+ * <p>
+ * The candidate tried first is drawn by frequency, and drawn again should
+ * its reach be too short, so that each of those whose reach is enough is
+ * chosen in proportion to its frequency among them; but only a few draws
+ * are made, and should none of them do, the first of the permutation
+ * which does is taken, without regard to frequency. So where the commonest
+ * successors are those which soon come to an end, as when a sentence is
+ * often ended but rarely goes on, a long output favours the rarer ones a
+ * little less than it might.</p>
+ * <p>
+ * Should the search backtrack nevertheless (as it may with rules whose
+ * reaches are all INFINITE, as older rules are made, and as a
+ * {@link SuffixIndex} gives), every window from
+ * which it fails is remembered, with the number of tokens which were then
+ * still wanted; since the same window is then certain to fail again wanting
+ * at least as many, the search never tries it again, however it gets there.
+ * Without this, rules in which many paths lead to the same dead end can take
+ * time exponential in their depth. The memory is a small cache of fixed
+ * size, in which a window may displace another which happens to hash to the
+ * same slot; it is only made at all should the search ever fail.</p>
+ * <p>
+ * When streaming, every time a sentence is ended the tokens up to and
+ * including its end are committed: the search may no longer backtrack over
+ * them, and they may be taken away and written out while the search goes on.
+ * Should the search later run out of options it simply finishes at the last
+ * sentence end, which is where the output would have been truncated anyway.
+ * Tokens which have been taken are discarded when the buffer fills, so that
+ * store stays bounded however long the output.</p>
+ * <p>
+ * Given a {@link Budget}, I spend a step of it on each step of the search,
+ * and when it is exhausted I stop, cut short, with the longest prefix ending
+ * at a sentence end which I have composed so far: when streaming, what is
+ * committed; else, since the search may have backtracked over it, a copy
+ * of it, made only when backtracking first threatens it.</p>
+ *
+ * @author simon
+ *
+ */
+class Composition {
+
+    /**
+     * The random number generator from which I make my choices.
+     */
+    private final Random random;
+    /**
+     * The limit on the effort I may spend.
+     */
+    private final Budget budget;
+    /**
+     * The most draws by frequency made for a candidate whose reach is
+     * enough, before falling back on taking any in a random order.
+     */
+    private static final int DRAWS = 4;
+    /**
+     * The number of failed windows I remember; a power of two.
+     */
+    private static final int FAILURES = 4096;
+    /**
+     * The rule set I'm working to.
+     */
+    private final Rules rules;
+    /**
+     * Whether or not I am in debugging mode.
+     */
+    private final boolean debug;
+    /**
+     * Whether or not to commit tokens at the end of each sentence.
+     */
+    private final boolean streaming;
+    /**
+     * The identifier of the token which ends sentences, or NOTFOUND if my
+     * rules don't know it.
+     */
+    private final int period;
+    /**
+     * The length of the window matched by my rules.
+     */
+    private final int tupleLength;
+    /**
+     * The number of tokens still to be generated after the floor.
+     */
+    private int length;
+    /**
+     * The tokens composed so far and not yet discarded: first those
+     * committed, then one for each frame on the stack.
+     */
+    private int[] tokens;
+    /**
+     * The index in tokens of the first which may still be backtracked over;
+     * the token of frame n is at floor + n.
+     */
+    private int floor = 0;
+    /**
+     * The index in tokens after the last token which is committed for
+     * output.
+     */
+    private int committed = 0;
+    /**
+     * The index in tokens of the first committed token not yet taken.
+     */
+    private int taken = 0;
+    /**
+     * For each frame, the node whose successors are its candidates.
+     */
+    private long[] nodes;
+    /**
+     * For each frame, the successor chosen by frequency to try first, or
+     * NOTFOUND if none drawn reached far enough.
+     */
+    private long[] favourites;
+    /**
+     * For each frame, the number of successors of its node, once the first
+     * candidate has failed; since for some rules it costs something to count
+     * them.
+     */
+    private int[] counts;
+    /**
+     * For each frame, the offset of the permutation in which to try the
+     * remaining candidates, once the first has failed.
+     */
+    private int[] offsets;
+    /**
+     * For each frame, the stride of that permutation.
+     */
+    private int[] strides;
+    /**
+     * For each frame, the number of candidates tried so far.
+     */
+    private int[] tried;
+    /**
+     * The number of tokens generated after the floor, which is also the
+     * index of the frame now being worked on.
+     */
+    private int depth = 0;
+    /**
+     * Whether the frame now being worked on has been set up.
+     */
+    private boolean entered = false;
+    /**
+     * The last few words output; slid along in place as each is added, and
+     * refilled from my tokens on backtracking.
+     */
+    private final Window glanceBack;
+    /**
+     * True once I have either succeeded or run out of options.
+     */
+    private boolean finished = false;
+    /**
+     * For each slot of my memory of failures, the window node remembered
+     * there, or NOTFOUND; null until the search first fails.
+     */
+    private long[] failedNodes = null;
+    /**
+     * For each slot of my memory of failures, the fewest tokens wanted with
+     * which the search has failed from the window node remembered there.
+     */
+    private int[] failedWanting = null;
+    /**
+     * When I was begun, by System.nanoTime().
+     */
+    private final long started = System.nanoTime();
+    /**
+     * The number of windows I have matched, for my metrics.
+     */
+    private long matched = 0;
+    /**
+     * The number of candidates I have tried, for my metrics.
+     */
+    private long candidates = 0;
+    /**
+     * The number of times I have backtracked, for my metrics.
+     */
+    private long backtracked = 0;
+    /**
+     * When not streaming, the length of the longest prefix of my tokens
+     * ending at a sentence end which has yet been composed.
+     */
+    private int bestLength = 0;
+    /**
+     * A copy of that prefix; null while my tokens still hold it, since it is
+     * only copied when backtracking would overwrite it.
+     */
+    private int[] best = null;
+    /**
+     * True if I stopped because my budget was exhausted.
+     */
+    private boolean cutShort = false;
+
+    /**
+     * Begin a new composition, choosing a preamble at random.
+     *
+     * @param rules the rule set to work to.
+     * @param length the number of tokens to generate after the preamble.
+     * @param streaming whether or not to commit tokens at the end of each
+     * sentence, so that they may be taken before I have finished.
+     * @param random the random number generator from which to make choices;
+     * not to be shared with any other thread.
+     * @param debug whether or not to print debugging output.
+     */
+    Composition(Rules rules, int length, boolean streaming,
+            Random random, boolean debug) {
+        this(rules, length, streaming, random, Budget.NONE, debug);
+    }
+
+    /**
+     * Begin a new composition, choosing a preamble at random, to be finished
+     * within this budget.
+     *
+     * @param rules the rule set to work to.
+     * @param length the number of tokens to generate after the preamble.
+     * @param streaming whether or not to commit tokens at the end of each
+     * sentence, so that they may be taken before I have finished.
+     * @param random the random number generator from which to make choices;
+     * not to be shared with any other thread.
+     * @param budget the limit on the effort I may spend; not to be shared
+     * with any other composition.
+     * @param debug whether or not to print debugging output.
+     */
+    Composition(Rules rules, int length, boolean streaming,
+            Random random, Budget budget, boolean debug) {
+        /* when not streaming, the whole output must be held in any case */
+        final int capacity = streaming ? Math.min(length, 1024) : length;
+
+        this.rules = rules;
+        this.streaming = streaming;
+        this.random = random;
+        this.budget = budget;
+        this.debug = debug;
+        this.period = rules.getVocabulary().getId(Milkwood.PERIOD);
+        this.tupleLength = rules.getTupleLength();
+        this.length = length;
+        this.tokens = new int[tupleLength + capacity];
+        this.nodes = new long[capacity];
+        this.favourites = new long[capacity];
+        this.counts = new int[capacity];
+        this.offsets = new int[capacity];
+        this.strides = new int[capacity];
+        this.tried = new int[capacity];
+        this.glanceBack = new Window(tupleLength);
+
+        if (rules.getReach(Rules.ROOT) < (long) tupleLength + length) {
+            /* there is no path that long through these rules */
+            this.finish();
+        } else {
+            this.composePreamble();
+        }
+        this.slideWindowTo(floor);
+        if (debug) {
+            System.err.println("Preamble: " + this.getResult());
+        }
+    }
+
+    /**
+     * Random walk of the rule tree to extract (from the root) a legal sequence
+     * of words the length of our tuple, from which the length of output
+     * wanted can be reached.
+     */
+    private void composePreamble() {
+        long node = Rules.ROOT;
+
+        while (floor < tupleLength) {
+            node = this.choose(node, (long) length + tupleLength - floor - 1);
+            if (node == Rules.NOTFOUND) {
+                break;
+            }
+            tokens[floor++] = rules.getWord(node);
+            if (tokens[floor - 1] == period) {
+                this.endSentence();
+            }
+        }
+    }
+
+    /**
+     * Choose a successor of this node at random, weighted by frequency, from
+     * among those whose reach is enough.
+     *
+     * @param node the number of a node.
+     * @param needed the least reach acceptable.
+     * @return the successor chosen, or NOTFOUND if none will do.
+     */
+    private long choose(long node, long needed) {
+        long result = this.draw(node, needed);
+
+        if (result == Rules.NOTFOUND && rules.hasSuccessors(node)) {
+            /* no weighted choice would do; take the first which will in
+             * a random order */
+            final int count = rules.getSuccessorCount(node);
+            final int offset = Permutation.offset(count, random);
+            final int stride = Permutation.stride(count, random);
+
+            for (int i = 0; result == Rules.NOTFOUND && i < count;
+                    i++) {
+                final long candidate = rules.getSuccessor(node, Permutation
+                        .at(offset, stride, count, i));
+
+                if (rules.getReach(candidate) >= needed) {
+                    result = candidate;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Draw a successor of this node by frequency, and again should its reach
+     * be too short, a few times at most.
+     *
+     * @param node the number of a node.
+     * @param needed the least reach acceptable.
+     * @return the successor drawn, or NOTFOUND if none drawn will do.
+     */
+    private long draw(long node, long needed) {
+        long result = Rules.NOTFOUND;
+
+        for (int i = 0; result == Rules.NOTFOUND && i < DRAWS; i++) {
+            final long candidate = rules.getRule(node, random);
+
+            if (candidate != Rules.NOTFOUND
+                    && rules.getReach(candidate) >= needed) {
+                result = candidate;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Refill my window with the tokens immediately before this index.
+     *
+     * @param end an index into my tokens.
+     */
+    private void slideWindowTo(int end) {
+        glanceBack.clear();
+        for (int i = Math.max(end - tupleLength, 0); i < end; i++) {
+            glanceBack.shift(tokens[i]);
+        }
+    }
+
+    /**
+     * Take one step of the search: either set up the current frame, or push
+     * a new frame for its next candidate, or, if its candidates are
+     * exhausted, pop it and backtrack.
+     *
+     * @return true if there is more to do, false if I have finished.
+     */
+    boolean step() {
+        if (!finished) {
+            if (depth == length) {
+                /* by Jove, I think she's got it! */
+                this.finish();
+                if (committed == 0) {
+                    /* no sentence was ever ended, so there is nowhere to
+                     * truncate; let the lot go */
+                    committed = floor + depth;
+                }
+            } else if (!budget.spend()) {
+                /* out of time or steps: settle for what I have */
+                cutShort = true;
+                this.finish();
+            } else if (!entered) {
+                this.enter();
+            } else {
+                final long candidate = this.nextCandidate();
+
+                if (candidate == Rules.NOTFOUND) {
+                    this.fail(nodes[depth], length - depth);
+                    this.backtrack();
+                } else {
+                    final int word = rules.getWord(candidate);
+
+                    candidates++;
+
+                    this.ensureCapacity();
+                    tokens[floor + depth] = word;
+                    glanceBack.shift(word);
+                    depth++;
+                    entered = false;
+
+                    if (word == period) {
+                        this.endSentence();
+                    }
+                }
+            }
+        }
+        return !finished;
+    }
+
+    /**
+     * Set up the current frame: are there any rules in this ruleset which
+     * match the current sliding window? if so, note them; if not, then fail.
+     */
+    private void enter() {
+        if (debug) {
+            System.err.println(String.format("%d: %s", length - depth,
+                    glanceBack));
+        }
+
+        final long node = rules.match(glanceBack);
+
+        matched++;
+
+        if (node == Rules.NOTFOUND || !rules.hasSuccessors(node)
+                || this.hasFailed(node, length - depth)) {
+            this.backtrack();
+        } else {
+            if (depth == nodes.length) {
+                final int capacity = Math.max(nodes.length * 2, 1);
+
+                nodes = Arrays.copyOf(nodes, capacity);
+                favourites = Arrays.copyOf(favourites, capacity);
+                counts = Arrays.copyOf(counts, capacity);
+                offsets = Arrays.copyOf(offsets, capacity);
+                strides = Arrays.copyOf(strides, capacity);
+                tried = Arrays.copyOf(tried, capacity);
+            }
+            nodes[depth] = node;
+            favourites[depth] = this.draw(node, length - depth - 1);
+            tried[depth] = 0;
+            entered = true;
+        }
+    }
+
+    /**
+     * The first candidate for the current frame is its favourite, if one was
+     * drawn; after that, its other successors in the order of a random
+     * permutation, which is only drawn when the favourite has failed, so
+     * that, as almost always, if the favourite does then the others cost
+     * nothing. Candidates whose reach is too short for the tokens still
+     * wanted after them are passed over.
+     *
+     * @return the next candidate node for the current frame, or NOTFOUND if
+     * all have been tried.
+     */
+    private long nextCandidate() {
+        final long node = nodes[depth];
+        final int needed = length - depth - 1;
+        long result = Rules.NOTFOUND;
+
+        if (tried[depth] == 0) {
+            tried[depth]++;
+            result = favourites[depth];
+        }
+
+        if (result == Rules.NOTFOUND) {
+            if (tried[depth] == 1) {
+                counts[depth] = rules.getSuccessorCount(node);
+                offsets[depth] = Permutation.offset(counts[depth], random);
+                strides[depth] = Permutation.stride(counts[depth], random);
+            }
+            while (result == Rules.NOTFOUND && tried[depth] <= counts[depth]) {
+                final long candidate = rules.getSuccessor(node, Permutation
+                        .at(offsets[depth], strides[depth], counts[depth],
+                                tried[depth] - 1));
+
+                if (candidate != favourites[depth]
+                        && rules.getReach(candidate) >= needed) {
+                    result = candidate;
+                }
+                tried[depth]++;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Remember that the search failed from this window wanting this many
+     * tokens.
+     *
+     * @param node the window node.
+     * @param wanting the number of tokens wanted.
+     */
+    private void fail(long node, int wanting) {
+        if (failedNodes == null) {
+            failedNodes = new long[FAILURES];
+            failedWanting = new int[FAILURES];
+            Arrays.fill(failedNodes, Rules.NOTFOUND);
+        }
+
+        final int slot = Vocabulary.mix((int) (node ^ (node >>> 32)))
+                & (FAILURES - 1);
+
+        if (failedNodes[slot] != node || failedWanting[slot] > wanting) {
+            failedNodes[slot] = node;
+            failedWanting[slot] = wanting;
+        }
+    }
+
+    /**
+     * @param node a window node.
+     * @param wanting a number of tokens wanted.
+     * @return true if the search is known to fail from that window wanting
+     * that many tokens, because it has failed wanting as many or fewer.
+     */
+    private boolean hasFailed(long node, int wanting) {
+        final int slot = Vocabulary.mix((int) (node ^ (node >>> 32)))
+                & (FAILURES - 1);
+
+        return failedNodes != null && failedNodes[slot] == node
+                && failedWanting[slot] <= wanting;
+    }
+
+    /**
+     * Note that a sentence has just been ended: if streaming, commit it; else,
+     * if it is the furthest yet, remember where it ended.
+     */
+    private void endSentence() {
+        if (streaming) {
+            this.commit();
+        } else if (floor + depth > bestLength) {
+            bestLength = floor + depth;
+            best = null;
+        }
+    }
+
+    /**
+     * Commit everything composed so far: pop all the frames, so that none of
+     * it may be backtracked over, and make it available to be taken.
+     */
+    private void commit() {
+        floor += depth;
+        length -= depth;
+        depth = 0;
+        committed = floor;
+    }
+
+    /**
+     * Abandon the current frame and go back to the one before, or, if there
+     * is none, give up.
+     */
+    private void backtrack() {
+        backtracked++;
+        if (depth == 0) {
+            this.finish();
+        } else {
+            depth--;
+            entered = true;
+            this.slideWindowTo(floor + depth);
+            if (best == null && bestLength > floor + depth) {
+                /* the furthest sentence end is about to be overwritten */
+                best = Arrays.copyOf(tokens, bestLength);
+            }
+        }
+    }
+
+    /**
+     * Stop, and add what I have done to the metrics.
+     */
+    private void finish() {
+        finished = true;
+        Metrics.GLOBAL.composed(depth == length, cutShort, System.nanoTime()
+                - started, matched, candidates, backtracked);
+    }
+
+    /**
+     * Make sure there is room for one more token; first by discarding tokens
+     * which have been taken and are no longer in the window, and only if
+     * that isn't enough by growing.
+     */
+    private void ensureCapacity() {
+        if (floor + depth == tokens.length) {
+            final int discard = Math.min(taken, Math.max(floor - tupleLength,
+                    0));
+
+            if (discard > 0) {
+                System.arraycopy(tokens, discard, tokens, 0, floor + depth
+                        - discard);
+                floor -= discard;
+                committed -= discard;
+                taken -= discard;
+            } else {
+                tokens = Arrays.copyOf(tokens, Math.max(tokens.length * 2,
+                        1));
+            }
+        }
+    }
+
+    /**
+     * @return true if I have finished, whether or not successfully.
+     */
+    boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * @return true if I have finished, having composed all the tokens asked
+     * for.
+     */
+    boolean succeeded() {
+        return finished && depth == length;
+    }
+
+    /**
+     * @return true if I stopped because my budget was exhausted.
+     */
+    boolean wasCutShort() {
+        return cutShort;
+    }
+
+    /**
+     * @return the longest prefix ending at a sentence end which I composed,
+     * preamble first; empty if I never ended a sentence. Not to be had when
+     * streaming, when it is what has been committed.
+     */
+    WordSequence getBestResult() {
+        final WordSequence result = new WordSequence();
+        final int[] source = best == null ? tokens : best;
+
+        for (int i = 0; i < bestLength; i++) {
+            result.add(source[i]);
+        }
+
+        return result;
+    }
+
+    /**
+     * @return true if there are committed tokens not yet taken.
+     */
+    boolean hasCommitted() {
+        return taken < committed;
+    }
+
+    /**
+     * @return the identifier of the next committed token not yet taken.
+     */
+    int takeCommitted() {
+        return tokens[taken++];
+    }
+
+    /**
+     * @return the tokens composed so far and not yet discarded, preamble
+     * first.
+     */
+    WordSequence getResult() {
+        final WordSequence result = new WordSequence();
+
+        for (int i = 0; i < floor + depth; i++) {
+            result.add(tokens[i]);
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,549 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The text from which rules are to be digested: either whatever can be read
+ * from an input stream, or any number of documents, which may be named
+ * singly, by the directories they are in, or by glob patterns, and may be
+ * compressed with gzip.
+ * <p>
+ * Each document is digested separately, so that no tuple crosses from one
+ * to the next; the result is as if each had been digested into the same
+ * tree in turn. Many documents are digested in a pipeline of three stages,
+ * each running at once on different documents:</p>
+ * <ol>
+ * <li>a number of threads each read a whole document, decompressing it if
+ * need be, and tokenise it into a vocabulary of its own;</li>
+ * <li>one thread interns each document's vocabulary into the shared one, and
+ * translates its tokens, taking the documents in order, so that every token
+ * gets the same identifier it would have got had they been digested one
+ * after another;</li>
+ * <li>a number of threads each compile the tuples of whichever documents
+ * they are given into a partial rule tree of their own; when all the
+ * documents have been compiled, the partial trees are merged.</li>
+ * </ol>
+ * <p>
+ * Between the stages are bounded queues, so that however many documents
+ * there are, only a few are ever held in store at once, and a stage which
+ * gets ahead waits for the next to catch up.</p>
+ *
+ * @author simon
+ *
+ */
+public class Corpus {
+
+    /**
+     * The suffix of documents compressed with gzip.
+     */
+    public static final String GZIP = ".gz";
+    /**
+     * The suffixes of documents compressed with Zstandard, which I cannot
+     * read.
+     */
+    public static final String[] ZSTD = {".zst", ".zstd"};
+    /**
+     * The size of the buffer through which compressed documents are read.
+     */
+    public static final int BUFFERSIZE = 64 * 1024;
+    /**
+     * The number of documents, for each thread of a stage, which may wait in
+     * the queue before it.
+     */
+    public static final int QUEUEPERTHREAD = 2;
+    /**
+     * How long, in milliseconds, to wait for a compiler to take a document
+     * before checking that the compilers are still going.
+     */
+    private static final long PATIENCE = 100;
+    /**
+     * The stream to read, if I have no documents.
+     */
+    private final InputStream in;
+    /**
+     * My documents, in the order in which they are to be digested.
+     */
+    private final List<Path> documents = new ArrayList<>();
+
+    /**
+     * @param in the stream to read, should no documents be added.
+     */
+    public Corpus(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Add the documents named by this specification: the name of a file; or
+     * of a directory, meaning every file in it or in any directory within it;
+     * or a glob pattern, such as <code>corpus/*.gz</code>, meaning every
+     * file matching it. The files named by a directory or a pattern are added
+     * in the order of their names.
+     *
+     * @param spec the specification.
+     * @throws IOException if it names nothing, or files which I cannot read.
+     */
+    public void add(String spec) throws IOException {
+        final List<Path> found = new ArrayList<>();
+        final Path path = Paths.get(spec);
+
+        if (isGlob(spec)) {
+            glob(spec, found);
+        } else if (Files.isDirectory(path)) {
+            walk(path, null, found);
+        } else if (Files.isRegularFile(path)) {
+            found.add(path);
+        } else {
+            throw new IOException(String.format("No such file: %s", spec));
+        }
+        if (found.isEmpty()) {
+            throw new IOException(String.format("No files match %s", spec));
+        }
+
+        Collections.sort(found);
+        for (Path document : found) {
+            for (String suffix : ZSTD) {
+                if (document.toString().endsWith(suffix)) {
+                    throw new IOException(String.format(
+                            "%s is compressed with Zstandard, which is not "
+                            + "supported; decompress it, or recompress it "
+                            + "with gzip", document));
+                }
+            }
+        }
+        documents.addAll(found);
+    }
+
+    /**
+     * @return the number of documents I have; zero if I am to read a stream.
+     */
+    public int size() {
+        return documents.size();
+    }
+
+    /**
+     * Digest me into the rule tree below this root.
+     *
+     * @param vocabulary the vocabulary into which to intern tokens.
+     * @param tupleLength the length of the tuples to digest.
+     * @param root the rule tree to add to.
+     * @param jobs the number of threads for each stage of the pipeline, or,
+     * if I am a stream or a single uncompressed file, with which to digest
+     * it.
+     * @param pruner the pruner which keeps the trees built within their
+     * budget of store while they are built.
+     * @return the number of tokens read.
+     * @throws IOException if any of my documents cannot be read.
+     */
+    public long digest(Vocabulary vocabulary, int tupleLength,
+            RuleTreeNode root, int jobs, Pruner pruner) throws IOException {
+        final long result;
+
+        if (documents.isEmpty()) {
+            result = new Digester(vocabulary, pruner).digest(in, tupleLength,
+                    root, jobs);
+        } else if (documents.size() == 1 && !isGzipped(documents.get(0))) {
+            try (FileInputStream file = new FileInputStream(documents.get(0)
+                    .toFile())) {
+                result = new Digester(vocabulary, pruner).digest(file,
+                        tupleLength, root, jobs);
+            }
+        } else {
+            final long start = System.nanoTime();
+
+            result = this.pipeline(vocabulary, tupleLength, root, Math.max(
+                    jobs, 1), pruner);
+            Metrics.GLOBAL.digested(result, System.nanoTime() - start);
+        }
+
+        return result;
+    }
+
+    /**
+     * Read me whole into one array of word identifiers, as a
+     * {@link SuffixIndex} wants: each document, or the stream, followed by
+     * the root magic token, so that no sequence crosses from one to the next.
+     *
+     * @param vocabulary the vocabulary into which to intern tokens.
+     * @return the identifiers of my tokens.
+     * @throws IOException if any of my documents cannot be read, or there are
+     * more tokens in them than an array can hold.
+     */
+    public int[] tokenise(Vocabulary vocabulary) throws IOException {
+        final long start = System.nanoTime();
+        int[] result = new int[1024];
+        int size = 0;
+
+        if (documents.isEmpty()) {
+            final ByteTokeniser tok = new ByteTokeniser(Channels.newChannel(
+                    in), vocabulary);
+
+            for (int token = tok.nextToken(); token != ByteTokeniser.EOF;
+                    token = tok.nextToken()) {
+                result = ensureCapacity(result, size + 1);
+                result[size++] = token;
+            }
+            result = ensureCapacity(result, size + 1);
+            result[size++] = Vocabulary.ROOT;
+        } else {
+            for (Path path : documents) {
+                final int[] tokens = new Document(path).translate(vocabulary);
+
+                result = ensureCapacity(result, (long) size + tokens.length
+                        + 1);
+                System.arraycopy(tokens, 0, result, size, tokens.length);
+                size += tokens.length;
+                result[size++] = Vocabulary.ROOT;
+            }
+        }
+        Metrics.GLOBAL.digested(size, System.nanoTime() - start);
+
+        return Arrays.copyOf(result, size);
+    }
+
+    /**
+     * @param array an array.
+     * @param wanted the length it must have.
+     * @return it, if it is long enough, else a longer copy of it.
+     * @throws IOException if no array can be long enough.
+     */
+    private static int[] ensureCapacity(int[] array, long wanted)
+            throws IOException {
+        final int[] result;
+
+        if (wanted > Integer.MAX_VALUE - 8) {
+            throw new IOException("Too many tokens to hold in one array");
+        } else if (wanted > array.length) {
+            result = Arrays.copyOf(array, (int) Math.min(Math.max(wanted,
+                    array.length * 2L), Integer.MAX_VALUE - 8));
+        } else {
+            result = array;
+        }
+
+        return result;
+    }
+
+    /**
+     * Digest my documents through the pipeline.
+     *
+     * @param vocabulary the vocabulary into which to intern tokens.
+     * @param tupleLength the length of the tuples to digest.
+     * @param root the rule tree to add to.
+     * @param threads the number of threads for each stage.
+     * @param pruner the pruner which keeps each compiler's tree within its
+     * share of the budget.
+     * @return the number of tokens read.
+     * @throws IOException if any of my documents cannot be read.
+     */
+    private long pipeline(Vocabulary vocabulary, final int tupleLength,
+            RuleTreeNode root, final int threads, final Pruner pruner)
+            throws IOException {
+        final ExecutorService readers = Executors.newFixedThreadPool(threads);
+        final ExecutorService compilers = Executors
+                .newFixedThreadPool(threads);
+        final BlockingQueue<int[]> translated = new ArrayBlockingQueue<>(
+                threads * QUEUEPERTHREAD);
+        /* the documents being read, oldest first */
+        final Deque<Future<Document>> reading = new ArrayDeque<>();
+        final List<Future<RuleTreeNode>> compiled = new ArrayList<>();
+        long result = 0;
+
+        try {
+            for (int i = 0; i < threads; i++) {
+                compiled.add(compilers.submit(new Callable<RuleTreeNode>() {
+                    @Override
+                    public RuleTreeNode call() throws InterruptedException {
+                        final RuleTreeNode partial = new RuleTreeNode();
+                        final Pruner.Watch watch = pruner.watch(partial,
+                                tupleLength, threads);
+
+                        for (int[] tokens = translated.take(); tokens.length
+                                > 0; tokens = translated.take()) {
+                            compile(tokens, tupleLength, partial, watch);
+                        }
+
+                        return partial;
+                    }
+                }));
+            }
+
+            int next = 0;
+            while (next < documents.size() || !reading.isEmpty()) {
+                while (next < documents.size()
+                        && reading.size() < threads * QUEUEPERTHREAD) {
+                    final Path path = documents.get(next++);
+
+                    reading.add(readers.submit(new Callable<Document>() {
+                        @Override
+                        public Document call() throws IOException {
+                            return new Document(path);
+                        }
+                    }));
+                }
+
+                final Document document = await(reading.remove());
+                hand(translated, document.translate(vocabulary), compiled);
+                result += document.size;
+            }
+
+            /* an empty document tells a compiler there are no more */
+            for (int i = 0; i < threads; i++) {
+                hand(translated, new int[0], compiled);
+            }
+            for (Future<RuleTreeNode> partial : compiled) {
+                root.merge(await(partial));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while digesting", e);
+        } finally {
+            readers.shutdownNow();
+            compilers.shutdownNow();
+        }
+
+        return result;
+    }
+
+    /**
+     * Compile every tuple of this document into the tree below this root.
+     *
+     * @param tokens the tokens of the document.
+     * @param tupleLength the length of the tuples to compile.
+     * @param root the root.
+     * @param watch the watch kept on the size of the tree.
+     */
+    private static void compile(int[] tokens, int tupleLength,
+            RuleTreeNode root, Pruner.Watch watch) {
+        final int[] tuple = new int[tupleLength + 1];
+
+        for (int start = 0; start + tupleLength < tokens.length; start++) {
+            System.arraycopy(tokens, start, tuple, 0, tuple.length);
+            watch.added(root.addSequence(tuple, 0));
+        }
+    }
+
+    /**
+     * Wait for this future, passing on any exception.
+     *
+     * @param <T> the type of its result.
+     * @param future the future.
+     * @return its result.
+     * @throws IOException if its task failed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private static <T> T await(Future<T> future) throws IOException,
+            InterruptedException {
+        final T result;
+
+        try {
+            result = future.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            } else {
+                throw new IOException(ex.getCause());
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Put these tokens on this queue for the compilers, waiting for room;
+     * but should any compiler have stopped, which it should not until it is
+     * told there are no more, don't wait for ever.
+     *
+     * @param queue the queue.
+     * @param tokens the tokens.
+     * @param compilers the compilers.
+     * @throws IOException if a compiler has failed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private static void hand(BlockingQueue<int[]> queue, int[] tokens,
+            List<Future<RuleTreeNode>> compilers) throws IOException,
+            InterruptedException {
+        while (!queue.offer(tokens, PATIENCE, TimeUnit.MILLISECONDS)) {
+            for (Future<RuleTreeNode> compiler : compilers) {
+                if (compiler.isDone()) {
+                    await(compiler);
+                    throw new IOException("A compiler stopped early");
+                }
+            }
+        }
+    }
+
+    /**
+     * @param spec a specification of documents.
+     * @return true if it is a glob pattern.
+     */
+    private static boolean isGlob(String spec) {
+        boolean result = false;
+
+        for (int i = 0; !result && i < spec.length(); i++) {
+            result = "*?[{".indexOf(spec.charAt(i)) >= 0;
+        }
+
+        return result;
+    }
+
+    /**
+     * @param path the path of a document.
+     * @return true if it is compressed with gzip.
+     */
+    private static boolean isGzipped(Path path) {
+        return path.toString().endsWith(GZIP);
+    }
+
+    /**
+     * Find all the files matching this glob pattern, searching from the
+     * deepest directory named in it before the first wildcard.
+     *
+     * @param pattern the pattern.
+     * @param found the list to add the files to.
+     * @throws IOException if a directory cannot be read.
+     */
+    private static void glob(String pattern, List<Path> found)
+            throws IOException {
+        int wild = 0;
+        while ("*?[{".indexOf(pattern.charAt(wild)) < 0) {
+            wild++;
+        }
+        final int slash = pattern.lastIndexOf('/', wild);
+        final Path base = slash < 0 ? Paths.get("") : Paths.get(
+                pattern.substring(0, slash + 1));
+        final PathMatcher matcher = FileSystems.getDefault().getPathMatcher(
+                "glob:" + pattern);
+
+        if (Files.isDirectory(base) || slash < 0) {
+            walk(base, matcher, found);
+        }
+    }
+
+    /**
+     * Find all the files in this directory, or in any directory within it,
+     * which match this matcher.
+     *
+     * @param directory the directory.
+     * @param matcher the matcher, or null to find every file.
+     * @param found the list to add the files to.
+     * @throws IOException if a directory cannot be read.
+     */
+    private static void walk(Path directory, final PathMatcher matcher,
+            final List<Path> found) throws IOException {
+        final Path start = directory.toString().isEmpty() ? Paths.get(".")
+                : directory;
+        final boolean relative = directory.toString().isEmpty();
+
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file,
+                    BasicFileAttributes attributes) {
+                /* match as the user would have written it: without ./ */
+                final Path name = relative ? start.relativize(file) : file;
+
+                if (attributes.isRegularFile()
+                        && (matcher == null || matcher.matches(name))) {
+                    found.add(name);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * A document, read and tokenised into a vocabulary of its own.
+     */
+    private static class Document {
+
+        /**
+         * The vocabulary of my tokens.
+         */
+        private final Vocabulary local = new Vocabulary();
+        /**
+         * My tokens.
+         */
+        private int[] tokens = new int[1024];
+        /**
+         * The number of my tokens.
+         */
+        private int size = 0;
+
+        /**
+         * Read and tokenise the document at this path.
+         *
+         * @param path the path.
+         * @throws IOException if it cannot be read.
+         */
+        Document(Path path) throws IOException {
+            try (FileInputStream in = new FileInputStream(path.toFile())) {
+                final FileChannel file = in.getChannel();
+                final ByteTokeniser tok = isGzipped(path) ? new ByteTokeniser(
+                        Channels.newChannel(new GZIPInputStream(in,
+                                BUFFERSIZE)), local) : new ByteTokeniser(file,
+                        0, file.size(), local);
+
+                for (int token = tok.nextToken(); token != ByteTokeniser.EOF;
+                        token = tok.nextToken()) {
+                    if (size == tokens.length) {
+                        tokens = Arrays.copyOf(tokens, size * 2);
+                    }
+                    tokens[size++] = token;
+                }
+            }
+        }
+
+        /**
+         * Intern my vocabulary into this one.
+         *
+         * @param shared the vocabulary.
+         * @return my tokens, as identifiers in it.
+         */
+        int[] translate(Vocabulary shared) {
+            final int[] translation = new int[local.size()];
+            final int[] result = new int[size];
+
+            for (int id = 0; id < translation.length; id++) {
+                final byte[] spelling = local.getSpelling(id);
+
+                translation[id] = shared.intern(spelling, 0, spelling.length);
+            }
+            for (int i = 0; i < size; i++) {
+                result[i] = translation[tokens[i]];
+            }
+
+            return result;
+        }
+    }
+}
@@ -1,16 +1,26 @@
 /*
- * Proprietary unpublished source code property of 
+ * Proprietary unpublished source code property of
  * Simon Brooke <simon@journeyman.cc>.
- * 
+ *
  * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
  */
 package cc.journeyman.milkwood;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StreamTokenizer;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * Read an input stream of text and digest it into a set of generation rules.
@@ -21,9 +31,48 @@ import java.util.Queue;
  */
 public class Digester {
 
+    /**
+     * The number of chunks into which to split the input for each thread,
+     * when digesting in parallel, so that threads which finish early can
+     * steal work from those which don't.
+     */
+    public static final int CHUNKSPERTHREAD = 4;
+    /**
+     * The smallest chunk worth handing to a thread of its own.
+     */
+    public static final int MINCHUNKSIZE = 64 * 1024;
+    /**
+     * The vocabulary into which I intern the tokens I read.
+     */
+    private final Vocabulary vocabulary;
+    /**
+     * The pruner which keeps the trees I build within their budget.
+     */
+    private final Pruner pruner;
+
+    /**
+     * @param vocabulary the vocabulary into which I shall intern the tokens I
+     * read.
+     */
+    public Digester(Vocabulary vocabulary) {
+        this(vocabulary, Pruner.NONE);
+    }
+
+    /**
+     * @param vocabulary the vocabulary into which I shall intern the tokens I
+     * read.
+     * @param pruner the pruner which keeps the trees I build within their
+     * budget of store while I build them.
+     */
+    public Digester(Vocabulary vocabulary, Pruner pruner) {
+        this.vocabulary = vocabulary;
+        this.pruner = pruner;
+    }
+
     /**
      * Read tokens from the input stream, and compile them into the rule tree
-     * below this root.
+     * below this root. If the input stream is a file, it is memory mapped
+     * rather than read.
      *
      * @param in the input stream from which I read.
      * @param tupleLength the length of the tuples I read.
@@ -33,26 +82,494 @@ public class Digester {
      */
     protected int digest(final InputStream in, final int tupleLength,
             final RuleTreeNode root) throws IOException {
+        final long start = System.nanoTime();
+        final ByteTokeniser tok;
+
+        if (in instanceof FileInputStream) {
+            final FileChannel file = ((FileInputStream) in).getChannel();
+
+            tok = new ByteTokeniser(file, file.position(), file.size(),
+                    vocabulary);
+        } else {
+            tok = new ByteTokeniser(Channels.newChannel(in), vocabulary);
+        }
+
+        final int result = this.digest(tok, tupleLength, root);
+
+        Metrics.GLOBAL.digested(result, System.nanoTime() - start);
+        return result;
+    }
+
+    /**
+     * Read tokens from this tokeniser, and compile them into the rule tree
+     * below this root.
+     *
+     * @param tok the tokeniser from which I read.
+     * @param tupleLength the length of the tuples I read.
+     * @param root the ruleset to which I shall add.
+     * @return the number of tokens read.
+     * @throws IOException if can't read from file system.
+     */
+    private int digest(final ByteTokeniser tok, final int tupleLength,
+            final RuleTreeNode root) throws IOException {
         int result = 0;
-        final Queue<WordSequence> openTuples = new LinkedList<>();
-        final Tokeniser tok = new Tokeniser(in);
+        /* the last tupleLength + 1 tokens read, oldest first */
+        final int[] tuple = new int[tupleLength + 1];
+        final Pruner.Watch watch = pruner.watch(root, tupleLength, 1);
 
-        for (int type = tok.nextToken(); type != StreamTokenizer.TT_EOF; type = tok
+        for (int token = tok.nextToken(); token != ByteTokeniser.EOF; token = tok
                 .nextToken()) {
+            System.arraycopy(tuple, 1, tuple, 0, tupleLength);
+            tuple[tupleLength] = token;
             result++;
-            final WordSequence newTuple = new WordSequence();
-            String token = tok.readBareToken();
 
-            openTuples.add(newTuple);
-            for (WordSequence tuple : openTuples) {
-                tuple.add(token);
+            if (result > tupleLength) {
+                watch.added(root.addSequence(tuple, 0));
             }
+        }
 
-            if (openTuples.size() > tupleLength) {
-                root.addSequence(openTuples.remove());
+        return result;
+    }
+
+    /**
+     * Read tokens from the input stream, and compile them into the rule tree
+     * below this root, using this many threads. The input is memory mapped
+     * if it is a file, or else read whole, and split into chunks at
+     * whitespace, so that no token straddles two chunks; then, in a fork/join
+     * pool,
+     * <ol>
+     * <li>each chunk is tokenised into a vocabulary of its own;</li>
+     * <li>the chunk vocabularies are interned into mine in the order of the
+     * chunks, so that every token gets the same identifier it would have got
+     * had the input been digested sequentially, and each chunk's tokens are
+     * translated;</li>
+     * <li>each chunk compiles every tuple which starts in it, borrowing as
+     * many tokens from the chunks after it as it needs to finish them, into a
+     * partial rule tree, and the partial trees are merged pairwise.</li>
+     * </ol>
+     * The result is identical to that of digesting sequentially. This
+     * assumes the input is in an encoding, such as UTF-8, in which bytes
+     * which look like ASCII whitespace are whitespace.
+     *
+     * @param in the input stream from which I read.
+     * @param tupleLength the length of the tuples I read.
+     * @param root the ruleset to which I shall add.
+     * @param parallelism the number of threads to use.
+     * @return the number of tokens read.
+     * @throws IOException if can't read from file system.
+     */
+    protected int digest(final InputStream in, final int tupleLength,
+            final RuleTreeNode root, final int parallelism)
+            throws IOException {
+        final int result;
+
+        if (parallelism <= 1) {
+            result = this.digest(in, tupleLength, root);
+        } else {
+            final long start = System.nanoTime();
+            final Text text = in instanceof FileInputStream ? new FileText(
+                    ((FileInputStream) in).getChannel()) : new BufferText(
+                    ByteBuffer.wrap(readFully(in)));
+            final Chunk[] chunks = split(text, parallelism * CHUNKSPERTHREAD);
+            final ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+            try {
+                List<Callable<Object>> tasks = new ArrayList<>();
+                for (final Chunk chunk : chunks) {
+                    tasks.add(new Callable<Object>() {
+                        @Override
+                        public Object call() throws IOException {
+                            chunk.tokenise(text);
+                            return null;
+                        }
+                    });
+                }
+                await(pool.invokeAll(tasks));
+
+                for (Chunk chunk : chunks) {
+                    chunk.intern(vocabulary);
+                }
+
+                tasks = new ArrayList<>();
+                for (final Chunk chunk : chunks) {
+                    tasks.add(new Callable<Object>() {
+                        @Override
+                        public Object call() {
+                            chunk.translate();
+                            return null;
+                        }
+                    });
+                }
+                await(pool.invokeAll(tasks));
+
+                root.merge(pool.invoke(new Compile(chunks, 0, chunks.length,
+                        tupleLength, pruner)));
+            } finally {
+                pool.shutdown();
+            }
+
+            int count = 0;
+            for (Chunk chunk : chunks) {
+                count += chunk.size;
             }
+            result = count;
+            Metrics.GLOBAL.digested(result, System.nanoTime() - start);
         }
 
         return result;
     }
+
+    /**
+     * Wait for all these futures to complete, passing on any exception.
+     *
+     * @param futures the futures to wait for.
+     * @throws IOException if any of the tasks failed to read.
+     */
+    private static void await(List<Future<Object>> futures) throws IOException {
+        for (Future<Object> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while digesting", ex);
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof IOException) {
+                    throw (IOException) ex.getCause();
+                } else {
+                    throw new IOException(ex.getCause());
+                }
+            }
+        }
+    }
+
+    /**
+     * @param in an input stream.
+     * @return everything which could be read from it.
+     * @throws IOException if can't read from file system.
+     */
+    static byte[] readFully(InputStream in) throws IOException {
+        final ByteArrayOutputStream buffy = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[64 * 1024];
+
+        for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+            buffy.write(buffer, 0, n);
+        }
+
+        return buffy.toByteArray();
+    }
+
+    /**
+     * Split this text into about this many chunks, each ending just after a
+     * whitespace character, so that no token straddles two chunks.
+     *
+     * @param text the text to split.
+     * @param n the number of chunks wanted.
+     * @return the chunks.
+     */
+    private static Chunk[] split(Text text, int n) throws IOException {
+        final long size = Math.max((text.end() - text.start())
+                / Math.max(n, 1), MINCHUNKSIZE);
+        final List<Chunk> result = new ArrayList<>();
+        long from = text.start();
+
+        while (from < text.end()) {
+            long to = Math.min(from + size, text.end());
+
+            while (to < text.end() && !ByteTokeniser.isWhitespace(text.at(to - 1))) {
+                to++;
+            }
+            result.add(new Chunk(from, to));
+            from = to;
+        }
+
+        return result.toArray(new Chunk[result.size()]);
+    }
+
+    /**
+     * Text to be digested in parallel, which may be read a byte at a time to
+     * find where to split it, and from any part of which a tokeniser may be
+     * made.
+     */
+    private abstract static class Text {
+
+        /**
+         * @return the index of my first byte.
+         */
+        abstract long start() throws IOException;
+
+        /**
+         * @return the index after my last byte.
+         */
+        abstract long end() throws IOException;
+
+        /**
+         * @param index an index into me.
+         * @return the byte at that index.
+         */
+        abstract byte at(long index) throws IOException;
+
+        /**
+         * @param from the index of the first byte to tokenise.
+         * @param to the index after the last byte to tokenise.
+         * @param vocabulary the vocabulary into which to intern tokens.
+         * @return a tokeniser for that part of me.
+         */
+        abstract ByteTokeniser tokeniser(long from, long to,
+                Vocabulary vocabulary) throws IOException;
+    }
+
+    /**
+     * Text held in a buffer.
+     */
+    private static class BufferText extends Text {
+
+        private final ByteBuffer buffer;
+
+        BufferText(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        long start() {
+            return 0;
+        }
+
+        @Override
+        long end() {
+            return buffer.limit();
+        }
+
+        @Override
+        byte at(long index) {
+            return buffer.get((int) index);
+        }
+
+        @Override
+        ByteTokeniser tokeniser(long from, long to, Vocabulary vocabulary) {
+            final ByteBuffer slice = buffer.duplicate();
+
+            slice.limit((int) to);
+            slice.position((int) from);
+            return new ByteTokeniser(slice, vocabulary);
+        }
+    }
+
+    /**
+     * Text held in a file, from its current position to its end, each part
+     * of which is memory mapped separately.
+     */
+    private static class FileText extends Text {
+
+        private final FileChannel file;
+
+        FileText(FileChannel file) {
+            this.file = file;
+        }
+
+        @Override
+        long start() throws IOException {
+            return file.position();
+        }
+
+        @Override
+        long end() throws IOException {
+            return file.size();
+        }
+
+        @Override
+        byte at(long index) throws IOException {
+            final ByteBuffer one = ByteBuffer.allocate(1);
+
+            file.read(one, index);
+            return one.get(0);
+        }
+
+        @Override
+        ByteTokeniser tokeniser(long from, long to, Vocabulary vocabulary)
+                throws IOException {
+            return new ByteTokeniser(file, from, to, vocabulary);
+        }
+    }
+
+    /**
+     * A chunk of the input, digested in parallel with others.
+     */
+    private static class Chunk {
+
+        /**
+         * The index in the text of my first byte.
+         */
+        private final long from;
+        /**
+         * The index in the text after my last byte.
+         */
+        private final long to;
+        /**
+         * My tokens; at first identifiers in my own vocabulary, later in the
+         * shared one.
+         */
+        private int[] tokens = new int[1024];
+        /**
+         * The number of tokens in me.
+         */
+        private int size = 0;
+        /**
+         * My own vocabulary, until it is interned into the shared one.
+         */
+        private Vocabulary local = new Vocabulary();
+        /**
+         * Maps identifiers in my own vocabulary onto those in the shared one.
+         */
+        private int[] translation;
+
+        Chunk(long from, long to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        /**
+         * Read my tokens from this text, into my own vocabulary.
+         *
+         * @param text the whole text of which I am a chunk.
+         * @throws IOException if the text cannot be read.
+         */
+        void tokenise(Text text) throws IOException {
+            final ByteTokeniser tok = text.tokeniser(from, to, local);
+
+            for (int token = tok.nextToken(); token != ByteTokeniser.EOF; token = tok
+                    .nextToken()) {
+                if (size == tokens.length) {
+                    tokens = Arrays.copyOf(tokens, tokens.length * 2);
+                }
+                tokens[size++] = token;
+            }
+        }
+
+        /**
+         * Intern my own vocabulary, in order, into this shared vocabulary.
+         *
+         * @param shared the shared vocabulary.
+         */
+        void intern(Vocabulary shared) {
+            translation = new int[local.size()];
+            for (int id = 0; id < local.size(); id++) {
+                final byte[] spelling = local.getSpelling(id);
+
+                translation[id] = shared.intern(spelling, 0, spelling.length);
+            }
+            local = null;
+        }
+
+        /**
+         * Translate my tokens from my own vocabulary into the shared one.
+         */
+        void translate() {
+            for (int i = 0; i < size; i++) {
+                tokens[i] = translation[tokens[i]];
+            }
+            translation = null;
+        }
+    }
+
+    /**
+     * Compile the tuples starting in a run of chunks into a partial rule
+     * tree, splitting the run in half and merging the halves if it is longer
+     * than one.
+     */
+    private static class Compile extends RecursiveTask<RuleTreeNode> {
+
+        private static final long serialVersionUID = 1L;
+        /**
+         * All the chunks of the input.
+         */
+        private final Chunk[] chunks;
+        /**
+         * The index of the first chunk in my run.
+         */
+        private final int first;
+        /**
+         * The index after the last chunk in my run.
+         */
+        private final int last;
+        /**
+         * The length of the tuples to compile.
+         */
+        private final int tupleLength;
+        /**
+         * The pruner which keeps each chunk's tree within its share of the
+         * budget; since merging adds no nodes which were not in one half or
+         * the other, merged trees are kept within theirs too.
+         */
+        private final Pruner pruner;
+
+        Compile(Chunk[] chunks, int first, int last, int tupleLength,
+                Pruner pruner) {
+            this.chunks = chunks;
+            this.first = first;
+            this.last = last;
+            this.tupleLength = tupleLength;
+            this.pruner = pruner;
+        }
+
+        @Override
+        protected RuleTreeNode compute() {
+            final RuleTreeNode result;
+
+            if (last - first > 1) {
+                final int middle = (first + last) / 2;
+                final Compile right = new Compile(chunks, middle, last,
+                        tupleLength, pruner);
+
+                right.fork();
+                result = new Compile(chunks, first, middle, tupleLength,
+                        pruner).compute();
+                result.merge(right.join());
+            } else {
+                result = new RuleTreeNode();
+                if (last > first) {
+                    this.compile(chunks[first], result);
+                }
+            }
+
+            return result;
+        }
+
+        /**
+         * Compile every tuple which starts in this chunk into the tree below
+         * this root.
+         *
+         * @param chunk the chunk.
+         * @param root the root.
+         */
+        private void compile(Chunk chunk, RuleTreeNode root) {
+            /* as many tokens as can be had, up to tupleLength, from the
+             * chunks after this one */
+            final int[] tail = new int[tupleLength];
+            int available = 0;
+
+            for (int next = first + 1; next < chunks.length
+                    && available < tupleLength; next++) {
+                final int n = Math.min(chunks[next].size, tupleLength
+                        - available);
+
+                System.arraycopy(chunks[next].tokens, 0, tail, available, n);
+                available += n;
+            }
+            available += chunk.size;
+
+            final int[] tuple = new int[tupleLength + 1];
+            final Pruner.Watch watch = pruner.watch(root, tupleLength,
+                    chunks.length);
+            for (int start = 0; start < chunk.size
+                    && start + tupleLength < available; start++) {
+                for (int i = 0; i < tuple.length; i++) {
+                    final int index = start + i;
+
+                    tuple[i] = index < chunk.size ? chunk.tokens[index]
+                            : tail[index - chunk.size];
+                }
+                watch.added(root.addSequence(tuple, 0));
+            }
+        }
+    }
 }
@@ -0,0 +1,726 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.Random;
+
+/**
+ * An immutable, compact, compilation of a rule tree, made once digestion is
+ * finished, since from then on the tree is only ever read. Nodes are numbered
+ * breadth first from the root, which is node zero, so that the successors of
+ * any node are a contiguous run of node numbers, sorted by word. (They are
+ * passed as longs, as {@link Rules} has them, but since they count nodes held
+ * in arrays they always fit an int.) The shape of the whole tree is then just
+ * two int arrays, in the manner of a compressed sparse row matrix:
+ * <dl>
+ * <dt>words</dt>
+ * <dd>the identifier of the word at each node;</dd>
+ * <dt>firstSuccessors</dt>
+ * <dd>the number of the first successor of each node, such that the
+ * successors of node n are the nodes from firstSuccessors[n] up to (but
+ * excluding) firstSuccessors[n + 1].</dd>
+ * </dl>
+ * Finding a successor by word is then a binary search of a small slice of
+ * one array, rather than a hash lookup on a map per node.
+ * <p>
+ * Each node also carries the number of times it was observed, and an entry in
+ * an alias table (after Vose) for the run of siblings it belongs to, so that
+ * choosing a successor weighted by frequency costs one random index and one
+ * random comparison however many successors there are.</p>
+ * <p>
+ * Finally, each node carries its reach: the greatest number of tokens which
+ * could possibly be generated after the sequence of words from the root to
+ * it, which is INFINITE if that sequence leads into a cycle. This is worked
+ * out once, when I am made, by treating each window as a state whose
+ * successors lead to other states, and peeling away, from the dead ends
+ * backwards, the states which cannot go on for ever. A composer which only
+ * ever chooses a successor whose reach is at least the number of tokens it
+ * still wants can never paint itself into a corner, and so need never
+ * backtrack. The alias tables are weighted by frequency alone, since how
+ * much reach is enough depends on how many tokens are still wanted, which
+ * only the composer knows; it draws again should what it draws not reach
+ * far enough.</p>
+ * <p>
+ * The arrays are held as buffers, so that they may equally be on the heap,
+ * where I compiled them, or mapped straight out of a model file saved by
+ * {@link ModelFile}, in which case loading me costs next to nothing; or
+ * copied by {@link #offHeap()} into direct buffers, so that however big I am
+ * the heap holds only a handful of objects, and pauses for garbage
+ * collection are as short as if I were not there.</p>
+ * <p>
+ * Once made I am never modified, and I hold no random number generator of my
+ * own: whoever wants a random choice passes in their own generator. So I may
+ * be shared between as many threads as care to compose from me at once, with
+ * no locking and no contention; the vocabulary I hold must not be added to
+ * meanwhile.</p>
+ *
+ * @author simon
+ *
+ */
+public class FrozenRuleTree implements Rules {
+
+    /**
+     * The vocabulary from which my word identifiers were drawn.
+     */
+    private final Vocabulary vocabulary;
+    /**
+     * The length of the window my rules match.
+     */
+    private final int tupleLength;
+    /**
+     * The identifier of the word at each node.
+     */
+    private final IntBuffer words;
+    /**
+     * The number of the first successor of each node, with one extra entry
+     * so that the successors of the last node are bounded.
+     */
+    private final IntBuffer firstSuccessors;
+    /**
+     * The number of times each node was observed.
+     */
+    private final IntBuffer counts;
+    /**
+     * The probability, for each node, that a choice which lands on it should
+     * stay there rather than go to its alias.
+     */
+    private final FloatBuffer thresholds;
+    /**
+     * The number of the sibling to which a choice which lands on each node,
+     * but does not stay there, should go instead.
+     */
+    private final IntBuffer aliases;
+    /**
+     * The greatest number of tokens which could be generated after the
+     * sequence of words from the root to each node, or INFINITE.
+     */
+    private final IntBuffer reaches;
+
+    /**
+     * Compile the tree below this root. The tuple length is that to which it
+     * was digested, which cannot be told from its shape: a tree which is
+     * empty, or was digested from fewer tokens than make a window, or has
+     * been pruned, may nowhere be as deep as its windows.
+     *
+     * @param root the root of a rule tree.
+     * @param vocabulary the vocabulary from which its word identifiers were
+     * drawn.
+     * @param tupleLength the length of the window its rules match.
+     */
+    FrozenRuleTree(RuleTreeNode root, Vocabulary vocabulary,
+            int tupleLength) {
+        final int count = root.countNodes();
+        final Queue<RuleTreeNode> queue = new ArrayDeque<>();
+        final int[] words = new int[count];
+        final int[] firstSuccessors = new int[count + 1];
+        final int[] counts = new int[count];
+        final float[] thresholds = new float[count];
+        final int[] aliases = new int[count];
+
+        /* number the nodes breadth first; the successors of each node are
+         * then numbered consecutively, from the next number not yet given
+         * out when it was dequeued. */
+        int next = 1;
+        int node = 0;
+        queue.add(root);
+        for (RuleTreeNode current = queue.poll(); current != null; current = queue
+                .poll()) {
+            words[node] = current.getWord();
+            counts[node] = current.getCount();
+            firstSuccessors[node] = next;
+
+            for (int word : current.getSortedSuccessors()) {
+                queue.add(current.getRule(word));
+                next++;
+            }
+            node++;
+        }
+        firstSuccessors[count] = next;
+        this.tupleLength = tupleLength;
+
+        final int[] reaches = buildReaches(words, firstSuccessors, tupleLength);
+        buildAliasTables(firstSuccessors, counts, thresholds, aliases);
+
+        this.vocabulary = vocabulary;
+        this.words = IntBuffer.wrap(words);
+        this.firstSuccessors = IntBuffer.wrap(firstSuccessors);
+        this.counts = IntBuffer.wrap(counts);
+        this.thresholds = FloatBuffer.wrap(thresholds);
+        this.aliases = IntBuffer.wrap(aliases);
+        this.reaches = IntBuffer.wrap(reaches);
+    }
+
+    /**
+     * Reconstitute a tree from arrays previously compiled, as by
+     * {@link ModelFile}.
+     *
+     * @param vocabulary the vocabulary from which its word identifiers were
+     * drawn.
+     * @param tupleLength the length of the window its rules match.
+     * @param words the identifier of the word at each node.
+     * @param firstSuccessors the number of the first successor of each node,
+     * plus one.
+     * @param counts the number of times each node was observed.
+     * @param thresholds the alias table thresholds of each node.
+     * @param aliases the alias of each node.
+     * @param reaches the reach of each node.
+     */
+    FrozenRuleTree(Vocabulary vocabulary, int tupleLength, IntBuffer words,
+            IntBuffer firstSuccessors, IntBuffer counts,
+            FloatBuffer thresholds, IntBuffer aliases, IntBuffer reaches) {
+        this.vocabulary = vocabulary;
+        this.tupleLength = tupleLength;
+        this.words = words;
+        this.firstSuccessors = firstSuccessors;
+        this.counts = counts;
+        this.thresholds = thresholds;
+        this.aliases = aliases;
+        this.reaches = reaches;
+    }
+
+    /**
+     * Work out the reach of every node. The windows of the tree are the
+     * nodes at the depth of the tuple length; each successor of a window,
+     * less the first word of the window, is another window (or nothing, at
+     * the end of the text). Windows with no successors which are windows
+     * are dead ends, whose reach is known; and once all the windows to which
+     * a window leads are known, so is its. Windows which are never known
+     * this way lead into a cycle.
+     *
+     * @param words the identifier of the word at each node.
+     * @param firstSuccessors the number of the first successor of each node.
+     * @param tupleLength the depth of the windows.
+     * @return the reach of each node.
+     */
+    private static int[] buildReaches(int[] words, int[] firstSuccessors,
+            int tupleLength) {
+        final int count = words.length;
+        final int[] depths = new int[count];
+        final int[] suffixes = new int[count];
+        final int[] outDegrees = new int[count];
+        final int[] firstPredecessors = new int[count + 1];
+        final int[] result = new int[count];
+
+        /* the suffix of a node is the node whose path is its path less its
+         * first word; breadth first, a node's suffix is known before its
+         * successors' are needed */
+        suffixes[ROOT] = NOTFOUND;
+        for (int node = 0; node < count; node++) {
+            for (int i = firstSuccessors[node];
+                    i < firstSuccessors[node + 1]; i++) {
+                depths[i] = depths[node] + 1;
+                if (node == ROOT) {
+                    suffixes[i] = ROOT;
+                } else if (suffixes[node] == NOTFOUND) {
+                    suffixes[i] = NOTFOUND;
+                } else {
+                    suffixes[i] = search(words, firstSuccessors,
+                            suffixes[node], words[i]);
+                }
+                if (depths[node] == tupleLength && suffixes[i] != NOTFOUND) {
+                    outDegrees[node]++;
+                    firstPredecessors[suffixes[i] + 1]++;
+                }
+            }
+        }
+
+        /* who leads to whom, backwards */
+        for (int node = 0; node < count; node++) {
+            firstPredecessors[node + 1] += firstPredecessors[node];
+        }
+        final int[] predecessors = new int[firstPredecessors[count]];
+        final int[] filled = new int[count];
+        for (int node = 0; node < count; node++) {
+            if (depths[node] == tupleLength) {
+                for (int i = firstSuccessors[node];
+                        i < firstSuccessors[node + 1]; i++) {
+                    if (suffixes[i] != NOTFOUND) {
+                        predecessors[firstPredecessors[suffixes[i]]
+                                + filled[suffixes[i]]++] = node;
+                    }
+                }
+            }
+        }
+
+        /* peel the dead ends away, backwards */
+        final int[] queue = new int[count];
+        int head = 0;
+        int tail = 0;
+        for (int node = 0; node < count; node++) {
+            if (depths[node] == tupleLength) {
+                result[node] = INFINITE;
+                if (outDegrees[node] == 0) {
+                    queue[tail++] = node;
+                }
+            }
+        }
+        while (head < tail) {
+            final int window = queue[head++];
+            int reach = 0;
+
+            for (int i = firstSuccessors[window];
+                    i < firstSuccessors[window + 1]; i++) {
+                reach = Math.max(reach, suffixes[i] == NOTFOUND ? 1
+                        : onward(result[suffixes[i]]));
+            }
+            result[window] = reach;
+
+            for (int i = firstPredecessors[window];
+                    i < firstPredecessors[window + 1]; i++) {
+                if (--outDegrees[predecessors[i]] == 0) {
+                    queue[tail++] = predecessors[i];
+                }
+            }
+        }
+
+        /* the successors of windows, and the nodes above them */
+        for (int node = count - 1; node >= 0; node--) {
+            if (depths[node] == tupleLength + 1) {
+                result[node] = suffixes[node] == NOTFOUND ? 0
+                        : result[suffixes[node]];
+            } else if (depths[node] < tupleLength) {
+                for (int i = firstSuccessors[node];
+                        i < firstSuccessors[node + 1]; i++) {
+                    result[node] = Math.max(result[node], onward(result[i]));
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @param reach the reach of a successor.
+     * @return the reach of its predecessor by way of it, which is one token
+     * more.
+     */
+    private static int onward(int reach) {
+        return reach >= INFINITE - 1 ? INFINITE : reach + 1;
+    }
+
+    /**
+     * @param words the identifier of the word at each node.
+     * @param firstSuccessors the number of the first successor of each node.
+     * @param node the number of a node.
+     * @param token the identifier of a token to seek.
+     * @return the number of the successor of that node which has this token,
+     * if any, else NOTFOUND.
+     */
+    private static int search(int[] words, int[] firstSuccessors, int node,
+            int token) {
+        final int result = Arrays.binarySearch(words, firstSuccessors[node],
+                firstSuccessors[node + 1], token);
+
+        return result < 0 ? NOTFOUND : result;
+    }
+
+    /**
+     * Build the alias table for the successors of each node, using Vose's
+     * algorithm: scale the weights of the n successors so that they average
+     * one, then repeatedly pair off a successor with less than its share
+     * against one with more, so that each slot ends up holding at most two
+     * successors.
+     *
+     * @param firstSuccessors the number of the first successor of each node.
+     * @param counts the number of times each node was observed, by which it
+     * is weighted.
+     * @param thresholds where to put the threshold of each node.
+     * @param aliases where to put the alias of each node.
+     */
+    private static void buildAliasTables(int[] firstSuccessors, int[] counts,
+            float[] thresholds, int[] aliases) {
+        final int nodes = counts.length;
+        int widest = 0;
+        for (int node = 0; node < nodes; node++) {
+            widest = Math.max(widest, firstSuccessors[node + 1]
+                    - firstSuccessors[node]);
+        }
+
+        final double[] scaled = new double[widest];
+        final int[] small = new int[widest];
+        final int[] large = new int[widest];
+
+        for (int node = 0; node < nodes; node++) {
+            final int first = firstSuccessors[node];
+            final int n = firstSuccessors[node + 1] - first;
+            long total = 0;
+            int smalls = 0;
+            int larges = 0;
+
+            for (int i = 0; i < n; i++) {
+                total += counts[first + i];
+            }
+            for (int i = 0; i < n; i++) {
+                scaled[i] = total == 0 ? 1.0 : (double) counts[first + i] * n
+                        / total;
+                if (scaled[i] < 1.0) {
+                    small[smalls++] = i;
+                } else {
+                    large[larges++] = i;
+                }
+            }
+            while (smalls > 0 && larges > 0) {
+                final int less = small[--smalls];
+                final int more = large[--larges];
+
+                thresholds[first + less] = (float) scaled[less];
+                aliases[first + less] = first + more;
+                scaled[more] = (scaled[more] + scaled[less]) - 1.0;
+                if (scaled[more] < 1.0) {
+                    small[smalls++] = more;
+                } else {
+                    large[larges++] = more;
+                }
+            }
+            /* whatever is left over is, give or take rounding, exactly one */
+            while (larges > 0) {
+                final int i = large[--larges];
+                thresholds[first + i] = 1.0f;
+                aliases[first + i] = first + i;
+            }
+            while (smalls > 0) {
+                final int i = small[--smalls];
+                thresholds[first + i] = 1.0f;
+                aliases[first + i] = first + i;
+            }
+        }
+    }
+
+    /**
+     * @return the vocabulary from which my word identifiers were drawn.
+     */
+    @Override
+    public Vocabulary getVocabulary() {
+        return vocabulary;
+    }
+
+    /**
+     * @return the length of the window my rules match.
+     */
+    @Override
+    public int getTupleLength() {
+        return tupleLength;
+    }
+
+    /**
+     * @return the number of nodes in me, including the root.
+     */
+    public int getNodeCount() {
+        return words.limit();
+    }
+
+    /**
+     * @return the number of nodes in me at each depth, starting with the
+     * root, alone at depth zero.
+     */
+    public int[] getNodeCountsByDepth() {
+        final int[] result = new int[tupleLength + 2];
+        /* nodes are numbered breadth first, so each depth is a range, and
+         * the successors of a range are a range */
+        int first = ROOT;
+        int last = ROOT + 1;
+
+        for (int depth = 0; depth < result.length && first < last; depth++) {
+            result[depth] = last - first;
+            first = firstSuccessors.get(first);
+            last = firstSuccessors.get(last);
+        }
+
+        return result;
+    }
+
+    /**
+     * @return a rough estimate of the number of bytes of store I occupy,
+     * whether on the heap or mapped, including my vocabulary.
+     */
+    public long getStoreSize() {
+        /* six ints a node, and one more successor index */
+        return this.getNodeCount() * 24L + 4 + vocabulary.getStoreSize();
+    }
+
+    /**
+     * @param node the number of a node.
+     * @return the identifier of the word at that node.
+     */
+    @Override
+    public int getWord(long node) {
+        return words.get((int) node);
+    }
+
+    /**
+     * @param node the number of a node.
+     * @return the number of times that node was observed.
+     */
+    public int getCount(long node) {
+        return counts.get((int) node);
+    }
+
+    /**
+     * @param node the number of a node.
+     * @return the greatest number of tokens which could be generated after
+     * the sequence of words from the root to that node, or INFINITE.
+     */
+    @Override
+    public int getReach(long node) {
+        return reaches.get((int) node);
+    }
+
+    /**
+     * @param node the number of a node.
+     * @return true if that node has any successors.
+     */
+    @Override
+    public boolean hasSuccessors(long node) {
+        return firstSuccessors.get((int) node) < firstSuccessors.get(
+                (int) node + 1);
+    }
+
+    /**
+     * @param node the number of a node.
+     * @return the number of successors that node has.
+     */
+    @Override
+    public int getSuccessorCount(long node) {
+        return firstSuccessors.get((int) node + 1) - firstSuccessors.get(
+                (int) node);
+    }
+
+    /**
+     * @param node the number of a node.
+     * @param index an index, less than the number of successors of that node.
+     * @return the number of the successor of that node at that index, in
+     * order of word.
+     */
+    @Override
+    public long getSuccessor(long node, int index) {
+        return firstSuccessors.get((int) node) + index;
+    }
+
+    /**
+     * Choose a successor of this node at random, weighted by the number of
+     * times each was observed, in constant time, whatever its reach.
+     *
+     * @param node the number of a node.
+     * @param random the random number generator with which to choose.
+     * @return the number of the successor chosen, or NOTFOUND if it has none.
+     */
+    @Override
+    public long getRule(long node, Random random) {
+        final int first = firstSuccessors.get((int) node);
+        final int count = firstSuccessors.get((int) node + 1) - first;
+        final int result;
+
+        if (count == 0) {
+            result = NOTFOUND;
+        } else {
+            final int slot = first + random.nextInt(count);
+
+            result = random.nextFloat() < thresholds.get(slot) ? slot
+                    : aliases.get(slot);
+        }
+
+        return result;
+    }
+
+    /**
+     * @param node the number of a node.
+     * @param token the identifier of a token to seek.
+     * @return the number of the successor of that node which has this token,
+     * if any, else NOTFOUND.
+     */
+    protected int getRule(int node, int token) {
+        int low = firstSuccessors.get(node);
+        int high = firstSuccessors.get(node + 1) - 1;
+        int result = NOTFOUND;
+
+        while (result == NOTFOUND && low <= high) {
+            final int middle = (low + high) >>> 1;
+            final int word = words.get(middle);
+
+            if (word < token) {
+                low = middle + 1;
+            } else if (word > token) {
+                high = middle - 1;
+            } else {
+                result = middle;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @param node the number of a node.
+     * @param random the random number generator with which to shuffle.
+     * @return a shuffled array of the identifiers of the words which could
+     * follow that node.
+     */
+    public int[] getSuccessors(int node, Random random) {
+        final int first = firstSuccessors.get(node);
+        final int[] result = new int[firstSuccessors.get(node + 1) - first];
+
+        for (int i = 0; i < result.length; i++) {
+            result[i] = words.get(first + i);
+        }
+        for (int i = result.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = result[i];
+            result[i] = result[j];
+            result[j] = swap;
+        }
+        return result;
+    }
+
+    /**
+     * Find the node whose successors are the terminal strings in the current
+     * rule set which would match this path.
+     *
+     * @param path the path to match, oldest word first; not changed.
+     * @return the number of that node, or NOTFOUND if nothing matches.
+     */
+    @Override
+    public long match(Window path) {
+        int node = ROOT;
+
+        for (int i = 0; node != NOTFOUND && i < path.size(); i++) {
+            node = this.getRule(node, path.get(i));
+        }
+
+        return node;
+    }
+
+    /**
+     * Make a copy of me held outside the heap: my arrays, and my vocabulary,
+     * in direct buffers. Arrays which are already outside it, because they
+     * are mapped from a model file, are shared rather than copied.
+     *
+     * @return the copy.
+     */
+    public FrozenRuleTree offHeap() {
+        return new FrozenRuleTree(vocabulary.isOffHeap() ? vocabulary
+                : vocabulary.offHeap(), tupleLength, offHeap(words),
+                offHeap(firstSuccessors), offHeap(counts),
+                offHeap(thresholds), offHeap(aliases), offHeap(reaches));
+    }
+
+    /**
+     * @param buffer a buffer of ints.
+     * @return it, if it is outside the heap already, or else a copy of it
+     * which is.
+     */
+    private static IntBuffer offHeap(IntBuffer buffer) {
+        final IntBuffer result;
+
+        if (buffer.isDirect()) {
+            result = buffer;
+        } else {
+            final IntBuffer source = buffer.duplicate();
+
+            source.clear();
+            result = ByteBuffer.allocateDirect(source.capacity() * 4)
+                    .order(ByteOrder.nativeOrder()).asIntBuffer();
+            result.put(source).clear();
+        }
+
+        return result;
+    }
+
+    /**
+     * @param buffer a buffer of floats.
+     * @return it, if it is outside the heap already, or else a copy of it
+     * which is.
+     */
+    private static FloatBuffer offHeap(FloatBuffer buffer) {
+        final FloatBuffer result;
+
+        if (buffer.isDirect()) {
+            result = buffer;
+        } else {
+            final FloatBuffer source = buffer.duplicate();
+
+            source.clear();
+            result = ByteBuffer.allocateDirect(source.capacity() * 4)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+            result.put(source).clear();
+        }
+
+        return result;
+    }
+
+    /**
+     * Make a mutable tree, which may be added to, of the same rules as me.
+     *
+     * @return the root of that tree.
+     */
+    RuleTreeNode thaw() {
+        return this.thaw(ROOT);
+    }
+
+    /**
+     * @param node the number of a node.
+     * @return a mutable tree of the same rules as the tree below that node.
+     */
+    private RuleTreeNode thaw(int node) {
+        final RuleTreeNode result = new RuleTreeNode(this.getWord(node),
+                this.getCount(node));
+
+        for (int i = 0; i < this.getSuccessorCount(node); i++) {
+            result.adopt(this.thaw(firstSuccessors.get(node) + i));
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the identifier of the word at each node; for saving.
+     */
+    IntBuffer getWords() {
+        return words.duplicate();
+    }
+
+    /**
+     * @return the number of the first successor of each node; for saving.
+     */
+    IntBuffer getFirstSuccessors() {
+        return firstSuccessors.duplicate();
+    }
+
+    /**
+     * @return the number of times each node was observed; for saving.
+     */
+    IntBuffer getCounts() {
+        return counts.duplicate();
+    }
+
+    /**
+     * @return the alias table threshold of each node; for saving.
+     */
+    FloatBuffer getThresholds() {
+        return thresholds.duplicate();
+    }
+
+    /**
+     * @return the alias of each node; for saving.
+     */
+    IntBuffer getAliases() {
+        return aliases.duplicate();
+    }
+
+    /**
+     * @return the reach of each node; for saving.
+     */
+    IntBuffer getReaches() {
+        return reaches.duplicate();
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+import java.util.Arrays;
+
+/**
+ * A map from token identifiers to values, specialised so that keys are held
+ * as primitive ints in an open addressed table rather than as boxed Integers
+ * in hash map entries. Keys must be non-negative, which token identifiers
+ * are. Most rule tree nodes have very few successors, so I start small.
+ *
+ * @param <V> the type of the values I hold.
+ *
+ * @author simon
+ *
+ */
+class IntMap<V> {
+
+    /**
+     * The key in an empty slot.
+     */
+    private static final int EMPTY = -1;
+    /**
+     * My keys; empty slots hold EMPTY.
+     */
+    private int[] keys;
+    /**
+     * My values, in the slots corresponding to their keys.
+     */
+    private Object[] values;
+    /**
+     * The number of entries I hold.
+     */
+    private int size = 0;
+
+    /**
+     * Create a new, empty, map.
+     */
+    IntMap() {
+        this(2);
+    }
+
+    /**
+     * Create a new, empty, map with room for this many entries before it must
+     * grow.
+     *
+     * @param capacity the number of entries expected.
+     */
+    IntMap(int capacity) {
+        int slots = 2;
+        while (slots < capacity * 2) {
+            slots *= 2;
+        }
+        keys = new int[slots];
+        values = new Object[slots];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    /**
+     * @param key the key to seek.
+     * @return the value stored against this key, or null if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    V get(int key) {
+        return (V) values[this.find(key)];
+    }
+
+    /**
+     * Store this value against this key, replacing any previous value.
+     *
+     * @param key the key.
+     * @param value the value.
+     */
+    void put(int key, V value) {
+        int slot = this.find(key);
+
+        if (keys[slot] == EMPTY) {
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = value;
+
+        if (size * 4 > keys.length * 3) {
+            this.rehash(keys.length * 2);
+        }
+    }
+
+    /**
+     * @return the number of entries I hold.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return true if I hold no entries.
+     */
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the number of slots in my table; entries may be visited by slot
+     * index from zero up to (but excluding) this.
+     */
+    int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * @param slot a slot index.
+     * @return the key in this slot, or a negative number if it is empty.
+     */
+    int keyAt(int slot) {
+        return keys[slot];
+    }
+
+    /**
+     * @param slot a slot index.
+     * @return the value in this slot, or null if it is empty.
+     */
+    @SuppressWarnings("unchecked")
+    V valueAt(int slot) {
+        return (V) values[slot];
+    }
+
+    /**
+     * @return a new array holding all my keys, in no particular order.
+     */
+    int[] keys() {
+        final int[] result = new int[size];
+        int i = 0;
+
+        for (int key : keys) {
+            if (key != EMPTY) {
+                result[i++] = key;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Find the slot which holds, or would hold, this key.
+     *
+     * @param key the key to seek.
+     * @return the index of that slot.
+     */
+    private int find(int key) {
+        final int mask = keys.length - 1;
+        int slot = Vocabulary.mix(key) & mask;
+
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    /**
+     * Rebuild my table with this many slots.
+     *
+     * @param slots the new number of slots; must be a power of two.
+     */
+    private void rehash(int slots) {
+        final int[] oldKeys = keys;
+        final Object[] oldValues = values;
+
+        keys = new int[slots];
+        values = new Object[slots];
+        Arrays.fill(keys, EMPTY);
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = this.find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
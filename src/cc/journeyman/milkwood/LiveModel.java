@@ -0,0 +1,228 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A set of rules which may be learned from while it is being composed from.
+ * <p>
+ * Composers never see the rules while they are being added to; they see a
+ * frozen snapshot of them, which is immutable, and so may be read without any
+ * locking at all. Each time new text is learned a fresh snapshot is frozen
+ * and published in place of the old one; composers which already have the
+ * old one carry on with it undisturbed, and pick up the new one next time
+ * they ask. Readers therefore never block, and never wait for writers.</p>
+ * <p>
+ * Writers do most of their work in parallel: each digests its text into a
+ * rule tree and vocabulary of its own, without touching anything shared. Only
+ * then does it take my lock, to merge its tree into the tree of what has been
+ * learned but not yet published, translating identifiers as it goes; which
+ * costs in proportion to the size of the new text's tree, and nothing in
+ * proportion to the master's. Freezing, which does cost in proportion to the
+ * master's, is done outside that lock, by one writer at a time holding my
+ * freezer: it takes the whole of what is waiting to be published, in one
+ * swap, merges it into the master tree and freezes that; meanwhile other
+ * writers go on merging into a fresh tree of what is waiting. A writer which
+ * gets the freezer only to find that what it learned has been taken by
+ * another has nothing to do, since that other publishes it; so however many
+ * writers learn at once, the master is frozen no more often than it can be,
+ * and, once a writer returns, what it learned is published.</p>
+ * <p>
+ * All this costs store. Once I have learned anything, I hold the master tree
+ * thawed, on the heap, as well as the latest snapshot frozen from it; so a
+ * model which learns holds its rules about twice over, and, while a new
+ * snapshot is being frozen and composers still hold the old, three times.
+ * A model which never learns holds only the rules it started with.</p>
+ *
+ * @author simon
+ *
+ */
+public class LiveModel {
+
+    /**
+     * The length of tuples I digest text into.
+     */
+    private final int tupleLength;
+    /**
+     * Whether the snapshots I publish are to be held outside the heap, as
+     * the rules I started with were.
+     */
+    private final boolean offHeap;
+    /**
+     * The latest snapshot of my rules.
+     */
+    private final AtomicReference<FrozenRuleTree> rules;
+    /**
+     * Held while merging into, or taking, what is waiting to be published.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * Held while merging into, and freezing, the master tree.
+     */
+    private final ReentrantLock freezer = new ReentrantLock();
+    /**
+     * The tree of what has been learned but not yet merged into the master;
+     * null if there is nothing. Guarded by my lock.
+     */
+    private RuleTreeNode pending = null;
+    /**
+     * The vocabulary of the tree of what is waiting. Guarded by my lock.
+     */
+    private Vocabulary pendingVocabulary = null;
+    /**
+     * The master tree, into which everything learned is merged; null until I
+     * first learn anything, if I started from rules already frozen. Guarded
+     * by my freezer.
+     */
+    private RuleTreeNode root;
+    /**
+     * The vocabulary of the master tree. Guarded by my freezer.
+     */
+    private Vocabulary vocabulary;
+
+    /**
+     * Start knowing nothing.
+     *
+     * @param tupleLength the length of tuples to digest text into.
+     */
+    public LiveModel(int tupleLength) {
+        this.tupleLength = tupleLength;
+        this.offHeap = false;
+        this.root = new RuleTreeNode();
+        this.vocabulary = new Vocabulary();
+        this.rules = new AtomicReference<>(root.freeze(new Vocabulary(
+                vocabulary), tupleLength));
+    }
+
+    /**
+     * Start knowing these rules; they are only thawed, which costs store,
+     * should I be asked to learn anything more. If they are held outside the
+     * heap, so are the snapshots I publish after learning; but the master
+     * tree, which is added to, is on the heap, as it has to be.
+     *
+     * @param rules the rules.
+     */
+    public LiveModel(FrozenRuleTree rules) {
+        this.tupleLength = rules.getTupleLength();
+        this.offHeap = rules.getVocabulary().isOffHeap();
+        this.root = null;
+        this.vocabulary = null;
+        this.rules = new AtomicReference<>(rules);
+    }
+
+    /**
+     * @return the length of tuples I digest text into.
+     */
+    public int getTupleLength() {
+        return tupleLength;
+    }
+
+    /**
+     * @return the latest snapshot of my rules, which will never change.
+     */
+    public FrozenRuleTree getRules() {
+        return rules.get();
+    }
+
+    /**
+     * Digest the text on this input into my rules, and publish a snapshot
+     * of them which includes it. May be called by any number of threads at
+     * once.
+     *
+     * @param in the input stream to read.
+     * @throws IOException if the input cannot be read.
+     */
+    public void learn(InputStream in) throws IOException {
+        final Vocabulary local = new Vocabulary();
+        final RuleTreeNode partial = new RuleTreeNode();
+
+        new Digester(local).digest(in, tupleLength, partial);
+
+        lock.lock();
+        try {
+            if (pending == null) {
+                pending = partial;
+                pendingVocabulary = local;
+            } else {
+                pending.merge(partial, translation(local, pendingVocabulary));
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        this.publish();
+    }
+
+    /**
+     * Merge whatever is waiting to be published into the master tree, and
+     * publish a fresh snapshot of it; or, if another writer has already
+     * taken it, do nothing, since that writer has published it.
+     */
+    private void publish() {
+        freezer.lock();
+        try {
+            final RuleTreeNode learned;
+            final Vocabulary learnedVocabulary;
+
+            lock.lock();
+            try {
+                learned = pending;
+                learnedVocabulary = pendingVocabulary;
+                pending = null;
+                pendingVocabulary = null;
+            } finally {
+                lock.unlock();
+            }
+
+            if (learned != null) {
+                if (root == null) {
+                    final FrozenRuleTree frozen = rules.get();
+
+                    root = frozen.thaw();
+                    vocabulary = new Vocabulary(frozen.getVocabulary());
+                }
+                root.merge(learned, translation(learnedVocabulary,
+                        vocabulary));
+
+                /* the vocabulary is copied, since I shall go on adding to
+                 * mine. */
+                if (offHeap) {
+                    rules.set(root.freeze(vocabulary.offHeap(), tupleLength)
+                            .offHeap());
+                } else {
+                    rules.set(root.freeze(new Vocabulary(vocabulary),
+                            tupleLength));
+                }
+            }
+        } finally {
+            freezer.unlock();
+        }
+    }
+
+    /**
+     * @param from a vocabulary.
+     * @param into another vocabulary, into which every token of the first
+     * is interned, if it is not there already.
+     * @return for each identifier in the first vocabulary, by identifier,
+     * the identifier of the same token in the second.
+     */
+    private static int[] translation(Vocabulary from, Vocabulary into) {
+        final int[] result = new int[from.size()];
+
+        for (int id = 0; id < result.length; id++) {
+            final byte[] spelling = from.getSpelling(id);
+
+            result[id] = into.intern(spelling, 0, spelling.length);
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,429 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counts of what the engine has done since it started: how much it has
+ * digested, how big its rules are, how hard composition has had to search
+ * and how long it has taken, and how much it has written. There is one set of
+ * them for the whole process, {@link #GLOBAL}, which may be read directly, or
+ * printed, or exported over JMX by {@link #register()}.
+ * <p>
+ * The counters are cheap enough to leave on always. Nothing is counted
+ * shared in the inner loops: the digester, the composition and the writer
+ * count in fields of their own as they go, and add their counts in here once
+ * at the end of a digestion or a composition, or each time a buffer is
+ * written. Even that is done on striped counters, each thread adding to a
+ * cell of its own, so that a server composing on thousands of threads at
+ * once does not contend on one cache line.</p>
+ *
+ * @author simon
+ *
+ */
+public class Metrics implements MetricsMBean {
+
+    /**
+     * The metrics of the whole process.
+     */
+    public static final Metrics GLOBAL = new Metrics();
+    /**
+     * The name under which I am exported over JMX.
+     */
+    public static final String NAME = "cc.journeyman.milkwood:type=Metrics";
+    /**
+     * The number of nanoseconds in a second.
+     */
+    private static final double NANOS = 1e9;
+    /**
+     * The number of nanoseconds in a millisecond.
+     */
+    private static final double MILLIS = 1e6;
+    /**
+     * Tokens digested.
+     */
+    private final Counter tokensDigested = new Counter();
+    /**
+     * Nanoseconds spent digesting.
+     */
+    private final Counter digestTime = new Counter();
+    /**
+     * Nodes pruned from rule trees.
+     */
+    private final Counter nodesPruned = new Counter();
+    /**
+     * Compositions finished.
+     */
+    private final Counter generations = new Counter();
+    /**
+     * Compositions finished successfully.
+     */
+    private final Counter successes = new Counter();
+    /**
+     * Compositions cut short by their budgets.
+     */
+    private final Counter cutShort = new Counter();
+    /**
+     * Windows matched.
+     */
+    private final Counter matches = new Counter();
+    /**
+     * Candidates tried.
+     */
+    private final Counter candidates = new Counter();
+    /**
+     * Backtracks.
+     */
+    private final Counter backtracks = new Counter();
+    /**
+     * How long compositions took.
+     */
+    private final Histogram latencies = new Histogram();
+    /**
+     * Bytes written.
+     */
+    private final Counter bytesWritten = new Counter();
+    /**
+     * Nanoseconds writers were open.
+     */
+    private final Counter writeTime = new Counter();
+    /**
+     * The number of nodes at each depth of the rules last frozen or loaded.
+     */
+    private volatile int[] nodesByDepth = new int[0];
+    /**
+     * The estimated store of the rules last frozen or loaded.
+     */
+    private volatile long modelStoreSize = 0;
+
+    /**
+     * Export the metrics of the whole process over JMX, under my name; if
+     * that cannot be done, say so on standard error, but carry on.
+     */
+    public static void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(GLOBAL,
+                    new ObjectName(NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            /* already done; that's fine */
+        } catch (JMException e) {
+            System.err.println(String.format(
+                    "Could not export metrics over JMX: %s", e.getMessage()));
+        }
+    }
+
+    /**
+     * Note that a digestion has finished.
+     *
+     * @param tokens the number of tokens it digested.
+     * @param nanos how long it took, in nanoseconds.
+     */
+    void digested(long tokens, long nanos) {
+        tokensDigested.add(tokens);
+        digestTime.add(nanos);
+    }
+
+    /**
+     * Note that nodes have been pruned from a rule tree.
+     *
+     * @param nodes the number of nodes.
+     */
+    void pruned(long nodes) {
+        nodesPruned.add(nodes);
+    }
+
+    /**
+     * Note that these rules have been frozen, or loaded.
+     *
+     * @param rules the rules.
+     */
+    void froze(FrozenRuleTree rules) {
+        nodesByDepth = rules.getNodeCountsByDepth();
+        modelStoreSize = rules.getStoreSize();
+    }
+
+    /**
+     * Note that a composition has finished.
+     *
+     * @param succeeded whether it composed all the tokens asked for.
+     * @param exhausted whether it was cut short by its budget.
+     * @param nanos how long it took, in nanoseconds.
+     * @param matched the number of windows it matched.
+     * @param tried the number of candidates it tried.
+     * @param backtracked the number of times it backtracked.
+     */
+    void composed(boolean succeeded, boolean exhausted, long nanos,
+            long matched, long tried, long backtracked) {
+        generations.add(1);
+        if (succeeded) {
+            successes.add(1);
+        }
+        if (exhausted) {
+            cutShort.add(1);
+        }
+        matches.add(matched);
+        candidates.add(tried);
+        backtracks.add(backtracked);
+        latencies.record(nanos);
+    }
+
+    /**
+     * Note that a writer has written some bytes.
+     *
+     * @param bytes the number of bytes.
+     */
+    void wrote(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    /**
+     * Note that a writer has been closed.
+     *
+     * @param nanos how long it was open, in nanoseconds.
+     */
+    void closed(long nanos) {
+        writeTime.add(nanos);
+    }
+
+    @Override
+    public long getTokensDigested() {
+        return tokensDigested.sum();
+    }
+
+    @Override
+    public double getTokensDigestedPerSecond() {
+        return rate(tokensDigested.sum(), digestTime.sum());
+    }
+
+    @Override
+    public long getNodesPruned() {
+        return nodesPruned.sum();
+    }
+
+    @Override
+    public int[] getNodesByDepth() {
+        return nodesByDepth.clone();
+    }
+
+    @Override
+    public long getModelStoreSize() {
+        return modelStoreSize;
+    }
+
+    @Override
+    public long getGenerations() {
+        return generations.sum();
+    }
+
+    @Override
+    public long getSuccesses() {
+        return successes.sum();
+    }
+
+    @Override
+    public long getCutShort() {
+        return cutShort.sum();
+    }
+
+    @Override
+    public long getMatches() {
+        return matches.sum();
+    }
+
+    @Override
+    public long getCandidatesTried() {
+        return candidates.sum();
+    }
+
+    @Override
+    public long getBacktracks() {
+        return backtracks.sum();
+    }
+
+    @Override
+    public double getGenerationLatencyMedian() {
+        return latencies.percentile(0.5) / MILLIS;
+    }
+
+    @Override
+    public double getGenerationLatency99() {
+        return latencies.percentile(0.99) / MILLIS;
+    }
+
+    @Override
+    public long[] getGenerationLatencyHistogram() {
+        return latencies.snapshot();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public double getBytesWrittenPerSecond() {
+        return rate(bytesWritten.sum(), writeTime.sum());
+    }
+
+    /**
+     * @param count a count of something.
+     * @param nanos the nanoseconds it took.
+     * @return the count per second, or zero if no time was taken.
+     */
+    private static double rate(long count, long nanos) {
+        return nanos == 0 ? 0 : count * NANOS / nanos;
+    }
+
+    /**
+     * @return a summary of everything I know, one metric to a line, fit for
+     * printing on standard error.
+     */
+    @Override
+    public String toString() {
+        final StringBuilder result = new StringBuilder();
+        final long generated = this.getGenerations();
+
+        result.append(String.format("Tokens digested: %d (%.0f/s)%n",
+                this.getTokensDigested(), this.getTokensDigestedPerSecond()));
+        result.append(String.format("Nodes pruned: %d%n",
+                this.getNodesPruned()));
+        result.append(String.format("Nodes by depth: %s%n",
+                Arrays.toString(nodesByDepth)));
+        result.append(String.format("Model store: %d bytes%n",
+                modelStoreSize));
+        result.append(String.format(
+                "Generations: %d (%d succeeded, %d cut short)%n", generated,
+                this.getSuccesses(), this.getCutShort()));
+        if (generated > 0) {
+            result.append(String.format(
+                    "Per generation: %.1f matches, %.1f candidates tried, "
+                    + "%.1f backtracks%n", (double) this.getMatches()
+                    / generated, (double) this.getCandidatesTried()
+                    / generated, (double) this.getBacktracks() / generated));
+            result.append(String.format(
+                    "Generation latency: median < %.3fms, 99%% < %.3fms%n",
+                    this.getGenerationLatencyMedian(),
+                    this.getGenerationLatency99()));
+        }
+        result.append(String.format("Bytes written: %d (%.0f/s)%n",
+                this.getBytesWritten(), this.getBytesWrittenPerSecond()));
+
+        return result.toString();
+    }
+
+    /**
+     * A counter which many threads may add to at once without contending:
+     * each adds to one of a number of cells, chosen by its thread, each on a
+     * cache line of its own, and reading sums the cells.
+     */
+    static final class Counter {
+
+        /**
+         * The number of cells; a power of two.
+         */
+        private static final int STRIPES = 16;
+        /**
+         * The number of longs in a cache line, by which cells are spaced.
+         */
+        private static final int SPACING = 8;
+        /**
+         * My cells.
+         */
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPES
+                * SPACING);
+
+        /**
+         * @param n a number to add to my count.
+         */
+        void add(long n) {
+            cells.getAndAdd((int) (Thread.currentThread().getId()
+                    & (STRIPES - 1)) * SPACING, n);
+        }
+
+        /**
+         * @return my count.
+         */
+        long sum() {
+            long result = 0;
+
+            for (int i = 0; i < STRIPES; i++) {
+                result += cells.get(i * SPACING);
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * A histogram of durations in nanoseconds, in buckets of powers of two;
+     * coarse, but needing no configuration, and never more than a factor of
+     * two out.
+     */
+    static final class Histogram {
+
+        /**
+         * The count in each bucket: bucket n counts durations of at least
+         * 2^(n-1) and less than 2^n nanoseconds, bucket zero those of zero.
+         */
+        private final AtomicLongArray buckets = new AtomicLongArray(
+                Long.SIZE + 1);
+
+        /**
+         * @param nanos a duration to count, in nanoseconds.
+         */
+        void record(long nanos) {
+            buckets.incrementAndGet(Long.SIZE
+                    - Long.numberOfLeadingZeros(Math.max(nanos, 0)));
+        }
+
+        /**
+         * @return the counts in my buckets.
+         */
+        long[] snapshot() {
+            final long[] result = new long[buckets.length()];
+
+            for (int i = 0; i < result.length; i++) {
+                result[i] = buckets.get(i);
+            }
+
+            return result;
+        }
+
+        /**
+         * @param fraction a fraction between zero and one.
+         * @return a duration in nanoseconds within which at least that
+         * fraction of those I have counted fell: the upper bound of the
+         * bucket in which it lies; or zero if I have counted none.
+         */
+        double percentile(double fraction) {
+            final long[] counts = this.snapshot();
+            long total = 0;
+
+            for (long count : counts) {
+                total += count;
+            }
+
+            double result = 0;
+            long seen = 0;
+            for (int i = 0; result == 0 && i < counts.length && total > 0;
+                    i++) {
+                seen += counts[i];
+                if (seen >= fraction * total) {
+                    result = Math.pow(2, i);
+                }
+            }
+
+            return result;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+/**
+ * The management interface through which {@link Metrics} are exported over
+ * JMX, to be watched with jconsole or the like.
+ *
+ * @author simon
+ *
+ */
+public interface MetricsMBean {
+
+    /**
+     * @return the number of tokens digested.
+     */
+    long getTokensDigested();
+
+    /**
+     * @return the number of tokens digested for each second spent digesting.
+     */
+    double getTokensDigestedPerSecond();
+
+    /**
+     * @return the number of nodes pruned from rule trees, while they were
+     * being digested or when they were frozen.
+     */
+    long getNodesPruned();
+
+    /**
+     * @return the number of nodes at each depth of the rule tree most
+     * recently frozen or loaded, starting with the root.
+     */
+    int[] getNodesByDepth();
+
+    /**
+     * @return an estimate of the store occupied by the rule tree most
+     * recently frozen or loaded, in bytes.
+     */
+    long getModelStoreSize();
+
+    /**
+     * @return the number of compositions finished.
+     */
+    long getGenerations();
+
+    /**
+     * @return the number of compositions finished which composed all the
+     * tokens asked for.
+     */
+    long getSuccesses();
+
+    /**
+     * @return the number of compositions which were cut short by their
+     * budgets of time or steps.
+     */
+    long getCutShort();
+
+    /**
+     * @return the number of times a window has been matched against the
+     * rules.
+     */
+    long getMatches();
+
+    /**
+     * @return the number of candidate successors tried.
+     */
+    long getCandidatesTried();
+
+    /**
+     * @return the number of times composition has backtracked.
+     */
+    long getBacktracks();
+
+    /**
+     * @return the median time a composition took, in milliseconds.
+     */
+    double getGenerationLatencyMedian();
+
+    /**
+     * @return the time within which 99% of compositions finished, in
+     * milliseconds.
+     */
+    double getGenerationLatency99();
+
+    /**
+     * @return the number of compositions which finished within each power of
+     * two nanoseconds: the count at index n is of those which took at least
+     * 2^(n-1) and less than 2^n.
+     */
+    long[] getGenerationLatencyHistogram();
+
+    /**
+     * @return the number of bytes written.
+     */
+    long getBytesWritten();
+
+    /**
+     * @return the number of bytes written for each second writers were
+     * open.
+     */
+    double getBytesWrittenPerSecond();
+}
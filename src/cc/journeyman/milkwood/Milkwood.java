@@ -7,12 +7,15 @@
 package cc.journeyman.milkwood;
 
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
 
 /**
  * Text mangler based on
@@ -26,24 +29,161 @@ public class Milkwood {
      * The magic token which is deemed to end sentences.
      */
     public static final String PERIOD = ".";
+    /**
+     * The random number generator from which all my choices are made.
+     */
+    private final Random random;
+    /**
+     * The pruner which keeps the rules I digest within bounds.
+     */
+    private final Pruner pruner;
+    /**
+     * The most time, in milliseconds, which each generation may take, or
+     * Budget.UNLIMITED.
+     */
+    private final long within;
+    /**
+     * The most steps of search which each generation may take, or
+     * Budget.UNLIMITED.
+     */
+    private final long effort;
+
+    /**
+     * Make a text mangler whose choices are different every time.
+     */
+    public Milkwood() {
+        this(new Random());
+    }
+
+    /**
+     * Make a text mangler which makes its choices from this random number
+     * generator; given the same seed, the same rules and the same arguments,
+     * it will generate the same text every time.
+     *
+     * @param random the random number generator.
+     */
+    public Milkwood(Random random) {
+        this(random, Pruner.NONE);
+    }
+
+    /**
+     * Make a text mangler which makes its choices from this random number
+     * generator, and keeps the rules it digests within the bounds set by this
+     * pruner.
+     *
+     * @param random the random number generator.
+     * @param pruner the pruner.
+     */
+    public Milkwood(Random random, Pruner pruner) {
+        this(random, pruner, Budget.UNLIMITED, Budget.UNLIMITED);
+    }
+
+    /**
+     * Make a text mangler which makes its choices from this random number
+     * generator, keeps the rules it digests within the bounds set by this
+     * pruner, and gives up generating, with what it has up to the last
+     * complete sentence, when it runs out of time or steps.
+     *
+     * @param random the random number generator.
+     * @param pruner the pruner.
+     * @param within the most time, in milliseconds, which each generation
+     * may take, or Budget.UNLIMITED.
+     * @param effort the most steps of search which each generation may take,
+     * or Budget.UNLIMITED.
+     */
+    public Milkwood(Random random, Pruner pruner, long within, long effort) {
+        this.random = random;
+        this.pruner = pruner;
+        this.within = within;
+        this.effort = effort;
+    }
 
     /**
      * Parse command line arguments and kick off the process. Expected arguments
      * include:
      * <dl>
+     * <dt>-a, -allocate-direct</dt>
+     * <dd>When serving, hold the rules, and their vocabulary, outside the Java
+     * heap, so that however big they are they do not lengthen pauses for
+     * garbage collection. See {@link FrozenRuleTree#offHeap()}.</dd>
+     * <dt>-b [FILE], -build [FILE]</dt>
+     * <dd>Digest the input and save the rules to this model file, rather than
+     * generating any text from them.</dd>
+     * <dt>-c [NN], -min-count [NN]</dt>
+     * <dd>Forget, once the input is digested, every tuple observed fewer than
+     * this many times. See {@link Pruner}.</dd>
      * <dt>-d, -debug</dt>
      * <dd>Print debugging output to standard error</dd>
+     * <dt>-e [NN], -effort [NN]</dt>
+     * <dd>Give up generating after this many steps of search, with the output
+     * composed so far up to its last complete sentence, and say so on
+     * standard error. See {@link Budget}.</dd>
+     * <dt>-f [NN], -fan-out [NN]</dt>
+     * <dd>Keep, once the input is digested, only this many of the most often
+     * observed successors of any word.</dd>
+     * <dt>-h [MB], -heap-budget [MB]</dt>
+     * <dd>Keep the rules, while the input is being digested, within this many
+     * megabytes of store, by forgetting the rarest tuples whenever they
+     * outgrow it.</dd>
      * <dt>-i [FILE], -input [FILE]</dt>
      * <dd>Input file, expected to be an English (or, frankly, other natural
-     * language) text. Defaults to standard in.</dd>
+     * language) text. Defaults to standard in. May be a directory, meaning
+     * every file in it, or a glob pattern, and may be given more than once;
+     * files ending <code>.gz</code> are decompressed. Each file is digested
+     * separately, so that no tuple crosses from one to the next. See
+     * {@link Corpus}.</dd>
+     * <dt>-j [NN], -jobs [NN]</dt>
+     * <dd>The number of threads with which to digest the input. Defaults to
+     * 1; if more, a single input is read whole and digested in parallel. Many
+     * input files are always digested in a pipeline, with this many threads
+     * reading and this many compiling.</dd>
+     * <dt>-k [NN], -keep-words [NN]</dt>
+     * <dd>Keep, once the input is digested, only this many of the commonest
+     * words, replacing all the rest by <code>&lt;unk&gt;</code>.</dd>
      * <dt>-l [NN], -length [NN]</dt>
      * <dd>The length in tuples of the desired output. Defaults to 100.
+     * <dt>-m [FILE], -model [FILE]</dt>
+     * <dd>Generate from the rules saved in this model file, rather than
+     * digesting any input. The tuple length is that of the model. May be
+     * given more than once when serving, to serve models of different tuple
+     * lengths; otherwise only the first is used.</dd>
      * <dt>-n [NN], -tuple-length [NN]</dt>
      * <dd>The length of tuples into which the file will be analysed, default 2.
      * </dd>
      * <dt>-o [FILE], -output [FILE]</dt>
      * <dd>Output file, to which generated text will be written. Defaults to
      * standard out.</dd>
+     * <dt>-p [NN], -port [NN]</dt>
+     * <dd>Rather than generating text once, run as a server on this port of
+     * the loopback interface, generating text on request until killed. See
+     * {@link Server}.</dd>
+     * <dt>-r [NN], -random-seed [NN]</dt>
+     * <dd>Seed the random number generator with this number, so that the
+     * same output may be generated again.</dd>
+     * <dt>-s, -stream</dt>
+     * <dd>Write each sentence as soon as it is composed, rather than when the
+     * whole output has been.</dd>
+     * <dt>-w [MS], -within [MS]</dt>
+     * <dd>Give up generating after this many milliseconds, as for
+     * <code>-effort</code>; so that, however sparse the rules or unlucky the
+     * seed, generating never takes much longer.</dd>
+     * <dt>-x [SPEC], -examine [SPEC]</dt>
+     * <dd>Rather than generating text, write the rules, whether digested or
+     * loaded from a model file, to the output, in the form given by SPEC:
+     * <code>text</code> or <code>json</code>, optionally followed by the
+     * greatest depth to show and then the most successors to show of any one
+     * node, separated by colons; for example <code>json:3:10</code>. See
+     * {@link TreeDumper}.</dd>
+     * <dt>-u, -use-suffix-array</dt>
+     * <dd>Rather than digesting the input into rules of one tuple length,
+     * index it whole with a suffix array, from which rules of any tuple length
+     * may be had; when serving, the tuple length asked for by each request.
+     * Costs much less store than rules of long tuples, but composes more
+     * slowly; the rules cannot be pruned, examined or saved. See
+     * {@link SuffixIndex}.</dd>
+     * <dt>-v, -verbose</dt>
+     * <dd>Print metrics of what was done to standard error on completion; see
+     * {@link Metrics}.</dd>
      * </dl>
      *
      * @param args the command line arguments
@@ -54,27 +194,94 @@ public class Milkwood {
     public static void main(String[] args) throws FileNotFoundException,
             IOException {
         /* defaults */
-        InputStream in = System.in;
-        OutputStream out = System.out;
+        final Corpus corpus = new Corpus(System.in);
+        /* not System.out, which would have to be written through a stream,
+         * but its file, so that the writer can write to its channel */
+        OutputStream out = new FileOutputStream(FileDescriptor.out);
         int tupleLength = 2;
         boolean debug = false;
+        boolean streaming = false;
+        boolean verbose = false;
+        boolean offHeap = false;
+        boolean suffixArray = false;
+        TreeDumper examine = null;
         int length = 100;
+        int jobs = 1;
+        File build = null;
+        List<File> models = new ArrayList<>();
+        int port = -1;
+        int minCount = 0;
+        int maxSuccessors = Pruner.UNLIMITED;
+        int maxWords = Pruner.UNLIMITED;
+        long budget = Pruner.UNBOUNDED;
+        long within = Budget.UNLIMITED;
+        long effort = Budget.UNLIMITED;
+        boolean cutShort = false;
+        Random random = new Random();
 
         for (int cursor = 0; cursor < args.length; cursor++) {
             String arg = args[cursor];
 
             if (arg.startsWith("-") && arg.length() > 1) {
                 switch (arg.charAt(1)) {
+                    case 'a': // allocate direct
+                        offHeap = true;
+                        break;
+                    case 'b': // build a model file
+                        build = new File(args[++cursor]);
+                        break;
+                    case 'c': // min count
+                        minCount = Integer.parseInt(args[++cursor]);
+                        break;
                     case 'd':
                         debug = true;
                         break;
+                    case 'e': // effort, in steps
+                        effort = Long.parseLong(args[++cursor]);
+                        break;
+                    case 'f': // fan out
+                        maxSuccessors = Integer.parseInt(args[++cursor]);
+                        break;
+                    case 'h': // heap budget, in megabytes
+                        budget = Long.parseLong(args[++cursor]) * 1024 * 1024;
+                        break;
                     case 'i':
                         // input
-                        in = new FileInputStream(new File(args[++cursor]));
+                        corpus.add(args[++cursor]);
                         break;
                     case 'o': // output
                         out = new FileOutputStream(new File(args[++cursor]));
                         break;
+                    case 'p': // port to serve on
+                        port = Integer.parseInt(args[++cursor]);
+                        break;
+                    case 'r': // random seed
+                        random = new Random(Long.parseLong(args[++cursor]));
+                        break;
+                    case 's': // stream
+                        streaming = true;
+                        break;
+                    case 'u': // use a suffix array
+                        suffixArray = true;
+                        break;
+                    case 'w': // within, in milliseconds
+                        within = Long.parseLong(args[++cursor]);
+                        break;
+                    case 'x': // examine
+                        examine = TreeDumper.parse(args[++cursor]);
+                        break;
+                    case 'v': // verbose
+                        verbose = true;
+                        break;
+                    case 'j': // jobs
+                        jobs = Integer.parseInt(args[++cursor]);
+                        break;
+                    case 'm': // generate from a model file
+                        models.add(new File(args[++cursor]));
+                        break;
+                    case 'k': // keep words
+                        maxWords = Integer.parseInt(args[++cursor]);
+                        break;
                     case 'l': // length
                         length = Integer.parseInt(args[++cursor]);
                         break;
@@ -89,82 +296,236 @@ public class Milkwood {
             }
         }
         try {
-            new Milkwood().readAndGenerate(in, out, tupleLength, length, debug);
+            final Milkwood milkwood = new Milkwood(random, new Pruner(
+                    minCount, maxSuccessors, maxWords, budget), within,
+                    effort);
+
+            if (suffixArray && (examine != null || build != null
+                    || !models.isEmpty())) {
+                throw new IllegalArgumentException(
+                        "A suffix array can't be examined, saved or loaded");
+            } else if (suffixArray && port >= 0) {
+                System.err.println(String.format("Serving on port %d",
+                        new Server(milkwood.index(corpus), tupleLength, random,
+                                debug).start(port)));
+            } else if (suffixArray) {
+                cutShort = milkwood.generate(milkwood.index(corpus).atOrder(
+                        tupleLength), out, length, streaming, debug);
+            } else if (port >= 0) {
+                final List<FrozenRuleTree> rules = new ArrayList<>();
+
+                for (File model : models) {
+                    rules.add(new ModelFile(model).load());
+                }
+                if (rules.isEmpty()) {
+                    rules.add(milkwood.read(corpus, tupleLength, jobs,
+                            debug));
+                }
+                if (offHeap) {
+                    for (int i = 0; i < rules.size(); i++) {
+                        rules.set(i, rules.get(i).offHeap());
+                    }
+                }
+                System.err.println(String.format("Serving on port %d",
+                        new Server(rules, random, debug).start(port)));
+            } else if (examine != null) {
+                examine.dump(models.isEmpty() ? milkwood.read(corpus,
+                        tupleLength, jobs, debug) : new ModelFile(models.get(0)).load(),
+                        out);
+            } else if (!models.isEmpty()) {
+                cutShort = milkwood.generate(new ModelFile(models.get(0))
+                        .load(), out, length, streaming, debug);
+            } else if (build != null) {
+                new ModelFile(build).save(milkwood.read(corpus, tupleLength, jobs,
+                        debug));
+            } else {
+                cutShort = milkwood.readAndGenerate(corpus, out, tupleLength,
+                        length, jobs, streaming, debug);
+            }
         } finally {
             out.close();
         }
+        if (cutShort) {
+            System.err.println("Out of time or steps: output cut short at the "
+                    + "last complete sentence");
+        }
+        if (verbose) {
+            System.err.print(Metrics.GLOBAL);
+        }
     }
 
     /**
      * Read tokens from this input and use them to generate text on this output.
      *
-     * @param in the input stream to read.
+     * @param corpus the input to read.
      * @param out the output stream to write to.
      * @param tupleLength the length of tuples to be used in generation.
      * @param length the length in tokens of the output to be generated.
+     * @param jobs the number of threads with which to digest the input.
+     * @param streaming whether to write each sentence as soon as it is
+     * composed.
      * @param debug whether to print debugging output.
+     * @return true if the output was cut short for want of time or steps.
      * @throws IOException if the file system buggers up, which is not, in the
      * cosmic scheme of things, very likely.
      */
-    void readAndGenerate(final InputStream in, final OutputStream out,
-            final int tupleLength, int length, boolean debug)
-            throws IOException {
-        /* The root of the rule tree I shall build. */
-        RuleTreeNode root = new RuleTreeNode();
-        read(in, tupleLength, debug, root);
+    boolean readAndGenerate(final Corpus corpus, final OutputStream out,
+            final int tupleLength, int length, int jobs, boolean streaming,
+            boolean debug) throws IOException {
+        return generate(read(corpus, tupleLength, jobs, debug), out, length,
+                streaming, debug);
+    }
+
+    /**
+     * Read tokens from this input, and make a publisher of text generated
+     * from them, which composes for each of its subscribers only as much as
+     * it asks for; see {@link TokenPublisher}.
+     *
+     * @param corpus the input to read.
+     * @param tupleLength the length of tuples to be used in generation.
+     * @param length the length in tokens of the output to be generated for
+     * each subscriber.
+     * @param jobs the number of threads with which to digest the input.
+     * @param executor the executor on which to compose.
+     * @return the publisher.
+     * @throws IOException if the file system buggers up, which is not, in the
+     * cosmic scheme of things, very likely.
+     */
+    public TokenPublisher publish(final Corpus corpus, final int tupleLength,
+            int length, int jobs, Executor executor) throws IOException {
+        return new TokenPublisher(read(corpus, tupleLength, jobs, false),
+                length, random, executor, false);
+    }
+
+    /**
+     * Use these rules to generate text on this output.
+     *
+     * @param rules the rules to generate from.
+     * @param out the output stream to write to.
+     * @param length the length in tokens of the output to be generated.
+     * @param streaming whether to write each sentence as soon as it is
+     * composed.
+     * @param debug whether to print debugging output.
+     * @return true if the output was cut short for want of time or steps.
+     * @throws IOException if the file system buggers up, which is not, in the
+     * cosmic scheme of things, very likely.
+     */
+    boolean generate(Rules rules, final OutputStream out, int length,
+            boolean streaming, boolean debug) throws IOException {
+        /* the clock starts now, not while the rules were being read */
+        final Budget budget = new Budget(within, effort);
 
-        WordSequence tokens = compose(tupleLength, debug, root, length);
+        if (streaming) {
+            stream(out, debug, rules, length, budget);
+        } else {
+            WordSequence tokens = compose(debug, rules, length, budget);
 
-        write(out, debug, tokens);
+            write(out, debug, tokens, rules.getVocabulary());
+        }
 
         if (debug) {
             System.err.println("\n\nCompleted.");
         }
+        return budget.isExhausted();
     }
 
     /**
-     * Digest the input into a set of rules.
+     * Digest the input into a set of rules, prune them, and freeze them for
+     * generation.
      *
-     * @param in the input stream.
+     * @param corpus the input.
      * @param tupleLength the length of tuples we shall consider.
+     * @param jobs the number of threads with which to digest the input.
      * @param debug whether or not to print debugging output.
-     * @param root the root of the rule tree.
-     * @return the number of tokens read.
+     * @return the frozen rule tree.
      * @throws IOException if the file system buggers up, which is not, in the
      * cosmic scheme of things, very likely.
      */
-    private int read(final InputStream in, final int tupleLength,
-            boolean debug, RuleTreeNode root) throws IOException {
-        int length = new Digester().digest(in, tupleLength, root);
+    private FrozenRuleTree read(final Corpus corpus, final int tupleLength,
+            int jobs, boolean debug) throws IOException {
+        /* The root of the rule tree I shall build. */
+        final RuleTreeNode root = new RuleTreeNode();
+        /* The vocabulary from which its words will be drawn. */
+        final Vocabulary vocabulary = new Vocabulary();
+
+        corpus.digest(vocabulary, tupleLength, root, jobs, pruner);
 
+        final FrozenRuleTree result = pruner.freeze(root, vocabulary,
+                tupleLength);
         if (debug) {
-            System.err.println(root.toString());
+            new TreeDumper(TreeDumper.Format.TEXT, TreeDumper.UNLIMITED,
+                    TreeDumper.UNLIMITED).dump(result, System.err);
         }
-        return length;
+        return result;
+    }
+
+    /**
+     * Read the input whole and index it with a suffix array.
+     *
+     * @param corpus the input.
+     * @return the index.
+     * @throws IOException if the file system buggers up, which is not, in the
+     * cosmic scheme of things, very likely.
+     */
+    private SuffixIndex index(final Corpus corpus) throws IOException {
+        final Vocabulary vocabulary = new Vocabulary();
+
+        return new SuffixIndex(vocabulary, corpus.tokenise(vocabulary));
     }
 
-    private WordSequence compose(final int tupleLength, boolean debug,
-            RuleTreeNode root, int length) {
-        WordSequence tokens = new Composer(debug).compose(root, length);
+    private WordSequence compose(boolean debug, Rules rules,
+            int length, Budget budget) {
+        WordSequence tokens = new Composer(random, debug).compose(rules,
+                length, budget);
+        final int period = rules.getVocabulary().getId(PERIOD);
+
+        if (tokens == null) {
+            /* no path through the rules was found; there's nothing to say */
+            tokens = new WordSequence();
+        }
 
-        if (tokens.contains(PERIOD)) {
-            tokens = tokens.truncateAtLastInstance(PERIOD);
+        if (tokens.contains(period)) {
+            tokens = tokens.truncateAtLastInstance(period);
         }
         return tokens;
     }
 
+    /**
+     * Compose tokens and write them to this output as each sentence is
+     * completed, flushing each as it is, so that whoever is reading sees the
+     * first sentence as soon as it is composed rather than when the writer's
+     * buffer fills.
+     *
+     * @param out the stream to which to write.
+     * @param debug whether or not to print debugging output.
+     * @param rules the rules to compose to.
+     * @param length the length in tokens of the output to be generated.
+     * @param budget the limit on the effort to spend.
+     * @throws IOException if the file system buggers up, which is not, in the
+     * cosmic scheme of things, very likely.
+     */
+    private void stream(final OutputStream out, boolean debug,
+            Rules rules, int length, Budget budget) throws IOException {
+        try (Writer scrivenor = new Writer(out, rules.getVocabulary(), random,
+                true, debug)) {
+            new Composer(random, debug).compose(rules, length, scrivenor,
+                    budget);
+        }
+    }
+
     /**
      * Write this sequence of tokens to this output.
      *
      * @param out the stream to which to write.
      * @param debug whether or not to print debugging output.
      * @param tokens the sequence of tokens to write.
+     * @param vocabulary the vocabulary from which the tokens were drawn.
      * @throws IOException if the file system buggers up, which is not, in the
      * cosmic scheme of things, very likely.
      */
     private void write(final OutputStream out, boolean debug,
-            WordSequence tokens) throws IOException {
-        try (Writer scrivenor = new Writer(out, debug)) {
+            WordSequence tokens, Vocabulary vocabulary) throws IOException {
+        try (Writer scrivenor = new Writer(out, vocabulary, random, debug)) {
             scrivenor.writeSequence(tokens);
         }
     }
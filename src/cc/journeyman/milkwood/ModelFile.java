@@ -0,0 +1,309 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A file in which a frozen rule tree, with its vocabulary, is saved once
+ * digested, so that it need not be digested again every time it is used. The
+ * arrays of the tree are laid out in the file exactly as they are in store,
+ * so that loading is a matter of mapping them, not of reading them; the
+ * operating system then pages in only those parts of the tree which are
+ * actually visited. The file is laid out, big-endian, as:
+ * <ol>
+ * <li>a header of six ints: the magic number, the version of the format, the
+ * tuple length, the number of tokens in the vocabulary, the number of bytes
+ * in their spellings and the number of nodes in the tree;</li>
+ * <li>for each token, the offset of its spelling from the start of the
+ * spellings, with one extra entry for the end of the last;</li>
+ * <li>the UTF-8 spellings of the tokens, end to end, padded to a multiple of
+ * four bytes;</li>
+ * <li>for each node, the identifier of its word; then the number of its
+ * first successor, with one extra entry; then the number of times it was
+ * observed; then its alias table threshold, as a float; then its alias; then
+ * its reach.</li>
+ * </ol>
+ * The vocabulary, which is small, is read rather than mapped, since it has
+ * to be hashed in any case.
+ *
+ * @author simon
+ *
+ */
+public class ModelFile {
+
+    /**
+     * The magic number with which model files start: 'MKWD'.
+     */
+    public static final int MAGIC = 0x4D4B5744;
+    /**
+     * The version of the format I read and write. Files of version 2 may
+     * hold a tuple length guessed from the shape of the tree, and reaches
+     * worked out from it, so are not read.
+     */
+    public static final int VERSION = 3;
+    /**
+     * The number of ints in the header.
+     */
+    private static final int HEADERINTS = 6;
+    /**
+     * The size of the buffer through which I write.
+     */
+    private static final int BUFFERSIZE = 64 * 1024;
+    /**
+     * The file I read or write.
+     */
+    private final File file;
+
+    /**
+     * @param file the file to read or write.
+     */
+    public ModelFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Save this tree, with its vocabulary, to my file, replacing whatever is
+     * there.
+     *
+     * @param rules the tree to save.
+     * @throws IOException if the file cannot be written.
+     */
+    public void save(FrozenRuleTree rules) throws IOException {
+        final Vocabulary vocabulary = rules.getVocabulary();
+        final int size = vocabulary.size();
+        final int nodes = rules.getNodeCount();
+        int spelt = 0;
+
+        for (int id = 0; id < size; id++) {
+            spelt += vocabulary.getSpellingLength(id);
+        }
+
+        try (FileChannel channel = new FileOutputStream(file).getChannel()) {
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFERSIZE);
+
+            buffer.putInt(MAGIC).putInt(VERSION)
+                    .putInt(rules.getTupleLength()).putInt(size).putInt(spelt)
+                    .putInt(nodes);
+
+            int offset = 0;
+            for (int id = 0; id < size; id++) {
+                put(channel, buffer, offset);
+                offset += vocabulary.getSpellingLength(id);
+            }
+            put(channel, buffer, offset);
+
+            for (int id = 0; id < size; id++) {
+                for (byte b : vocabulary.getSpelling(id)) {
+                    if (!buffer.hasRemaining()) {
+                        drain(channel, buffer);
+                    }
+                    buffer.put(b);
+                }
+            }
+            for (int i = spelt; i < pad(spelt); i++) {
+                if (!buffer.hasRemaining()) {
+                    drain(channel, buffer);
+                }
+                buffer.put((byte) 0);
+            }
+
+            put(channel, buffer, rules.getWords());
+            put(channel, buffer, rules.getFirstSuccessors());
+            put(channel, buffer, rules.getCounts());
+            final FloatBuffer thresholds = rules.getThresholds();
+            while (thresholds.hasRemaining()) {
+                if (buffer.remaining() < 4) {
+                    drain(channel, buffer);
+                }
+                buffer.putFloat(thresholds.get());
+            }
+            put(channel, buffer, rules.getAliases());
+            put(channel, buffer, rules.getReaches());
+
+            drain(channel, buffer);
+        }
+    }
+
+    /**
+     * Load the tree saved in my file, mapping its arrays rather than reading
+     * them.
+     *
+     * @return the tree.
+     * @throws IOException if the file cannot be read, or is not a model file
+     * of a version I understand.
+     */
+    public FrozenRuleTree load() throws IOException {
+        final FrozenRuleTree result;
+
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADERINTS * 4);
+
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                /* keep reading */
+            }
+            header.flip();
+            if (header.remaining() < HEADERINTS * 4
+                    || header.getInt() != MAGIC) {
+                throw new IOException(String.format(
+                        "%s is not a model file", file));
+            }
+            final int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException(String.format(
+                        "%s is a model file of version %d; expected %d", file,
+                        version, VERSION));
+            }
+            final int tupleLength = header.getInt();
+            if (tupleLength < 0) {
+                throw new IOException(String.format(
+                        "%s has a tuple length of %d", file, tupleLength));
+            }
+            final int size = header.getInt();
+            final int spelt = header.getInt();
+            final int nodes = header.getInt();
+
+            final long position = HEADERINTS * 4;
+            final long spellings = position + (size + 1) * 4L;
+            final long words = spellings + pad(spelt);
+            final long firstSuccessors = words + nodes * 4L;
+            final long counts = firstSuccessors + (nodes + 1) * 4L;
+            final long thresholds = counts + nodes * 4L;
+            final long aliases = thresholds + nodes * 4L;
+            final long reaches = aliases + nodes * 4L;
+
+            if (channel.size() < reaches + nodes * 4L) {
+                throw new IOException(String.format("%s is truncated", file));
+            }
+
+            final Vocabulary vocabulary = readVocabulary(channel.map(
+                    FileChannel.MapMode.READ_ONLY, position, words - position),
+                    size);
+
+            result = new FrozenRuleTree(vocabulary, tupleLength, map(channel,
+                    words, nodes), map(channel, firstSuccessors, nodes + 1),
+                    map(channel, counts, nodes), channel.map(
+                            FileChannel.MapMode.READ_ONLY, thresholds,
+                            nodes * 4L).asFloatBuffer(), map(channel, aliases,
+                            nodes), map(channel, reaches, nodes));
+        }
+        Metrics.GLOBAL.froze(result);
+
+        return result;
+    }
+
+    /**
+     * Reconstitute a vocabulary from this region of a model file.
+     *
+     * @param region the offsets and spellings of the tokens.
+     * @param size the number of tokens.
+     * @return the vocabulary.
+     * @throws IOException if the tokens are not all distinct, which they will
+     * be unless the file is corrupt.
+     */
+    private Vocabulary readVocabulary(ByteBuffer region, int size)
+            throws IOException {
+        final Vocabulary result = new Vocabulary();
+        final int spellings = (size + 1) * 4;
+        byte[] scratch = new byte[64];
+
+        for (int id = 0; id < size; id++) {
+            final int from = region.getInt(id * 4);
+            final int length = region.getInt((id + 1) * 4) - from;
+
+            if (scratch.length < length) {
+                scratch = new byte[length * 2];
+            }
+            for (int i = 0; i < length; i++) {
+                scratch[i] = region.get(spellings + from + i);
+            }
+            if (result.intern(scratch, 0, length) != id) {
+                throw new IOException(String.format(
+                        "%s has a corrupt vocabulary", file));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @param channel a channel onto a model file.
+     * @param position the offset in the file of an array of ints.
+     * @param length the number of ints in the array.
+     * @return the array, mapped.
+     * @throws IOException if it cannot be mapped.
+     */
+    private static IntBuffer map(FileChannel channel, long position,
+            int length) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position,
+                length * 4L).asIntBuffer();
+    }
+
+    /**
+     * @param length a number of bytes.
+     * @return that number rounded up to a multiple of four.
+     */
+    private static int pad(int length) {
+        return (length + 3) & ~3;
+    }
+
+    /**
+     * Put this int into this buffer, first writing the buffer to this channel
+     * if it is full.
+     *
+     * @param channel the channel.
+     * @param buffer the buffer.
+     * @param value the int.
+     * @throws IOException if the channel cannot be written.
+     */
+    private static void put(FileChannel channel, ByteBuffer buffer, int value)
+            throws IOException {
+        if (buffer.remaining() < 4) {
+            drain(channel, buffer);
+        }
+        buffer.putInt(value);
+    }
+
+    /**
+     * Put all the ints remaining in this array into this buffer, writing it
+     * to this channel whenever it fills.
+     *
+     * @param channel the channel.
+     * @param buffer the buffer.
+     * @param values the array.
+     * @throws IOException if the channel cannot be written.
+     */
+    private static void put(FileChannel channel, ByteBuffer buffer,
+            IntBuffer values) throws IOException {
+        while (values.hasRemaining()) {
+            put(channel, buffer, values.get());
+        }
+    }
+
+    /**
+     * Write everything in this buffer to this channel, and clear it.
+     *
+     * @param channel the channel.
+     * @param buffer the buffer.
+     * @throws IOException if the channel cannot be written.
+     */
+    private static void drain(FileChannel channel, ByteBuffer buffer)
+            throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * What each token of a vocabulary needs by way of orthography when it is
+ * written: whether it wants a space before it, whether it ends a sentence,
+ * and how it is spelt capitalised.
+ * <p>
+ * This is worked out once for a vocabulary, by
+ * {@link Vocabulary#getOrthography()}, and shared by every writer writing
+ * its tokens, so that a writer made for a single request costs nothing in
+ * proportion to the vocabulary. I am never changed once made, so may be
+ * handed between threads freely; should the vocabulary learn more tokens,
+ * a new table is made for it, starting from what I know. Like the
+ * vocabulary itself, I am a handful of arrays however many tokens I cover:
+ * the capitalised spellings are held one after another in a single array
+ * of bytes.</p>
+ *
+ * @author simon
+ *
+ */
+final class Orthography {
+
+    /**
+     * Flag set on a token which should be preceded by a space.
+     */
+    static final byte SPACEBEFORE = 1;
+    /**
+     * Flag set on a token which ends a sentence.
+     */
+    static final byte ENDSSENTENCE = 2;
+    /**
+     * For each token, by identifier, the flags saying what it needs.
+     */
+    private final byte[] flags;
+    /**
+     * The capitalised spellings of the tokens, in UTF-8, one after another in
+     * order of identifier.
+     */
+    private final byte[] capitals;
+    /**
+     * The index in capitals of the capitalised spelling of each token, with
+     * one entry more, at which the last ends.
+     */
+    private final int[] starts;
+
+    /**
+     * Work out the orthography of every token this vocabulary knows now.
+     *
+     * @param vocabulary the vocabulary.
+     * @param previous a table already made for the same vocabulary when it
+     * knew fewer tokens, whose entries need not be worked out again; or null.
+     */
+    Orthography(Vocabulary vocabulary, Orthography previous) {
+        final int size = vocabulary.size();
+        final int known = previous == null ? 0 : previous.size();
+        final byte[][] spellings = new byte[size - known][];
+        int length = previous == null ? 0 : previous.starts[known];
+
+        this.flags = previous == null ? new byte[size] : Arrays.copyOf(
+                previous.flags, size);
+        this.starts = previous == null ? new int[size + 1] : Arrays.copyOf(
+                previous.starts, size + 1);
+
+        for (int token = known; token < size; token++) {
+            final String word = vocabulary.getWord(token);
+
+            flags[token] = (byte) ((spaceBefore(word) ? SPACEBEFORE : 0)
+                    | (endOfSentence(word) ? ENDSSENTENCE : 0));
+            spellings[token - known] = word.isEmpty() ? vocabulary
+                    .getSpelling(token) : (word.substring(0, 1).toUpperCase(
+                            Locale.getDefault()) + word.substring(1))
+                            .getBytes(Vocabulary.UTF8);
+            length += spellings[token - known].length;
+            starts[token + 1] = length;
+        }
+
+        this.capitals = previous == null ? new byte[length] : Arrays.copyOf(
+                previous.capitals, length);
+        for (int token = known; token < size; token++) {
+            System.arraycopy(spellings[token - known], 0, capitals,
+                    starts[token], starts[token + 1] - starts[token]);
+        }
+    }
+
+    /**
+     * @return the number of tokens I cover: those with identifiers from zero
+     * up to but not including it.
+     */
+    int size() {
+        return flags.length;
+    }
+
+    /**
+     * @param token the identifier of a token I cover.
+     * @return the flags saying what that token needs.
+     */
+    byte getFlags(int token) {
+        return flags[token];
+    }
+
+    /**
+     * @return the capitalised spellings of the tokens I cover, one after
+     * another; not to be written to.
+     */
+    byte[] getCapitals() {
+        return capitals;
+    }
+
+    /**
+     * @param token the identifier of a token I cover.
+     * @return the index in {@link #getCapitals()} at which its capitalised
+     * spelling starts.
+     */
+    int getCapitalStart(int token) {
+        return starts[token];
+    }
+
+    /**
+     * @param token the identifier of a token I cover.
+     * @return the length in bytes of its capitalised spelling.
+     */
+    int getCapitalLength(int token) {
+        return starts[token + 1] - starts[token];
+    }
+
+    /**
+     * Return false if token is punctuation, else true. Wouldn't it be nice if
+     * Java provided Character.isPunctuation(char)? However, since it doesn't, I
+     * can give this slightly special semantics: return true only if this is
+     * punctuation which would not normally be preceded with a space.
+     *
+     * @param ch a character.
+     * @return true if the should be preceded by a space, else false.
+     */
+    private static boolean spaceBefore(String token) {
+        final boolean result;
+
+        switch (token.length()) {
+            case 0:
+                result = false;
+                break;
+            case 1:
+                switch (token.charAt(0)) {
+                    case '.':
+                    case ',':
+                    case ':':
+                    case ';':
+                    case '!':
+                    case '?':
+                    case ')':
+                    case ']':
+                    case 's':
+                    /*
+                     * an 's' on its own is probably evidence of a possessive with
+                     * the apostrophe lost
+                     */
+                    case 't':
+                        /*
+                         * similar; probably 'doesn't' or 'shouldn't' or other cases of
+                         * 'not' with an elided 'o'.
+                         */
+                        result = false;
+                        break;
+                    default:
+                        result = true;
+                        break;
+                }
+                break;
+            default:
+                result = true;
+        }
+
+        return result;
+    }
+
+    /**
+     * Does this token mark the end of a sentence? NOTE: The tokeniser is
+     * treating PERIOD ('.') as a word character, even though it has not been
+     * told to. Token.endsWith( PERIOD) is a hack to get round this problem.
+     * TODO: investigate and fix.
+     *
+     * @param token a token.
+     * @return True if in conventional orthography this token should mark the
+     * end of a sentence, else false.
+     */
+    private static boolean endOfSentence(String token) {
+        return token.endsWith(Milkwood.PERIOD)
+                || token.equals("?")
+                || token.endsWith("!");
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+import java.util.Random;
+
+/**
+ * Random permutations of the indices from zero up to some count, which cost
+ * nothing to hold and nothing to step through: the permutation is
+ * <code>(offset + i * stride) mod count</code>, for an offset drawn at random
+ * and a stride, drawn at random, which has no factor in common with the
+ * count, so that every index comes up exactly once before any comes up
+ * again. The whole state of one is two ints, which a caller holds wherever
+ * suits it; and each element costs a multiplication and a remainder, so
+ * that a caller which wants only the first few of a great many indices pays
+ * only for those, where shuffling an array of them would pay for them all.
+ * <p>
+ * This is not every permutation there is, but a family of them: the first
+ * index is uniformly random, and the rest are spread evenly from it. That
+ * is enough for trying candidates in an order no candidate is favoured by.
+ * </p>
+ *
+ * @author simon
+ *
+ */
+final class Permutation {
+
+    /**
+     * Not to be instantiated; the state of a permutation is held by whoever
+     * steps through it.
+     */
+    private Permutation() {
+    }
+
+    /**
+     * @param count the number of indices to permute; at least one.
+     * @param random the random number generator with which to choose.
+     * @return an offset for a permutation of that many indices.
+     */
+    static int offset(int count, Random random) {
+        return random.nextInt(count);
+    }
+
+    /**
+     * @param count the number of indices to permute; at least one.
+     * @param random the random number generator with which to choose.
+     * @return a stride for a permutation of that many indices: a number less
+     * than it, and coprime with it, chosen at random. Only a few are drawn
+     * before one fits, since no number has many small factors.
+     */
+    static int stride(int count, Random random) {
+        int result = count == 1 ? 1 : 1 + random.nextInt(count - 1);
+
+        while (gcd(result, count) != 1) {
+            result = 1 + random.nextInt(count - 1);
+        }
+
+        return result;
+    }
+
+    /**
+     * @param offset the offset of a permutation.
+     * @param stride its stride.
+     * @param count the number of indices it permutes.
+     * @param index the position in it of the index wanted, less than count.
+     * @return the index at that position.
+     */
+    static int at(int offset, int stride, int count, int index) {
+        return (int) ((offset + (long) index * stride) % count);
+    }
+
+    /**
+     * @param a a positive number.
+     * @param b another.
+     * @return their greatest common divisor.
+     */
+    private static int gcd(int a, int b) {
+        int x = a;
+        int y = b;
+
+        while (y != 0) {
+            final int remainder = x % y;
+
+            x = y;
+            y = remainder;
+        }
+
+        return x;
+    }
+}
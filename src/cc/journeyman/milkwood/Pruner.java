@@ -0,0 +1,281 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Keeps a rule tree within bounds. Left alone, a tree grows as the product
+ * of its vocabulary and its tuple length, and a noisy corpus, full of typos
+ * and numbers each seen once, makes it explode; but a tuple seen once is
+ * of little use for generation anyway. So I can
+ * <ul>
+ * <li>forget tuples observed fewer than some number of times;</li>
+ * <li>keep only so many of the most often observed successors of any
+ * node;</li>
+ * <li>keep only so many of the commonest words, replacing all the rarer ones
+ * by the single word {@link #UNKNOWN};</li>
+ * <li>keep the tree, while it is being digested, within a budget of store,
+ * by forgetting the rarest tuples whenever it outgrows it.</li>
+ * </ul>
+ * <p>
+ * The budget is the only one of these applied while digesting, since counts
+ * are not known until digestion is finished: a tuple rare in the first half
+ * of the corpus may be common in the second. What it forgets is forgotten
+ * with its count, so that counts of tuples seen again afterwards are low;
+ * but the commoner a tuple the smaller the error. The rest are applied when
+ * the tree is frozen, by {@link #freeze(RuleTreeNode, Vocabulary, int)}, the
+ * vocabulary first, so that the rare words pooled in {@link #UNKNOWN} are
+ * counted together before anything is forgotten for rarity.</p>
+ *
+ * @author simon
+ *
+ */
+public class Pruner {
+
+    /**
+     * The limit which is no limit.
+     */
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+    /**
+     * The budget which is no budget.
+     */
+    public static final long UNBOUNDED = Long.MAX_VALUE;
+    /**
+     * The word which stands for all the words not kept when the vocabulary is
+     * capped. Since angle brackets are punctuation, and so tokens of their
+     * own, it cannot be mistaken for any word read.
+     */
+    public static final String UNKNOWN = "<unk>";
+    /**
+     * A pruner which keeps everything.
+     */
+    public static final Pruner NONE = new Pruner(0, UNLIMITED, UNLIMITED,
+            UNBOUNDED);
+    /**
+     * The store taken by each node of a rule tree while it is being digested,
+     * in bytes, on average: the node itself, and its share of its parent's
+     * map. Measured on a 64 bit JVM with compressed references, digesting
+     * English at tuple lengths from one to four, as between 58 and 84.
+     */
+    static final int NODESIZE = 80;
+    /**
+     * When a tree outgrows its budget, it is pruned to within this fraction
+     * of it, so that it is not pruned again straight away.
+     */
+    private static final double LOWWATER = 0.75;
+    /**
+     * The fewest observations for which a tuple is kept.
+     */
+    private final int minCount;
+    /**
+     * The most successors any node may keep.
+     */
+    private final int maxSuccessors;
+    /**
+     * The most distinct words which may be kept, besides {@link #UNKNOWN}.
+     */
+    private final int maxWords;
+    /**
+     * The most store the tree may take while being digested, in bytes.
+     */
+    private final long budget;
+
+    /**
+     * @param minCount the fewest observations for which a tuple is kept.
+     * @param maxSuccessors the most successors any node may keep; those kept
+     * are those most often observed.
+     * @param maxWords the most distinct words which may be kept; those kept
+     * are the commonest, and the rest are replaced by {@link #UNKNOWN}.
+     * @param budget the most store a tree may take while being digested, in
+     * bytes.
+     */
+    public Pruner(int minCount, int maxSuccessors, int maxWords, long budget) {
+        this.minCount = minCount;
+        this.maxSuccessors = maxSuccessors;
+        this.maxWords = maxWords;
+        this.budget = budget;
+    }
+
+    /**
+     * Keep watch on the tree below this root while it is being digested, so
+     * as to keep it within this share of my budget.
+     *
+     * @param root the root of the tree.
+     * @param tupleLength the length of the tuples it is digested to.
+     * @param share the number of trees, digested at once, between which my
+     * budget is shared.
+     * @return a watch to tell of each sequence added.
+     */
+    Watch watch(RuleTreeNode root, int tupleLength, int share) {
+        return new Watch(root, tupleLength, share);
+    }
+
+    /**
+     * Prune the tree below this root as I have been asked to, and freeze it.
+     * If I am to cap the vocabulary and it is over the cap, what is frozen is
+     * a copy of the tree in a vocabulary of its own; otherwise the tree is
+     * pruned in place.
+     *
+     * @param root the root of a digested tree.
+     * @param vocabulary the vocabulary from which its words were drawn.
+     * @param tupleLength the length of the tuples it was digested to.
+     * @return the frozen tree.
+     */
+    public FrozenRuleTree freeze(RuleTreeNode root, Vocabulary vocabulary,
+            int tupleLength) {
+        /* within budget before anything else, since capping copies it */
+        new Watch(root, tupleLength, 1).added(0);
+
+        RuleTreeNode pruned = root;
+        Vocabulary words = vocabulary;
+        /* less one for the root magic token, which is no word */
+        if (vocabulary.size() - 1 > maxWords) {
+            words = new Vocabulary();
+            pruned = this.cap(root, vocabulary, words);
+        }
+
+        if (minCount > 1 || maxSuccessors < UNLIMITED) {
+            final long before = pruned.countNodes();
+
+            Metrics.GLOBAL.pruned(before
+                    - pruned.prune(minCount, maxSuccessors, tupleLength + 1));
+        }
+
+        return pruned.freeze(words, tupleLength);
+    }
+
+    /**
+     * Copy this tree into this new vocabulary, keeping only as many of its
+     * words as I may, the commonest, and replacing the rest by
+     * {@link #UNKNOWN}. A word is as common as the number of tuples which
+     * begin with it. Rules which differ only in rare words become one rule,
+     * counted as often as all of them together.
+     *
+     * @param root the root of a digested tree.
+     * @param vocabulary the vocabulary from which its words were drawn.
+     * @param capped a new vocabulary, to hold the words kept.
+     * @return the root of the copy.
+     */
+    private RuleTreeNode cap(RuleTreeNode root, Vocabulary vocabulary,
+            Vocabulary capped) {
+        final int[] frequencies = new int[vocabulary.size()];
+        final Integer[] commonest = new Integer[vocabulary.size() - 1];
+
+        for (int id = 1; id < vocabulary.size(); id++) {
+            final RuleTreeNode first = root.getRule(id);
+
+            frequencies[id] = first == null ? 0 : first.getCount();
+            commonest[id - 1] = id;
+        }
+        Arrays.sort(commonest, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                final int result;
+
+                if (frequencies[a] != frequencies[b]) {
+                    result = frequencies[a] > frequencies[b] ? -1 : 1;
+                } else {
+                    result = a.compareTo(b);
+                }
+
+                return result;
+            }
+        });
+
+        final boolean[] kept = new boolean[vocabulary.size()];
+        for (int i = 0; i < maxWords; i++) {
+            kept[commonest[i]] = true;
+        }
+
+        /* interned in their old order, so that the order of the rules is
+         * much as it was */
+        final int[] translation = new int[vocabulary.size()];
+        translation[Vocabulary.ROOT] = Vocabulary.ROOT;
+        for (int id = 1; id < vocabulary.size(); id++) {
+            translation[id] = capped.intern(kept[id] ? vocabulary.getWord(id)
+                    : UNKNOWN);
+        }
+
+        final RuleTreeNode result = new RuleTreeNode();
+        result.merge(root, translation);
+        Metrics.GLOBAL.pruned(root.countNodes() - result.countNodes());
+
+        return result;
+    }
+
+    /**
+     * Keeps watch on a tree while it is being digested, and prunes it when it
+     * outgrows its budget: first of anything I would prune anyway for having
+     * too many successors, and then, if that is not enough, of the tuples
+     * observed once, then of those observed twice, and so on, until it is
+     * back within its budget.
+     */
+    final class Watch {
+
+        /**
+         * The root of the tree I watch.
+         */
+        private final RuleTreeNode root;
+        /**
+         * The number of levels below the root which every branch kept must
+         * reach: one more than the tuple length.
+         */
+        private final int depth;
+        /**
+         * The most nodes the tree may have.
+         */
+        private final long limit;
+        /**
+         * The number of nodes in the tree, so far as I know.
+         */
+        private long nodes;
+        /**
+         * The fewest observations for which tuples are now being kept.
+         */
+        private int floor = 0;
+
+        /**
+         * @param root the root of the tree to watch.
+         * @param tupleLength the length of the tuples it is digested to.
+         * @param share the number of trees between which the budget is
+         * shared.
+         */
+        private Watch(RuleTreeNode root, int tupleLength, int share) {
+            this.root = root;
+            this.depth = tupleLength + 1;
+            this.limit = budget == UNBOUNDED ? UNBOUNDED : budget
+                    / Math.max(share, 1) / NODESIZE;
+            /* not worth counting if there is no budget to keep to */
+            this.nodes = limit == UNBOUNDED ? 0 : root.countNodes();
+        }
+
+        /**
+         * Note that a sequence has been added to the tree, and prune it if it
+         * has outgrown its budget.
+         *
+         * @param created the number of nodes created to hold it.
+         */
+        void added(int created) {
+            nodes += created;
+
+            if (nodes > limit) {
+                final long before = nodes;
+                final long target = (long) (limit * LOWWATER);
+
+                nodes = root.prune(floor, maxSuccessors, depth);
+                /* the root is never pruned, however small the budget */
+                while (nodes > target && nodes > 1) {
+                    floor++;
+                    nodes = root.prune(floor, maxSuccessors, depth);
+                }
+                Metrics.GLOBAL.pruned(before - nodes);
+            }
+        }
+    }
+}
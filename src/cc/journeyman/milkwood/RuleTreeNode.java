@@ -6,19 +6,17 @@
  */
 package cc.journeyman.milkwood;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Queue;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Random;
-import java.util.Stack;
 
 /**
- * Mapping a word to its successor words. This is probably highly inefficient of
- * store, but for the present purposes my withers are unwrung. Not thread safe
- * in this form because of access to the random number generator.
+ * Mapping a word to its successor words. Words are held as identifiers from a
+ * {@link Vocabulary}, and successors in a primitive keyed map, since on large
+ * corpora the store taken by duplicate strings and boxed map entries does in
+ * the end wring my withers. Not thread safe, since nodes are added to as the
+ * input is digested; once digestion is finished the tree should be frozen,
+ * and only the {@link FrozenRuleTree} shared.
  *
  * @author Simon Brooke <simon@journeyman.cc>
  */
@@ -33,62 +31,113 @@ public class RuleTreeNode {
      */
     public static final String NEWLINE = System.getProperty("line.separator", "\n");
     /**
-     * A random number generator.
+     * Orders nodes most often observed first, and, of those observed equally
+     * often, by their words, so that pruning is repeatable.
      */
-    private static Random RANDOM = new Random();
+    private static final Comparator<RuleTreeNode> MOSTOBSERVED =
+            new Comparator<RuleTreeNode>() {
+                @Override
+                public int compare(RuleTreeNode a, RuleTreeNode b) {
+                    final int result;
+
+                    if (a.count != b.count) {
+                        result = a.count > b.count ? -1 : 1;
+                    } else {
+                        result = a.word < b.word ? -1
+                                : (a.word == b.word ? 0 : 1);
+                    }
+
+                    return result;
+                }
+            };
+    /**
+     * The identifier of the word at this node.
+     */
+    private final int word;
     /**
-     * The word at this node.
+     * Potential successors of this node, keyed by word identifier; null until
+     * I have any, since most nodes are leaves.
      */
-    private final String word;
+    private IntMap<RuleTreeNode> rules = null;
     /**
-     * Potential successors of this node
+     * The number of times the sequence of words from the root to me has been
+     * observed.
      */
-    private Map<String, RuleTreeNode> rules = new HashMap<>();
+    private int count = 0;
 
     /**
      * If no argument passed, generate a root node.
      */
     public RuleTreeNode() {
-        this(RuleTreeNode.ROOTMAGICTOKEN);
+        this(Vocabulary.ROOT);
     }
 
     /**
      * Create me wrapping this word.
      *
-     * @param word the word I represent.
+     * @param word the identifier of the word I represent.
      */
-    public RuleTreeNode(String word) {
+    public RuleTreeNode(int word) {
         this.word = word;
     }
 
     /**
-     * Specialisation: neatly format the rule tree.
+     * Create me wrapping this word, as having been observed this many times.
+     *
+     * @param word the identifier of the word I represent.
+     * @param count the number of times the sequence of words from the root to
+     * me has been observed.
+     */
+    RuleTreeNode(int word, int count) {
+        this.word = word;
+        this.count = count;
+    }
+
+    /**
+     * Specialisation: neatly format the rule tree, showing word identifiers.
      *
      * @return a neatly formatted representation.
      */
     @Override
     public String toString() {
+        return this.toString(null);
+    }
+
+    /**
+     * Neatly format the rule tree, showing words from this vocabulary.
+     *
+     * @param vocabulary the vocabulary my word identifiers were drawn from,
+     * or null to show the identifiers themselves.
+     * @return a neatly formatted representation.
+     */
+    public String toString(Vocabulary vocabulary) {
         StringBuffer buffy = new StringBuffer();
 
-        this.printToBuffer(buffy, 0);
+        this.printToBuffer(buffy, 0, vocabulary);
 
 
         return buffy.toString();
     }
 
-    private void printToBuffer(StringBuffer buffy, int indent) {
+    private void printToBuffer(StringBuffer buffy, int indent,
+            Vocabulary vocabulary) {
         for (int i = 0; i < indent; i++) {
             buffy.append('\t');
         }
-        buffy.append(this.getWord());
+        if (vocabulary == null) {
+            buffy.append(this.getWord());
+        } else {
+            buffy.append(vocabulary.getWord(this.getWord()));
+        }
 
 
-        if (this.rules.isEmpty()) {
+        if (this.rules == null) {
             buffy.append(NEWLINE);
         } else {
             buffy.append(" ==>").append(NEWLINE);
-            for (String successor : this.getSuccessors()) {
-                rules.get(successor).printToBuffer(buffy, indent + 1);
+            for (int successor : this.getSortedSuccessors()) {
+                rules.get(successor).printToBuffer(buffy, indent + 1,
+                        vocabulary);
             }
             buffy.append(NEWLINE);
         }
@@ -96,58 +145,176 @@ public class RuleTreeNode {
 
     /**
      *
-     * @return my word.
+     * @return the identifier of my word.
      */
-    public String getWord() {
+    public int getWord() {
         return word;
     }
 
     /**
      *
-     * @return a shuffled list of the words which could follow this one.
+     * @return the number of times the sequence of words from the root to me
+     * has been observed.
      */
-    public Collection<String> getSuccessors() {
-        ArrayList<String> result = new ArrayList<>();
-        result.addAll(rules.keySet());
-        Collections.shuffle(result, RANDOM);
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     *
+     * @param random the random number generator with which to shuffle.
+     * @return a shuffled array of the identifiers of the words which could
+     * follow this one.
+     */
+    public int[] getSuccessors(Random random) {
+        final int[] result = rules == null ? new int[0] : rules.keys();
+
+        for (int i = result.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = result[i];
+            result[i] = result[j];
+            result[j] = swap;
+        }
         return result;
     }
 
     /**
-     * Compile this sequence of tokens into rule nodes under me.
      *
-     * @param sequence the sequence of tokens to compile.
+     * @return an array of the identifiers of the words which could follow
+     * this one, in ascending order.
      */
-    public void addSequence(Queue<String> sequence) {
-        if (!sequence.isEmpty()) {
-            String token = sequence.remove();
+    int[] getSortedSuccessors() {
+        final int[] result = rules == null ? new int[0] : rules.keys();
+
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     *
+     * @return the number of nodes in the tree of which I am the root,
+     * including myself.
+     */
+    int countNodes() {
+        int result = 1;
+
+        if (rules != null) {
+            for (int slot = 0; slot < rules.capacity(); slot++) {
+                if (rules.keyAt(slot) >= 0) {
+                    result += rules.valueAt(slot).countNodes();
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Compile the tree of which I am the root into a compact, immutable, form
+     * for generation. Once digestion is finished I am only ever read, so
+     * there is no point in carrying around a map at every node.
+     *
+     * @param vocabulary the vocabulary from which my word identifiers were
+     * drawn.
+     * @param tupleLength the length of the tuples I was digested to.
+     * @return the compiled tree.
+     */
+    public FrozenRuleTree freeze(Vocabulary vocabulary, int tupleLength) {
+        final FrozenRuleTree result = new FrozenRuleTree(this, vocabulary,
+                tupleLength);
+
+        Metrics.GLOBAL.froze(result);
+        return result;
+    }
+
+    /**
+     * Compile this sequence of tokens into rule nodes under me. Repeated
+     * observations of the same sequence are counted, so that commoner
+     * sequences may be favoured on output.
+     *
+     * @param sequence the sequence of token identifiers to compile.
+     * @param from the index in the sequence of the first token not yet
+     * compiled.
+     * @return the number of nodes created to hold it, so that the size of
+     * the tree may be kept track of without counting it.
+     */
+    public int addSequence(int[] sequence, int from) {
+        int result = 0;
+
+        if (from < sequence.length) {
+            int token = sequence[from];
             RuleTreeNode successor = this.getRule(token);
             if (successor == null) {
                 successor = new RuleTreeNode(token);
+                if (this.rules == null) {
+                    this.rules = new IntMap<>();
+                }
                 this.rules.put(token, successor);
+                result++;
             }
 
-            successor.addSequence(sequence);
+            successor.count++;
+            result += successor.addSequence(sequence, from + 1);
         }
+
+        return result;
     }
 
     /**
-     * Choose a successor at random.
+     * Forget every successor of mine, and of every node below me, which has
+     * been observed fewer than this many times; and of any node which still
+     * has more than so many successors, forget all but the most often
+     * observed. Whatever was below a forgotten node is forgotten with it.
+     * The successors of the root are not words which follow anything, but
+     * the first words of every window, so however many it has it keeps.
+     * <p>
+     * A node which, once pruned, no longer reaches down to the depth of the
+     * successors of windows is forgotten too, since a window which matched
+     * it would have nothing to follow it: a common word whose successors
+     * were each seen once is no rule at all. Successors are pruned most
+     * often observed first, so that those kept for being commonest are
+     * those which still reach.</p>
      *
-     * @return the successor chosen, or null if I have none.
+     * @param minCount the fewest observations for which a node is kept.
+     * @param maxSuccessors the most successors any node may keep.
+     * @param depth the number of levels which must remain below me; for the
+     * root, one more than the tuple length.
+     * @return the number of nodes left in the tree of which I am the root,
+     * including myself.
      */
-    protected RuleTreeNode getRule() {
-        RuleTreeNode result = null;
+    int prune(int minCount, int maxSuccessors, int depth) {
+        int result = 1;
 
-        if (!rules.isEmpty()) {
-            int target = RANDOM.nextInt(rules.keySet().size());
+        if (rules != null) {
+            final RuleTreeNode[] candidates = new RuleTreeNode[rules.size()];
+            final int most = word == Vocabulary.ROOT ? candidates.length
+                    : maxSuccessors;
+            int n = 0;
+            int kept = 0;
 
-            for (String key : rules.keySet()) {
-                /*
-                 * NOTE: decrement after test.
-                 */
-                if (target-- == 0) {
-                    result = rules.get(key);
+            for (int slot = 0; slot < rules.capacity(); slot++) {
+                if (rules.keyAt(slot) >= 0
+                        && rules.valueAt(slot).count >= minCount) {
+                    candidates[n++] = rules.valueAt(slot);
+                }
+            }
+            if (n > most) {
+                Arrays.sort(candidates, 0, n, MOSTOBSERVED);
+            }
+            for (int i = 0; i < n && kept < most; i++) {
+                final int size = candidates[i].prune(minCount,
+                        maxSuccessors, depth - 1);
+
+                if (depth <= 1 || candidates[i].rules != null) {
+                    candidates[kept++] = candidates[i];
+                    result += size;
+                }
+            }
+
+            if (kept < rules.size()) {
+                rules = kept == 0 ? null : new IntMap<RuleTreeNode>(kept);
+                for (int i = 0; i < kept; i++) {
+                    rules.put(candidates[i].word, candidates[i]);
                 }
             }
         }
@@ -156,52 +323,139 @@ public class RuleTreeNode {
     }
 
     /**
+     * Merge the tree of which this other node is the root into the tree of
+     * which I am the root, such that the result is as if everything compiled
+     * into it had been compiled into me. Subtrees which I don't have are
+     * adopted rather than copied, so the other tree should not be used
+     * afterwards.
      *
-     * @param token a token to seek.
-     * @return the successor among my successors which has this token, if any.
+     * @param other the root of another tree, whose word should be the same
+     * as mine.
      */
-    protected RuleTreeNode getRule(String token) {
-        return rules.get(token);
+    public void merge(RuleTreeNode other) {
+        this.count += other.count;
+
+        if (other.rules != null) {
+            for (int slot = 0; slot < other.rules.capacity(); slot++) {
+                final int token = other.rules.keyAt(slot);
+
+                if (token >= 0) {
+                    final RuleTreeNode successor = this.getRule(token);
+
+                    if (successor == null) {
+                        this.adopt(other.rules.valueAt(slot));
+                    } else {
+                        successor.merge(other.rules.valueAt(slot));
+                    }
+                }
+            }
+        }
     }
 
-    protected String getWord(Stack<String> path) {
-        final String result;
+    /**
+     * Merge the tree of which this other node is the root, whose word
+     * identifiers were drawn from some other vocabulary, into the tree of
+     * which I am the root. Since every identifier has to be translated,
+     * nothing is adopted; the other tree is left as it was.
+     *
+     * @param other the root of another tree, whose word should be the same
+     * as mine.
+     * @param translation the identifier in my vocabulary of each identifier
+     * in the other tree's.
+     */
+    void merge(RuleTreeNode other, int[] translation) {
+        this.count += other.count;
 
-        if (path.isEmpty()) {
-            result = this.getWord();
-        } else {
-            final RuleTreeNode successor = this.getRule(path.pop());
+        if (other.rules != null) {
+            for (int slot = 0; slot < other.rules.capacity(); slot++) {
+                if (other.rules.keyAt(slot) >= 0) {
+                    final int token = translation[other.rules.keyAt(slot)];
+                    RuleTreeNode successor = this.getRule(token);
 
-            if (successor == null) {
-                result = null;
-            } else {
-                result = successor.getWord(path);
+                    if (successor == null) {
+                        successor = new RuleTreeNode(token);
+                        this.adopt(successor);
+                    }
+                    successor.merge(other.rules.valueAt(slot), translation);
+                }
+            }
+        }
+    }
+
+    /**
+     * Take this node, and the tree below it, as a successor of mine.
+     *
+     * @param successor a node whose word is not that of any successor I
+     * already have.
+     */
+    void adopt(RuleTreeNode successor) {
+        if (this.rules == null) {
+            this.rules = new IntMap<>();
+        }
+        this.rules.put(successor.getWord(), successor);
+    }
+
+    /**
+     * Choose a successor at random.
+     *
+     * @param random the random number generator with which to choose.
+     * @return the successor chosen, or null if I have none.
+     */
+    protected RuleTreeNode getRule(Random random) {
+        RuleTreeNode result = null;
+
+        if (rules != null) {
+            int target = random.nextInt(rules.size());
+
+            for (int slot = 0; result == null; slot++) {
+                /*
+                 * NOTE: decrement after test.
+                 */
+                if (rules.keyAt(slot) >= 0 && target-- == 0) {
+                    result = rules.valueAt(slot);
+                }
             }
         }
 
         return result;
     }
 
+    /**
+     *
+     * @param token the identifier of a token to seek.
+     * @return the successor among my successors which has this token, if any.
+     */
+    protected RuleTreeNode getRule(int token) {
+        return rules == null ? null : rules.get(token);
+    }
+
     /**
      * Find all the terminal strings in the current rule set which would match
      * this path.
      *
-     * @param path the path to match
-     * @return a collection (possibly empty) of potential successors.
+     * @param path the path to match, oldest word first; not changed.
+     * @param random the random number generator with which to shuffle the
+     * successors.
+     * @return an array (possibly empty) of potential successors.
      */
-    public Collection<String> match(Window path) {
-        final Collection<String> result;
+    public int[] match(Window path, Random random) {
+        final RuleTreeNode node = this.find(path);
 
-        if (path.isEmpty()) {
-            result = this.getSuccessors();
-        } else {
-            final RuleTreeNode successor = this.getRule(path.pop());
+        return node == null ? new int[0] : node.getSuccessors(random);
+    }
 
-            if (successor == null) {
-                result = new ArrayList<>();
-            } else {
-                result = successor.match(path);
-            }
+    /**
+     * Find the node whose successors are the terminal strings in the current
+     * rule set which would match this path.
+     *
+     * @param path the path to match, oldest word first; not changed.
+     * @return that node, or null if nothing matches.
+     */
+    private RuleTreeNode find(Window path) {
+        RuleTreeNode result = this;
+
+        for (int i = 0; result != null && i < path.size(); i++) {
+            result = result.getRule(path.get(i));
         }
 
         return result;
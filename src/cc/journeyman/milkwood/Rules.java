@@ -0,0 +1,105 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+import java.util.Random;
+
+/**
+ * What a {@link Composition} needs of the rules it composes to: a tree of
+ * nodes, each standing for a sequence of words from the root, whose
+ * successors are the words which have been observed to follow it. Nodes are
+ * known only by number, which means nothing outside the rules which gave it
+ * out; the root is always {@link #ROOT}. Numbers are longs, so that rules
+ * which number their nodes by something other than counting them, as a
+ * suffix index does, have room to.
+ * <p>
+ * The rules may be a {@link FrozenRuleTree}, digested at one tuple length
+ * and holding every node; or a view at some tuple length of a
+ * {@link SuffixIndex}, which holds the text itself and finds nodes by
+ * searching it. Either way they must be immutable, so that any number of
+ * threads may compose from them at once.</p>
+ *
+ * @author simon
+ *
+ */
+public interface Rules {
+
+    /**
+     * The number of the root node.
+     */
+    int ROOT = 0;
+    /**
+     * The value returned by searches which find nothing.
+     */
+    int NOTFOUND = -1;
+    /**
+     * The reach of a node from which generation can go on for ever, or
+     * which is not known to be unable to.
+     */
+    int INFINITE = Integer.MAX_VALUE;
+
+    /**
+     * @return the vocabulary from which my word identifiers were drawn.
+     */
+    Vocabulary getVocabulary();
+
+    /**
+     * @return the length of the window my rules match.
+     */
+    int getTupleLength();
+
+    /**
+     * @param node the number of a node.
+     * @return the identifier of the last word of the sequence that node
+     * stands for.
+     */
+    int getWord(long node);
+
+    /**
+     * @param node the number of a node.
+     * @return the greatest number of tokens which could be generated after
+     * the sequence that node stands for, or INFINITE.
+     */
+    int getReach(long node);
+
+    /**
+     * @param node the number of a node.
+     * @return true if that node has any successors.
+     */
+    boolean hasSuccessors(long node);
+
+    /**
+     * @param node the number of a node.
+     * @return the number of successors that node has.
+     */
+    int getSuccessorCount(long node);
+
+    /**
+     * @param node the number of a node.
+     * @param index an index, less than the number of successors of that node.
+     * @return the number of the successor of that node at that index.
+     */
+    long getSuccessor(long node, int index);
+
+    /**
+     * Choose a successor of this node at random, weighted by the number of
+     * times each was observed.
+     *
+     * @param node the number of a node.
+     * @param random the random number generator with which to choose.
+     * @return the number of the successor chosen, or NOTFOUND if it has none.
+     */
+    long getRule(long node, Random random);
+
+    /**
+     * Find the node which stands for this window.
+     *
+     * @param path the path to match, oldest word first; not changed.
+     * @return the number of that node, or NOTFOUND if nothing matches.
+     */
+    long match(Window path);
+}
@@ -0,0 +1,508 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A long running server which holds one or more rule trees in store and
+ * generates text from them on request, over HTTP on the loopback interface
+ * only. A request is a GET of <code>/generate</code>, with optional
+ * parameters:
+ * <dl>
+ * <dt>length</dt>
+ * <dd>the length in tokens of the output to be generated; default 100;</dd>
+ * <dt>tuple</dt>
+ * <dd>the tuple length of the rule tree to generate from, if more than one is
+ * held; default, the first loaded; or, if I serve a {@link SuffixIndex}, any
+ * tuple length at all, by default the one I was started with;</dd>
+ * <dt>seed</dt>
+ * <dd>a seed for the random number generator, so that the same text may be
+ * had again; default, a generator of the thread handling the request, seeded
+ * from mine;</dd>
+ * <dt>within</dt>
+ * <dd>the most milliseconds to spend composing, after which the text ends at
+ * the last complete sentence, and is marked as cut short (see below);
+ * default, no limit;</dd>
+ * <dt>steps</dt>
+ * <dd>likewise, the most steps of search to take; see {@link Budget}.</dd>
+ * </dl>
+ * The text is streamed back a sentence at a time as it is composed. Since by
+ * the time a budget runs out the response is under way, and its status long
+ * since sent, text cut short by one is followed by a line of its own which
+ * is just {@link #CUTSHORT}; which composed text can never be, since angle
+ * brackets are tokens of their own, and written apart from their words.
+ * <p>
+ * Text may also be added to the rules while the server is running, by a
+ * POST to <code>/learn</code> whose body is the text, with optional parameter
+ * <code>tuple</code> as above; requests composing at the same time carry on
+ * undisturbed, and the requests which follow compose from the new rules. See
+ * {@link LiveModel}. A suffix index cannot learn.</p>
+ * <p>
+ * A GET of <code>/metrics</code> returns a summary of the {@link Metrics} of
+ * the whole process, which are also exported over JMX while I am running.</p>
+ * <p>
+ * Since the rule trees are immutable, and each request composes with a
+ * random number generator of its own, or of its thread's, requests need
+ * share nothing but the trees and may all run at once. Each is handled on a
+ * thread of its own: a virtual thread, where the Java runtime has them, so
+ * that thousands of requests at once cost little more than their buffers;
+ * else a thread from an ordinary cached pool.</p>
+ *
+ * @author simon
+ *
+ */
+public class Server {
+
+    /**
+     * The path on which I answer requests to generate.
+     */
+    public static final String PATH = "/generate";
+    /**
+     * The path on which I answer requests to learn.
+     */
+    public static final String LEARNPATH = "/learn";
+    /**
+     * The path on which I answer requests for metrics.
+     */
+    public static final String METRICSPATH = "/metrics";
+    /**
+     * The line with which text cut short by its budget ends.
+     */
+    public static final String CUTSHORT = "<cut short>";
+    /**
+     * The default length of output, in tokens.
+     */
+    public static final int DEFAULTLENGTH = 100;
+    /**
+     * The number of connections which may wait to be accepted.
+     */
+    public static final int BACKLOG = 1024;
+    /**
+     * The rules I generate from, keyed by tuple length.
+     */
+    private final Map<Integer, LiveModel> models = new HashMap<>();
+    /**
+     * The suffix index I generate from, if I serve one rather than rule
+     * trees, else null.
+     */
+    private final SuffixIndex index;
+    /**
+     * The tuple length of the rule tree to generate from by default.
+     */
+    private final int defaultTuple;
+    /**
+     * Whether or not I am in debugging mode.
+     */
+    private final boolean debug;
+    /**
+     * The random number generator from which those of my threads are seeded.
+     */
+    private final Random random;
+    /**
+     * For each thread handling requests which give no seed, the random number
+     * generator it composes with; seeded, when the thread first needs it,
+     * from mine, so that a server given a seeded generator answers the same
+     * requests, on the same threads, alike.
+     */
+    private final ThreadLocal<Random> generators = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random(random.nextLong());
+        }
+    };
+    /**
+     * The HTTP server which accepts my requests, once started.
+     */
+    private HttpServer server = null;
+    /**
+     * The executor on which requests are handled, once started.
+     */
+    private ExecutorService executor = null;
+
+    /**
+     * @param models the rule trees to generate from; the first is the
+     * default, and if more than one has the same tuple length, the first of
+     * them wins.
+     * @param debug whether or not I am in debugging mode.
+     */
+    public Server(Iterable<FrozenRuleTree> models, boolean debug) {
+        this(models, new Random(), debug);
+    }
+
+    /**
+     * @param models the rule trees to generate from; the first is the
+     * default, and if more than one has the same tuple length, the first of
+     * them wins.
+     * @param random the random number generator from which to seed those
+     * of the threads answering requests which give no seed.
+     * @param debug whether or not I am in debugging mode.
+     */
+    public Server(Iterable<FrozenRuleTree> models, Random random,
+            boolean debug) {
+        int first = -1;
+
+        for (FrozenRuleTree model : models) {
+            if (!this.models.containsKey(model.getTupleLength())) {
+                this.models.put(model.getTupleLength(), new LiveModel(model));
+            }
+            if (first < 0) {
+                first = model.getTupleLength();
+            }
+        }
+        if (first < 0) {
+            throw new IllegalArgumentException("No rules to serve");
+        }
+        this.defaultTuple = first;
+        this.index = null;
+        this.random = random;
+        this.debug = debug;
+    }
+
+    /**
+     * @param index the suffix index to generate from, at whatever tuple
+     * length each request asks.
+     * @param defaultTuple the tuple length to generate at when a request
+     * doesn't say.
+     * @param debug whether or not I am in debugging mode.
+     */
+    public Server(SuffixIndex index, int defaultTuple, boolean debug) {
+        this(index, defaultTuple, new Random(), debug);
+    }
+
+    /**
+     * @param index the suffix index to generate from, at whatever tuple
+     * length each request asks.
+     * @param defaultTuple the tuple length to generate at when a request
+     * doesn't say.
+     * @param random the random number generator from which to seed those
+     * of the threads answering requests which give no seed.
+     * @param debug whether or not I am in debugging mode.
+     */
+    public Server(SuffixIndex index, int defaultTuple, Random random,
+            boolean debug) {
+        this.index = index;
+        this.defaultTuple = defaultTuple;
+        this.random = random;
+        this.debug = debug;
+    }
+
+    /**
+     * Start answering requests on this port of the loopback interface.
+     *
+     * @param port the port; if zero, any free port.
+     * @return the port on which I am answering.
+     * @throws IOException if the port cannot be bound.
+     */
+    public int start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), port), BACKLOG);
+        executor = newExecutor();
+        server.setExecutor(executor);
+        server.createContext(PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    Server.this.handle(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.createContext(LEARNPATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    Server.this.learn(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.createContext(METRICSPATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    respond(exchange, 200, Metrics.GLOBAL.toString());
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        Metrics.register();
+        server.start();
+
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stop answering requests, waiting up to this long for those in hand to
+     * finish.
+     *
+     * @param delay the number of seconds to wait.
+     */
+    public void stop(int delay) {
+        if (server != null) {
+            server.stop(delay);
+            executor.shutdown();
+            server = null;
+            executor = null;
+        }
+    }
+
+    /**
+     * Answer this request.
+     *
+     * @param exchange the request and its response.
+     * @throws IOException if the response cannot be written, most likely
+     * because the client has gone away.
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        int status = 200;
+        String message = null;
+        Rules rules = null;
+        int length = DEFAULTLENGTH;
+        long within = Budget.UNLIMITED;
+        long steps = Budget.UNLIMITED;
+        Random random = null;
+
+        try {
+            final Map<String, String> parameters = parse(exchange
+                    .getRequestURI().getRawQuery());
+
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                status = 405;
+                message = "Only GET is supported";
+            } else {
+                if (parameters.containsKey("length")) {
+                    length = Integer.parseInt(parameters.get("length"));
+                }
+                if (parameters.containsKey("seed")) {
+                    random = new Random(Long.parseLong(parameters.get("seed")));
+                }
+                if (parameters.containsKey("within")) {
+                    within = Long.parseLong(parameters.get("within"));
+                }
+                if (parameters.containsKey("steps")) {
+                    steps = Long.parseLong(parameters.get("steps"));
+                }
+                if (random == null) {
+                    random = generators.get();
+                }
+                rules = this.getRules(parameters);
+                if (length < 0) {
+                    status = 400;
+                    message = "Length may not be negative";
+                } else if (within < 0 || steps < 0) {
+                    status = 400;
+                    message = "Budgets may not be negative";
+                } else if (rules == null) {
+                    status = 404;
+                    message = String.format("No rules of tuple length %s",
+                            parameters.get("tuple"));
+                }
+            }
+        } catch (NumberFormatException e) {
+            status = 400;
+            message = String.format("Not a number: %s", e.getMessage());
+        } catch (IllegalArgumentException e) {
+            status = 400;
+            message = String.format("Bad query: %s", e.getMessage());
+        }
+
+        if (status == 200) {
+            exchange.getResponseHeaders().set("Content-Type",
+                    "text/plain; charset=UTF-8");
+            /* length zero means chunked: we don't know how much there'll be */
+            exchange.sendResponseHeaders(status, 0);
+
+            final OutputStream out = exchange.getResponseBody();
+            final Budget budget = new Budget(within, steps);
+            try (Writer scrivenor = new Writer(out, rules.getVocabulary(),
+                    random, true, debug)) {
+                if (!new Composer(random, debug).compose(rules, length,
+                        scrivenor, budget) && budget.isExhausted()) {
+                    scrivenor.flush();
+                    out.write((CUTSHORT + Writer.NEWLINE)
+                            .getBytes(Vocabulary.UTF8));
+                }
+            }
+        } else {
+            respond(exchange, status, message);
+        }
+    }
+
+    /**
+     * Answer this request to learn.
+     *
+     * @param exchange the request and its response.
+     * @throws IOException if the response cannot be written.
+     */
+    private void learn(HttpExchange exchange) throws IOException {
+        int status = 200;
+        String message = null;
+        LiveModel model = null;
+
+        try {
+            final Map<String, String> parameters = parse(exchange
+                    .getRequestURI().getRawQuery());
+
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                status = 405;
+                message = "Only POST is supported";
+            } else if (index != null) {
+                status = 501;
+                message = "A suffix index cannot learn";
+            } else {
+                model = this.getModel(parameters);
+                if (model == null) {
+                    status = 404;
+                    message = String.format("No rules of tuple length %s",
+                            parameters.get("tuple"));
+                }
+            }
+        } catch (NumberFormatException e) {
+            status = 400;
+            message = String.format("Not a number: %s", e.getMessage());
+        } catch (IllegalArgumentException e) {
+            status = 400;
+            message = String.format("Bad query: %s", e.getMessage());
+        }
+
+        if (status == 200) {
+            try {
+                model.learn(exchange.getRequestBody());
+                message = String.format("Learned; %d nodes", model.getRules()
+                        .getNodeCount());
+            } catch (IOException e) {
+                /* nothing learned is published, so the rules are as they
+                 * were */
+                status = 500;
+                message = String.format("Could not learn: %s",
+                        e.getMessage());
+            }
+        }
+        respond(exchange, status, message);
+    }
+
+    /**
+     * @param parameters the parameters of a request.
+     * @return the rules of the tuple length the request asks for, or of the
+     * default if it doesn't say, or null if I have none such.
+     * @throws NumberFormatException if the tuple length asked for is not a
+     * number.
+     */
+    private Rules getRules(Map<String, String> parameters) {
+        Rules result = null;
+
+        if (index == null) {
+            final LiveModel model = this.getModel(parameters);
+
+            if (model != null) {
+                result = model.getRules();
+            }
+        } else {
+            final int tuple = parameters.containsKey("tuple") ? Integer
+                    .parseInt(parameters.get("tuple")) : defaultTuple;
+
+            try {
+                result = index.atOrder(tuple);
+            } catch (IllegalArgumentException e) {
+                /* there are no rules of that tuple length */
+                result = null;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @param parameters the parameters of a request.
+     * @return the rules of the tuple length the request asks for, or of the
+     * default if it doesn't say, or null if I have none such.
+     * @throws NumberFormatException if the tuple length asked for is not a
+     * number.
+     */
+    private LiveModel getModel(Map<String, String> parameters) {
+        return models.get(parameters.containsKey("tuple") ? Integer
+                .valueOf(parameters.get("tuple")) : defaultTuple);
+    }
+
+    /**
+     * Send a short plain text response.
+     *
+     * @param exchange the request and its response.
+     * @param status the HTTP status of the response.
+     * @param message the text of the response.
+     * @throws IOException if the response cannot be written.
+     */
+    private static void respond(HttpExchange exchange, int status,
+            String message) throws IOException {
+        final byte[] body = (message + Writer.NEWLINE)
+                .getBytes(Vocabulary.UTF8);
+
+        exchange.getResponseHeaders().set("Content-Type",
+                "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * @param query the raw query part of a URI, or null.
+     * @return the parameters in it, decoded.
+     * @throws IOException never, since UTF-8 is always supported.
+     * @throws IllegalArgumentException if any of them is badly encoded.
+     */
+    private static Map<String, String> parse(String query) throws IOException {
+        final Map<String, String> result = new HashMap<>();
+
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                final int equals = pair.indexOf('=');
+
+                if (equals > 0) {
+                    result.put(URLDecoder.decode(pair.substring(0, equals),
+                            "UTF-8"), URLDecoder.decode(pair
+                            .substring(equals + 1), "UTF-8"));
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return an executor which runs each task on a virtual thread of its
+     * own, if this runtime has them, else on a thread from a cached pool.
+     */
+    static ExecutorService newExecutor() {
+        ExecutorService result;
+
+        try {
+            result = (ExecutorService) Executors.class.getMethod(
+                    "newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            result = Executors.newCachedThreadPool();
+        }
+
+        return result;
+    }
+}
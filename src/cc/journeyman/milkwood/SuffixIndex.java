@@ -0,0 +1,545 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The whole of a corpus, held once as an array of word identifiers, with a
+ * suffix array over it: the positions of all its suffixes, sorted. Every
+ * sequence of words which occurs in the corpus is then a contiguous run of
+ * the suffix array, the run of suffixes which begin with it, and can be
+ * found by binary search; so rules of any tuple length may be had from the
+ * one index, chosen when composing rather than when digesting, by
+ * {@link #atOrder(int)}.
+ * <p>
+ * A rule tree holds a node for every distinct sequence of up to one more
+ * than its tuple length; which, for long tuples and big corpora, is a great
+ * many nodes, each costing tens of bytes. I cost two ints for each token of
+ * the corpus, whatever the tuple length, and often less than the tree does
+ * at even the shortest. What is given up is speed: each step of composition
+ * costs a few binary searches of the whole index, rather than a few of a
+ * node's successors; and reach, which is not known, so that a composer must
+ * find the ends of documents by backtracking from them.</p>
+ * <p>
+ * Documents are separated in the array by the root magic token, which no
+ * document can contain, so that no sequence spans two of them. Since it has
+ * the least identifier of any word, and the end of the array sorts before
+ * any word at all, suffixes which have nothing after a sequence but the end
+ * of their document sort first in its run.</p>
+ * <p>
+ * Nodes are numbered by the position in the suffix array of the first suffix
+ * of their run and by their depth, so that a node number may be decoded
+ * without looking anything up. There are as many positions as tokens, and
+ * the product of the two would not fit an int for a big corpus viewed at a
+ * long tuple length; which is why {@link Rules} numbers nodes with longs.
+ * The end of the run is found, when needed, by galloping along the suffix
+ * array from its start. Like the rule tree, I am never modified once made,
+ * and may be shared between as many threads as care to compose from me.</p>
+ *
+ * @author simon
+ *
+ */
+public class SuffixIndex {
+
+    /**
+     * The vocabulary from which my word identifiers were drawn.
+     */
+    private final Vocabulary vocabulary;
+    /**
+     * The identifiers of the words of the corpus, each document followed by
+     * the root magic token.
+     */
+    private final int[] tokens;
+    /**
+     * The positions in tokens of all its suffixes, in order.
+     */
+    private final int[] suffixes;
+
+    /**
+     * Index these tokens.
+     *
+     * @param vocabulary the vocabulary from which their identifiers were
+     * drawn.
+     * @param tokens the identifiers of the words of the corpus, each document
+     * followed by {@link Vocabulary#ROOT}; not copied, and not to be changed
+     * afterwards.
+     */
+    public SuffixIndex(Vocabulary vocabulary, int[] tokens) {
+        this.vocabulary = vocabulary;
+        this.tokens = tokens;
+        this.suffixes = sort(tokens, vocabulary.size());
+    }
+
+    /**
+     * @return the vocabulary from which my word identifiers were drawn.
+     */
+    public Vocabulary getVocabulary() {
+        return vocabulary;
+    }
+
+    /**
+     * @return the number of tokens I hold, including the separators between
+     * documents.
+     */
+    public int size() {
+        return tokens.length;
+    }
+
+    /**
+     * @param tupleLength the length of window to be matched.
+     * @return my rules at that tuple length.
+     * @throws IllegalArgumentException if the tuple length is less than one.
+     */
+    public Rules atOrder(int tupleLength) {
+        if (tupleLength < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "Tuple length must be at least one, not %d",
+                    tupleLength));
+        }
+        return new View(tupleLength);
+    }
+
+    /**
+     * Sort the suffixes of these tokens by prefix doubling: having sorted
+     * them by their first k tokens, and ranked each by its place in that
+     * order, sort them by their first 2k by sorting on the pair of their rank
+     * and the rank of the suffix k further on, until every rank is distinct.
+     * Each round is two stable counting sorts, and the number of rounds is
+     * the logarithm of the longest sequence which occurs twice.
+     *
+     * @param tokens the tokens.
+     * @param alphabet one more than the greatest identifier among them.
+     * @return the positions of their suffixes, in order.
+     */
+    private static int[] sort(int[] tokens, int alphabet) {
+        final int n = tokens.length;
+        int[] result = new int[n];
+        int[] rank = tokens.clone();
+        int[] other = new int[n];
+        int[] counts = new int[Math.max(alphabet, n) + 1];
+        int classes = alphabet;
+        int k = 1;
+
+        if (n > 0) {
+            countingSort(identity(other), rank, result, counts, classes);
+        }
+
+        while (k < n && (k == 1 || classes < n)) {
+            /* by the rank of the suffix k on: those with none first */
+            int p = 0;
+            for (int i = n - k; i < n; i++) {
+                other[p++] = i;
+            }
+            for (int i = 0; i < n; i++) {
+                if (result[i] >= k) {
+                    other[p++] = result[i] - k;
+                }
+            }
+            /* then, stably, by their own */
+            countingSort(other, rank, result, counts, classes);
+
+            /* and rank them afresh */
+            other[result[0]] = 0;
+            classes = 1;
+            for (int i = 1; i < n; i++) {
+                final int a = result[i - 1];
+                final int b = result[i];
+
+                if (rank[a] != rank[b] || rankAfter(rank, a, k)
+                        != rankAfter(rank, b, k)) {
+                    classes++;
+                }
+                other[b] = classes - 1;
+            }
+            final int[] swap = rank;
+            rank = other;
+            other = swap;
+            k *= 2;
+        }
+
+        return result;
+    }
+
+    /**
+     * @param into an array.
+     * @return it, filled with its own indices.
+     */
+    private static int[] identity(int[] into) {
+        for (int i = 0; i < into.length; i++) {
+            into[i] = i;
+        }
+        return into;
+    }
+
+    /**
+     * Sort these positions, stably, by their ranks.
+     *
+     * @param positions the positions to sort.
+     * @param rank the rank of each position.
+     * @param into where to put them sorted.
+     * @param counts scratch space, at least as long as the number of ranks.
+     * @param classes the number of ranks.
+     */
+    private static void countingSort(int[] positions, int[] rank, int[] into,
+            int[] counts, int classes) {
+        Arrays.fill(counts, 0, classes + 1, 0);
+        for (int position : positions) {
+            counts[rank[position] + 1]++;
+        }
+        for (int r = 1; r <= classes; r++) {
+            counts[r] += counts[r - 1];
+        }
+        for (int position : positions) {
+            into[counts[rank[position]]++] = position;
+        }
+    }
+
+    /**
+     * @param rank the rank of each position.
+     * @param position a position.
+     * @param k a distance.
+     * @return the rank of the suffix k after that position, or -1 if there is
+     * none, so that the end of the array sorts first.
+     */
+    private static int rankAfter(int[] rank, int position, int k) {
+        return position + k < rank.length ? rank[position + k] : -1;
+    }
+
+    /**
+     * @param position a position in my tokens.
+     * @return the token there, or -1 if it is past the end, so that the end
+     * sorts first.
+     */
+    private int tokenAt(int position) {
+        return position < tokens.length ? tokens[position] : -1;
+    }
+
+    /**
+     * @param a a position in my tokens.
+     * @param b another.
+     * @param from a number of tokens known to be common to both.
+     * @param limit the most tokens to compare.
+     * @return the number of tokens, up to the limit, which the suffixes at
+     * those positions have in common.
+     */
+    private int commonPrefix(int a, int b, int from, int limit) {
+        int result = from;
+
+        while (result < limit && a + result < tokens.length
+                && b + result < tokens.length
+                && tokens[a + result] == tokens[b + result]) {
+            result++;
+        }
+
+        return result;
+    }
+
+    /**
+     * @param position a position in my tokens.
+     * @param path a path.
+     * @param from a number of tokens known to be common to both.
+     * @return the number of tokens which the suffix at that position has in
+     * common with that path.
+     */
+    private int commonPrefix(int position, Window path, int from) {
+        int result = from;
+
+        while (result < path.size() && position + result < tokens.length
+                && tokens[position + result] == path.get(result)) {
+            result++;
+        }
+
+        return result;
+    }
+
+    /**
+     * Find the first suffix which does not sort before this path. The search
+     * keeps the number of tokens the path has in common with the suffixes at
+     * each bound, and starts comparing at the lesser of them, since every
+     * suffix between shares at least that much; so for the long, repetitive,
+     * windows of high order rules, each token of the path is seldom compared
+     * more than a few times.
+     *
+     * @param path the path.
+     * @return the index in the suffix array of that suffix, or the length of
+     * the array if there is none.
+     */
+    private int lowerBound(Window path) {
+        int low = 0;
+        int high = suffixes.length;
+        int lowCommon = 0;
+        int highCommon = 0;
+
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            final int position = suffixes[middle];
+            final int common = this.commonPrefix(position, path, Math.min(
+                    lowCommon, highCommon));
+
+            if (common < path.size()
+                    && tokenAt(position + common) < path.get(common)) {
+                low = middle + 1;
+                lowCommon = common;
+            } else {
+                high = middle;
+                highCommon = common;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * @param start the index in the suffix array of the first suffix of a
+     * run.
+     * @param depth the length of the sequence the run begins with.
+     * @param high an index after the end of the run.
+     * @param token a token.
+     * @return the index of the first suffix from the start on at which the
+     * token at that depth is not less than the one given, found by galloping
+     * and then by binary search, so that it costs little if it is near.
+     */
+    private int gallop(int start, int depth, int high, int token) {
+        int low = start;
+        int step = 1;
+        int bound = start;
+
+        while (bound < high && tokenAt(suffixes[bound] + depth) < token) {
+            low = bound + 1;
+            bound = start + step;
+            step *= 2;
+        }
+        bound = Math.min(bound, high);
+        while (low < bound) {
+            final int middle = (low + bound) >>> 1;
+
+            if (tokenAt(suffixes[middle] + depth) < token) {
+                low = middle + 1;
+            } else {
+                bound = middle;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * @param start the index in the suffix array of the first suffix of a
+     * run.
+     * @param depth the length of the sequence the run begins with.
+     * @return the index after the last suffix of the run, found by galloping.
+     */
+    private int end(int start, int depth) {
+        final int first = suffixes[start];
+        int low = start + 1;
+        int step = 1;
+        int bound = low;
+
+        while (bound < suffixes.length
+                && this.commonPrefix(first, suffixes[bound], 0, depth)
+                == depth) {
+            low = bound + 1;
+            bound = start + 1 + step;
+            step *= 2;
+        }
+        bound = Math.min(bound, suffixes.length);
+        while (low < bound) {
+            final int middle = (low + bound) >>> 1;
+
+            if (this.commonPrefix(first, suffixes[middle], 0, depth)
+                    == depth) {
+                low = middle + 1;
+            } else {
+                bound = middle;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * My rules at one tuple length. A node at depth d stands for the run of
+     * suffixes beginning with some sequence of d words, and its number is
+     * the index of the first of them times the greatest depth plus one, plus
+     * d. Its successors are the distinct words which follow that sequence,
+     * each standing for the run, within the node's, of the suffixes which go
+     * on with it; since those are sorted by it, each successor's run starts
+     * where the word at depth d changes, and is found by galloping on from
+     * the one before, so that counting or indexing the successors of a node
+     * costs in proportion to how many there are, not to how often they were
+     * observed. A successor is drawn at random by drawing one of the suffixes
+     * of the node's run which goes on, and taking the successor whose run it
+     * is in; so that each is drawn in proportion to the length of its run,
+     * which is the number of times it was observed, as a rule tree's alias
+     * tables draw them by count.
+     */
+    private final class View implements Rules {
+
+        /**
+         * The length of the window my rules match.
+         */
+        private final int tupleLength;
+        /**
+         * The multiplier of node numbers; the greatest depth of a node is one
+         * more than the tuple length, as in a rule tree.
+         */
+        private final int stride;
+
+        /**
+         * @param tupleLength the length of the window my rules match.
+         */
+        private View(int tupleLength) {
+            this.tupleLength = tupleLength;
+            this.stride = tupleLength + 2;
+        }
+
+        @Override
+        public Vocabulary getVocabulary() {
+            return vocabulary;
+        }
+
+        @Override
+        public int getTupleLength() {
+            return tupleLength;
+        }
+
+        @Override
+        public int getWord(long node) {
+            final int depth = (int) (node % stride);
+
+            return depth == 0 ? Vocabulary.ROOT : tokens[suffixes[(int) (node
+                    / stride)] + depth - 1];
+        }
+
+        /**
+         * Reach is not known; every node is taken to go on for ever, and a
+         * composer learns otherwise by backtracking.
+         *
+         * @param node the number of a node.
+         * @return INFINITE.
+         */
+        @Override
+        public int getReach(long node) {
+            return INFINITE;
+        }
+
+        @Override
+        public boolean hasSuccessors(long node) {
+            final int depth = (int) (node % stride);
+            final int start = (int) (node / stride);
+            boolean result = false;
+
+            if (depth <= tupleLength) {
+                final int end = end(start, depth);
+
+                result = this.firstGoingOn(start, depth, end) < end;
+            }
+
+            return result;
+        }
+
+        @Override
+        public int getSuccessorCount(long node) {
+            final int depth = (int) (node % stride);
+            final int start = (int) (node / stride);
+            int result = 0;
+
+            if (depth <= tupleLength) {
+                final int end = end(start, depth);
+
+                for (int i = this.firstGoingOn(start, depth, end); i < end;
+                        i = this.nextSuccessor(i, depth, end)) {
+                    result++;
+                }
+            }
+
+            return result;
+        }
+
+        @Override
+        public long getSuccessor(long node, int index) {
+            final int depth = (int) (node % stride);
+            final int start = (int) (node / stride);
+            final int end = end(start, depth);
+            int first = this.firstGoingOn(start, depth, end);
+
+            for (int i = 0; i < index; i++) {
+                first = this.nextSuccessor(first, depth, end);
+            }
+
+            return (long) first * stride + depth + 1;
+        }
+
+        @Override
+        public long getRule(long node, Random random) {
+            final int depth = (int) (node % stride);
+            final int start = (int) (node / stride);
+            long result = NOTFOUND;
+
+            if (depth <= tupleLength) {
+                final int end = end(start, depth);
+                final int first = this.firstGoingOn(start, depth, end);
+
+                if (first < end) {
+                    final int chosen = first + random.nextInt(end - first);
+
+                    /* the run of the successor starts at the first suffix
+                     * from which the token at this depth is the same as the
+                     * chosen one's, since within the run of the node they
+                     * are sorted by it */
+                    result = (long) gallop(first, depth, chosen,
+                            tokens[suffixes[chosen] + depth]) * stride
+                            + depth + 1;
+                }
+            }
+
+            return result;
+        }
+
+        @Override
+        public long match(Window path) {
+            final int start = lowerBound(path);
+            final long result;
+
+            if (start < suffixes.length && commonPrefix(suffixes[start],
+                    path, 0) == path.size()) {
+                result = (long) start * stride + path.size();
+            } else {
+                result = NOTFOUND;
+            }
+
+            return result;
+        }
+
+        /**
+         * @param start the index of the first suffix of a run.
+         * @param depth the length of the sequence the run begins with.
+         * @param end the index after its last suffix.
+         * @return the index of the first suffix of the run which goes on,
+         * past that sequence, within its document; those which do not sort
+         * first.
+         */
+        private int firstGoingOn(int start, int depth, int end) {
+            return gallop(start, depth, end, Vocabulary.ROOT + 1);
+        }
+
+        /**
+         * @param from the index of the first suffix of the run of one
+         * successor of a node.
+         * @param depth the depth of the node.
+         * @param end the index after the last suffix of the node's run.
+         * @return the index of the first suffix of the run of the next
+         * successor, or the end if there is none.
+         */
+        private int nextSuccessor(int from, int depth, int end) {
+            return gallop(from, depth, end, tokens[suffixes[from] + depth]
+                    + 1);
+        }
+    }
+}
@@ -0,0 +1,487 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes generated text a word at a time, to subscribers which ask for
+ * words as they are ready for them, after the manner of
+ * <code>java.util.concurrent.Flow</code>: each subscriber is given a
+ * subscription, through which it requests so many words, and is then sent
+ * no more than it has requested, followed by either completion or an error;
+ * or it may cancel at any time.
+ * <p>
+ * Each subscription composes a document of its own, with a random number
+ * generator of its own seeded from mine, and composes only as far as it must
+ * to meet the demand: when a subscriber has all it has asked for, composing
+ * stops, and nothing more is held than the sentence in hand, however slow
+ * the subscriber. Words are only sent once the sentence they are in is
+ * committed, as when streaming to a {@link Writer}, since until then the
+ * search may yet take them back. A subscription which is cancelled stops
+ * composing at the next step, and holds nothing thereafter.</p>
+ * <p>
+ * Composing is done on my executor, never on the subscriber's thread, so that
+ * requesting more from within {@link Subscriber#onNext(String)} is safe; and
+ * for any one subscription it is done by one task at a time, so that its
+ * subscriber is never called from two threads at once.</p>
+ * <p>
+ * The words sent are as my rules' vocabulary holds them: lower case, with
+ * each mark of punctuation a word of its own. Flow itself came with Java 9,
+ * and I am compiled for Java 7, so my subscribers and subscriptions are
+ * interfaces of my own, of the same shape; on a runtime which has Flow,
+ * {@link #toFlowPublisher()} makes a real <code>Flow.Publisher</code> of
+ * me.</p>
+ *
+ * @author simon
+ *
+ */
+public class TokenPublisher {
+
+    /**
+     * The receiver of the words of one document, as requested.
+     */
+    public interface Subscriber {
+
+        /**
+         * Called once, before anything else, with the subscription through
+         * which to request words.
+         *
+         * @param subscription the subscription.
+         */
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * Called once for each word requested, until the document is ended.
+         *
+         * @param word the next word.
+         */
+        void onNext(String word);
+
+        /**
+         * Called at most once, if composing failed; nothing more follows.
+         *
+         * @param error what went wrong.
+         */
+        void onError(Throwable error);
+
+        /**
+         * Called at most once, when the document is ended, whether or not any
+         * more words were requested; nothing more follows.
+         */
+        void onComplete();
+    }
+
+    /**
+     * The link between one subscriber and the composition of its document.
+     */
+    public interface Subscription {
+
+        /**
+         * Ask for this many more words. May be called from any thread,
+         * including from within onNext.
+         *
+         * @param n the number of words; if not positive, the subscriber is
+         * sent an error.
+         */
+        void request(long n);
+
+        /**
+         * Ask for no more words; composing stops, and the subscriber may be
+         * sent a few more calls, already under way, and then no more.
+         */
+        void cancel();
+    }
+
+    /**
+     * The rules to compose from.
+     */
+    private final Rules rules;
+    /**
+     * The number of tokens to compose for each subscriber, after the preamble.
+     */
+    private final int length;
+    /**
+     * The random number generator from which each subscription's own is
+     * seeded.
+     */
+    private final Random random;
+    /**
+     * The executor on which composing is done.
+     */
+    private final Executor executor;
+    /**
+     * Whether or not to print debugging output.
+     */
+    private final boolean debug;
+
+    /**
+     * @param rules the rules to compose from.
+     * @param length the number of tokens to compose for each subscriber,
+     * after the preamble.
+     * @param random the random number generator from which to seed each
+     * subscription's own.
+     * @param executor the executor on which to compose.
+     * @param debug whether or not to print debugging output.
+     */
+    public TokenPublisher(Rules rules, int length, Random random,
+            Executor executor, boolean debug) {
+        this.rules = rules;
+        this.length = length;
+        this.random = random;
+        this.executor = executor;
+        this.debug = debug;
+    }
+
+    /**
+     * Compose a document for this subscriber, as it asks for it.
+     *
+     * @param subscriber the subscriber.
+     */
+    public void subscribe(Subscriber subscriber) {
+        final Link link = new Link(subscriber, new Random(random.nextLong()));
+
+        subscriber.onSubscribe(link);
+    }
+
+    /**
+     * Make a <code>java.util.concurrent.Flow.Publisher&lt;String&gt;</code>
+     * of me, each of whose subscribers is subscribed to me through a pair of
+     * adapters.
+     *
+     * @return the publisher.
+     * @throws UnsupportedOperationException if this runtime has no Flow.
+     */
+    public Object toFlowPublisher() {
+        final Class<?> publisher;
+        final Class<?> subscriber;
+        final Class<?> subscription;
+
+        try {
+            publisher = Class.forName("java.util.concurrent.Flow$Publisher");
+            subscriber = Class.forName("java.util.concurrent.Flow$Subscriber");
+            subscription = Class.forName(
+                    "java.util.concurrent.Flow$Subscription");
+        } catch (ClassNotFoundException e) {
+            throw new UnsupportedOperationException(
+                    "This runtime has no java.util.concurrent.Flow", e);
+        }
+
+        return proxy(publisher, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args)
+                    throws Throwable {
+                if (args[0] == null) {
+                    throw new NullPointerException("No subscriber");
+                }
+                subscribe(new FlowSubscriber(args[0], subscriber,
+                        subscription));
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @param type an interface.
+     * @param handler the handler for its methods, save those of Object.
+     * @return an implementation of it by that handler, whose equals,
+     * hashCode and toString are those of Object.
+     */
+    private static Object proxy(Class<?> type,
+            final InvocationHandler handler) {
+        return Proxy.newProxyInstance(type.getClassLoader(),
+                new Class<?>[]{type}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) throws Throwable {
+                        final Object result;
+
+                        switch (method.getName()) {
+                            case "equals":
+                                result = proxy == args[0];
+                                break;
+                            case "hashCode":
+                                result = System.identityHashCode(proxy);
+                                break;
+                            case "toString":
+                                result = proxy.getClass().getName() + "@"
+                                        + Integer.toHexString(System
+                                        .identityHashCode(proxy));
+                                break;
+                            default:
+                                result = handler.invoke(proxy, method, args);
+                        }
+
+                        return result;
+                    }
+                });
+    }
+
+    /**
+     * One subscription: the composition of one subscriber's document, and
+     * the demand for it.
+     */
+    private final class Link implements Subscription, Runnable {
+
+        /**
+         * My subscriber.
+         */
+        private final Subscriber subscriber;
+        /**
+         * The composition of my subscriber's document; made by the first
+         * task to run, so that nothing is composed before it is asked for.
+         */
+        private Composition composition = null;
+        /**
+         * The random number generator for my composition.
+         */
+        private final Random random;
+        /**
+         * The number of words requested and not yet sent.
+         */
+        private final AtomicLong requested = new AtomicLong();
+        /**
+         * The number of times I have been asked to run and not yet caught
+         * up, so that only one task runs at a time and none is missed.
+         */
+        private final AtomicInteger pending = new AtomicInteger();
+        /**
+         * Whether I have been cancelled, or have ended.
+         */
+        private volatile boolean cancelled = false;
+        /**
+         * A request which was not positive, to be reported as an error.
+         */
+        private volatile long invalid = 0;
+
+        /**
+         * @param subscriber my subscriber.
+         * @param random the random number generator for my composition.
+         */
+        private Link(Subscriber subscriber, Random random) {
+            this.subscriber = subscriber;
+            this.random = random;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalid = n;
+            } else {
+                long current;
+                long next;
+
+                do {
+                    current = requested.get();
+                    next = current + n < 0 ? Long.MAX_VALUE : current + n;
+                } while (!requested.compareAndSet(current, next));
+            }
+            this.schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            this.schedule();
+        }
+
+        /**
+         * Have my task run, unless it is running already, in which case it
+         * will run again.
+         */
+        private void schedule() {
+            if (pending.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+
+        /**
+         * Compose and send words while there is demand, until I am caught up
+         * with every time I was asked to run.
+         */
+        @Override
+        public void run() {
+            int missed = 1;
+
+            do {
+                try {
+                    this.drain();
+                } catch (RuntimeException | Error e) {
+                    this.end(e);
+                }
+                missed = pending.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        /**
+         * Send as many words as are wanted and can be composed.
+         */
+        private void drain() {
+            if (!cancelled && invalid != 0) {
+                this.end(new IllegalArgumentException(String.format(
+                        "Requested %d words; requests must be positive",
+                        invalid)));
+            }
+            if (!cancelled && composition == null) {
+                composition = new Composition(rules, length, true, random,
+                        debug);
+            }
+
+            long sent = 0;
+            while (!cancelled && sent < requested.get()) {
+                if (composition.hasCommitted()) {
+                    subscriber.onNext(rules.getVocabulary().getWord(
+                            composition.takeCommitted()));
+                    sent++;
+                } else if (composition.isFinished()) {
+                    this.end(null);
+                } else {
+                    composition.step();
+                }
+            }
+            requested.addAndGet(-sent);
+
+            if (!cancelled && composition.isFinished()
+                    && !composition.hasCommitted()) {
+                /* the end needs no demand */
+                this.end(null);
+            }
+            if (cancelled) {
+                /* hold on to nothing */
+                composition = null;
+            }
+        }
+
+        /**
+         * Stop, and tell my subscriber why, unless I have already stopped.
+         *
+         * @param error what went wrong, or null if the document is ended.
+         */
+        private void end(Throwable error) {
+            if (!cancelled) {
+                cancelled = true;
+                if (error == null) {
+                    subscriber.onComplete();
+                } else {
+                    subscriber.onError(error);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adapts a <code>Flow.Subscriber</code> to my subscriber, and my
+     * subscription to a <code>Flow.Subscription</code>, by reflection.
+     */
+    private static final class FlowSubscriber implements Subscriber {
+
+        /**
+         * The Flow subscriber.
+         */
+        private final Object target;
+        /**
+         * The interface Flow.Subscription.
+         */
+        private final Class<?> subscription;
+        /**
+         * The method Flow.Subscriber.onSubscribe.
+         */
+        private final Method onSubscribe;
+        /**
+         * The method Flow.Subscriber.onNext.
+         */
+        private final Method onNext;
+        /**
+         * The method Flow.Subscriber.onError.
+         */
+        private final Method onError;
+        /**
+         * The method Flow.Subscriber.onComplete.
+         */
+        private final Method onComplete;
+
+        /**
+         * @param target the Flow subscriber.
+         * @param subscriber the interface Flow.Subscriber.
+         * @param subscription the interface Flow.Subscription.
+         * @throws NoSuchMethodException if Flow is not as it should be.
+         */
+        FlowSubscriber(Object target, Class<?> subscriber,
+                Class<?> subscription) throws NoSuchMethodException {
+            this.target = target;
+            this.subscription = subscription;
+            this.onSubscribe = subscriber.getMethod("onSubscribe",
+                    subscription);
+            this.onNext = subscriber.getMethod("onNext", Object.class);
+            this.onError = subscriber.getMethod("onError", Throwable.class);
+            this.onComplete = subscriber.getMethod("onComplete");
+        }
+
+        @Override
+        public void onSubscribe(final Subscription link) {
+            final Object adapted = proxy(subscription, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method,
+                        Object[] args) {
+                    if ("request".equals(method.getName())) {
+                        link.request((Long) args[0]);
+                    } else {
+                        link.cancel();
+                    }
+                    return null;
+                }
+            });
+
+            this.call(onSubscribe, adapted);
+        }
+
+        @Override
+        public void onNext(String word) {
+            this.call(onNext, word);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            this.call(onError, error);
+        }
+
+        @Override
+        public void onComplete() {
+            this.call(onComplete);
+        }
+
+        /**
+         * Call this method of the Flow subscriber, passing on whatever it
+         * throws as itself.
+         *
+         * @param method the method.
+         * @param args its arguments.
+         */
+        private void call(Method method, Object... args) {
+            try {
+                method.invoke(target, args);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                } else if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                } else {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        }
+    }
+}
@@ -16,6 +16,8 @@ import java.io.StreamTokenizer;
  * A tokeniser which reads tokens in a manner which suits me. Although this
  * implementation is based on a StreamTokenizer, the point of separating this
  * out into its own class is that if I had more time I could reimplement.
+ * Which, in the end, I did: see {@link ByteTokeniser}, which the Digester now
+ * uses, and which treats characters in exactly the same way.
  *
  * @author simon
  *
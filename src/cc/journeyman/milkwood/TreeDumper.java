@@ -0,0 +1,276 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.Arrays;
+
+/**
+ * Writes out a rule tree, depth first, as it goes: nothing is built up in
+ * store but a stack as deep as the tree, so that a tree of any size may be
+ * inspected. The tree may be cut off below some depth, and at each node only
+ * the most frequently observed few successors shown.
+ * <p>
+ * There are two formats:</p>
+ * <dl>
+ * <dt>text</dt>
+ * <dd>the tree as <code>-debug</code> has always printed it, each word on a
+ * line of its own, indented by its depth; a word whose successors are not
+ * shown, because the tree is cut off there, is marked with an ellipsis;</dd>
+ * <dt>json</dt>
+ * <dd>JSON lines: one object to a line for each node, giving its number, the
+ * number of its parent, its depth, word, count, number of successors and
+ * reach; the reach is null if infinite, and the root has no parent.</dd>
+ * </dl>
+ *
+ * @author simon
+ *
+ */
+public class TreeDumper {
+
+    /**
+     * The formats in which I can write.
+     */
+    public enum Format {
+
+        TEXT, JSON
+    }
+    /**
+     * The limit of depth or of successors which is no limit.
+     */
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+    /**
+     * The format I write in.
+     */
+    private final Format format;
+    /**
+     * The depth below which no nodes are shown; the root is at depth zero.
+     */
+    private final int maxDepth;
+    /**
+     * The most successors shown of any one node.
+     */
+    private final int maxSuccessors;
+
+    /**
+     * @param format the format to write in.
+     * @param maxDepth the depth below which no nodes are shown; the root is
+     * at depth zero.
+     * @param maxSuccessors the most successors to show of any one node;
+     * those shown are those most frequently observed.
+     */
+    public TreeDumper(Format format, int maxDepth, int maxSuccessors) {
+        this.format = format;
+        this.maxDepth = maxDepth;
+        this.maxSuccessors = maxSuccessors;
+    }
+
+    /**
+     * Make a dumper to this specification: a format, <code>text</code> or
+     * <code>json</code>, optionally followed by a maximum depth and then by a
+     * maximum number of successors, separated by colons; for example
+     * <code>json:3:10</code>.
+     *
+     * @param spec the specification.
+     * @return a dumper to that specification.
+     * @throws IllegalArgumentException if it cannot be understood.
+     */
+    public static TreeDumper parse(String spec) {
+        final String[] parts = spec.split(":");
+
+        if (parts.length > 3) {
+            throw new IllegalArgumentException(String.format(
+                    "Can't understand dump specification '%s'", spec));
+        }
+
+        return new TreeDumper(Format.valueOf(parts[0].toUpperCase()),
+                parts.length > 1 ? Integer.parseInt(parts[1]) : UNLIMITED,
+                parts.length > 2 ? Integer.parseInt(parts[2]) : UNLIMITED);
+    }
+
+    /**
+     * Write these rules to this stream, which is flushed but not closed.
+     *
+     * @param rules the rules to write.
+     * @param out the stream to write to.
+     * @throws IOException if the stream cannot be written.
+     */
+    public void dump(FrozenRuleTree rules, OutputStream out)
+            throws IOException {
+        final BufferedWriter sink = new BufferedWriter(new OutputStreamWriter(
+                out, Vocabulary.UTF8));
+        final int depth = Math.min(maxDepth, rules.getTupleLength() + 1);
+        /* for each depth on the stack, the node there, the successors of it
+         * to be shown, how many there are and how many have been */
+        final int[] nodes = new int[depth + 1];
+        final int[][] shown = new int[depth + 1][];
+        final int[] counts = new int[depth + 1];
+        final int[] next = new int[depth + 1];
+        int top = 0;
+
+        for (int i = 0; i < shown.length; i++) {
+            shown[i] = new int[0];
+        }
+
+        nodes[top] = FrozenRuleTree.ROOT;
+        this.write(rules, FrozenRuleTree.ROOT, FrozenRuleTree.NOTFOUND, top,
+                sink);
+        if (top < depth) {
+            shown[top] = this.select(rules, nodes[top], shown[top]);
+            counts[top] = Math.min(rules.getSuccessorCount(nodes[top]),
+                    maxSuccessors);
+            next[top] = 0;
+        } else {
+            top = -1;
+        }
+
+        while (top >= 0) {
+            if (next[top] < counts[top]) {
+                final int node = shown[top][next[top]++];
+
+                this.write(rules, node, nodes[top], top + 1, sink);
+                if (top + 1 < depth && rules.hasSuccessors(node)) {
+                    top++;
+                    nodes[top] = node;
+                    shown[top] = this.select(rules, node, shown[top]);
+                    counts[top] = Math.min(rules.getSuccessorCount(node),
+                            maxSuccessors);
+                    next[top] = 0;
+                }
+            } else {
+                if (format == Format.TEXT
+                        && rules.hasSuccessors(nodes[top])) {
+                    sink.write(RuleTreeNode.NEWLINE);
+                }
+                top--;
+            }
+        }
+
+        sink.flush();
+    }
+
+    /**
+     * Choose which successors of this node to show: all of them if there are
+     * few enough, else those most frequently observed; either way, in the
+     * order of their numbers, which is that of their words.
+     *
+     * @param rules the rules.
+     * @param node the number of a node.
+     * @param buffer an array into which the successors may be put, if it is
+     * big enough.
+     * @return an array holding the numbers of the successors to be shown,
+     * first.
+     */
+    private int[] select(FrozenRuleTree rules, int node, int[] buffer) {
+        final int count = rules.getSuccessorCount(node);
+        final int n = Math.min(count, maxSuccessors);
+        final int[] result = buffer.length < n ? new int[n] : buffer;
+
+        if (n == count) {
+            for (int i = 0; i < n; i++) {
+                result[i] = (int) rules.getSuccessor(node, i);
+            }
+        } else {
+            /* insertion into a list of the n most frequent so far, most
+             * frequent first */
+            int held = 0;
+
+            for (int i = 0; i < count; i++) {
+                final int candidate = (int) rules.getSuccessor(node, i);
+                final int observed = rules.getCount(candidate);
+                int j = Math.min(held, n - 1);
+
+                if (held < n || observed > rules.getCount(result[j])) {
+                    while (j > 0 && observed > rules.getCount(result[j - 1])) {
+                        result[j] = result[j - 1];
+                        j--;
+                    }
+                    result[j] = candidate;
+                    held = Math.min(held + 1, n);
+                }
+            }
+            Arrays.sort(result, 0, n);
+        }
+
+        return result;
+    }
+
+    /**
+     * Write one node.
+     *
+     * @param rules the rules.
+     * @param node the number of the node.
+     * @param parent the number of its parent, or NOTFOUND if it is the root.
+     * @param depth its depth.
+     * @param sink where to write it.
+     * @throws IOException if it cannot be written.
+     */
+    private void write(FrozenRuleTree rules, int node, int parent, int depth,
+            BufferedWriter sink) throws IOException {
+        final String word = rules.getVocabulary().getWord(rules.getWord(node));
+
+        if (format == Format.TEXT) {
+            for (int i = 0; i < depth; i++) {
+                sink.write('\t');
+            }
+            sink.write(word);
+            if (rules.hasSuccessors(node)) {
+                sink.write(depth < maxDepth ? " ==>" : " ==> ...");
+            }
+        } else {
+            final int reach = rules.getReach(node);
+
+            sink.write("{\"node\":");
+            sink.write(Integer.toString(node));
+            if (parent != FrozenRuleTree.NOTFOUND) {
+                sink.write(",\"parent\":");
+                sink.write(Integer.toString(parent));
+            }
+            sink.write(",\"depth\":");
+            sink.write(Integer.toString(depth));
+            sink.write(",\"word\":");
+            quote(word, sink);
+            sink.write(",\"count\":");
+            sink.write(Integer.toString(rules.getCount(node)));
+            sink.write(",\"successors\":");
+            sink.write(Integer.toString(rules.getSuccessorCount(node)));
+            sink.write(",\"reach\":");
+            sink.write(reach == FrozenRuleTree.INFINITE ? "null" : Integer
+                    .toString(reach));
+            sink.write('}');
+        }
+        sink.write(RuleTreeNode.NEWLINE);
+    }
+
+    /**
+     * Write this string as a JSON string literal.
+     *
+     * @param string the string.
+     * @param sink where to write it.
+     * @throws IOException if it cannot be written.
+     */
+    private static void quote(String string, BufferedWriter sink)
+            throws IOException {
+        sink.write('"');
+        for (int i = 0; i < string.length(); i++) {
+            final char c = string.charAt(i);
+
+            if (c == '"' || c == '\\') {
+                sink.write('\\');
+                sink.write(c);
+            } else if (c < 0x20) {
+                sink.write(String.format("\\u%04x", (int) c));
+            } else {
+                sink.write(c);
+            }
+        }
+        sink.write('"');
+    }
+}
@@ -0,0 +1,475 @@
+/*
+ * Proprietary unpublished source code property of
+ * Simon Brooke <simon@journeyman.cc>.
+ *
+ * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
+ */
+package cc.journeyman.milkwood;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A symbol table which gives each distinct token a dense integer identifier,
+ * so that the rule tree, the window and the output sequence need hold only
+ * ints. Identifiers are allocated in order of first appearance, starting
+ * from zero, which is always the root magic token.
+ * <p>
+ * Tokens are hashed by their UTF-8 spelling, so that a token may be looked up
+ * either as a string or directly as a run of bytes, without making a string
+ * of it first.</p>
+ * <p>
+ * Nor are strings kept: the spellings of all the tokens I know are held one
+ * after another in a single buffer, and everything else in buffers of ints,
+ * so that however many tokens I know I am only a handful of objects, which
+ * the garbage collector need never look inside. The buffers may be on the
+ * heap, or, in a copy made by {@link #offHeap()}, outside it altogether.
+ * Strings are made when asked for, by {@link #getWord(int)}, which is not
+ * done in any inner loop.</p>
+ *
+ * @author simon
+ *
+ */
+public class Vocabulary {
+
+    /**
+     * The identifier of the root magic token, which is always interned first.
+     */
+    public static final int ROOT = 0;
+    /**
+     * The value returned by lookups for tokens I have never seen.
+     */
+    public static final int NOTFOUND = -1;
+    /**
+     * The encoding of token spellings.
+     */
+    public static final Charset UTF8 = Charset.forName("UTF-8");
+    /**
+     * The number of tokens I have room for when new.
+     */
+    private static final int INITIALSIZE = 1024;
+    /**
+     * The number of bytes of spelling I have room for, for each token, when
+     * new.
+     */
+    private static final int INITIALSPELLING = 8;
+    /**
+     * The spellings of the tokens I know, in UTF-8, one after another in
+     * order of identifier.
+     */
+    private ByteBuffer text;
+    /**
+     * The index in my text of the spelling of each token I know, with one
+     * entry more, at which the spelling of the next will go.
+     */
+    private IntBuffer starts;
+    /**
+     * The hashes of the tokens I know, indexed by identifier.
+     */
+    private IntBuffer hashes;
+    /**
+     * Open addressed hash table of identifiers; empty slots hold NOTFOUND.
+     */
+    private IntBuffer table;
+    /**
+     * The number of tokens I know.
+     */
+    private int size = 0;
+    /**
+     * What the tokens I know need by way of orthography when written, once
+     * some writer has asked; null until then. Volatile, since it is made by
+     * whichever writer first asks and read by writers on other threads.
+     */
+    private volatile Orthography orthography = null;
+
+    /**
+     * Create a new vocabulary knowing only the root magic token.
+     */
+    public Vocabulary() {
+        text = allocate(INITIALSIZE * INITIALSPELLING, false);
+        starts = allocateInts(INITIALSIZE + 1, false);
+        hashes = allocateInts(INITIALSIZE, false);
+        table = emptyTable(INITIALSIZE * 2, false);
+        this.intern(RuleTreeNode.ROOTMAGICTOKEN);
+    }
+
+    /**
+     * Create a new vocabulary knowing exactly the tokens this one knows now,
+     * by the same identifiers, but independent of it thereafter.
+     *
+     * @param prototype the vocabulary to copy.
+     */
+    public Vocabulary(Vocabulary prototype) {
+        this(prototype, false);
+    }
+
+    /**
+     * Create a new vocabulary knowing exactly the tokens this one knows now,
+     * by the same identifiers, but independent of it thereafter, and held
+     * either on the heap or off it.
+     *
+     * @param prototype the vocabulary to copy.
+     * @param direct whether to hold it off the heap.
+     */
+    private Vocabulary(Vocabulary prototype, boolean direct) {
+        this.text = copy(prototype.text, prototype.text.capacity(), direct);
+        this.starts = copy(prototype.starts, prototype.starts.capacity(),
+                direct);
+        this.hashes = copy(prototype.hashes, prototype.hashes.capacity(),
+                direct);
+        this.table = copy(prototype.table, prototype.table.capacity(),
+                direct);
+        this.size = prototype.size;
+        this.orthography = prototype.orthography;
+    }
+
+    /**
+     * @return a new vocabulary knowing exactly the tokens I know now, by the
+     * same identifiers, but independent of me thereafter, and held outside
+     * the heap, in direct buffers; as is anything interned into it later.
+     */
+    public Vocabulary offHeap() {
+        return new Vocabulary(this, true);
+    }
+
+    /**
+     * @return true if I am held outside the heap.
+     */
+    public boolean isOffHeap() {
+        return text.isDirect();
+    }
+
+    /**
+     * Return the identifier for this token, allocating a new one if I have
+     * not seen it before.
+     *
+     * @param token the token to intern.
+     * @return its identifier.
+     */
+    public int intern(String token) {
+        final byte[] spelling = token.getBytes(UTF8);
+
+        return this.intern(spelling, 0, spelling.length);
+    }
+
+    /**
+     * Return the identifier for the token whose UTF-8 spelling is this run of
+     * bytes, allocating a new one if I have not seen it before.
+     *
+     * @param bytes an array holding the spelling of the token.
+     * @param offset the index in the array at which the spelling starts.
+     * @param length the length of the spelling in bytes.
+     * @return its identifier.
+     */
+    public int intern(byte[] bytes, int offset, int length) {
+        final int hash = hash(bytes, offset, length);
+        final int slot = this.find(hash, bytes, offset, length);
+        int result = table.get(slot);
+
+        if (result == NOTFOUND) {
+            result = this.add(slot, hash, bytes, offset, length);
+        }
+
+        return result;
+    }
+
+    /**
+     * @param token a token to seek.
+     * @return the identifier of this token, or NOTFOUND if I don't know it.
+     */
+    public int getId(String token) {
+        final byte[] spelling = token.getBytes(UTF8);
+
+        return table.get(this.find(hash(spelling, 0, spelling.length),
+                spelling, 0, spelling.length));
+    }
+
+    /**
+     * @param id an identifier I have allocated.
+     * @return the token it identifies, as a new string.
+     */
+    public String getWord(int id) {
+        return new String(this.getSpelling(id), UTF8);
+    }
+
+    /**
+     * @param id an identifier I have allocated.
+     * @return a new array holding the UTF-8 spelling of the token it
+     * identifies.
+     */
+    byte[] getSpelling(int id) {
+        final byte[] result = new byte[this.getSpellingLength(id)];
+
+        this.copySpelling(id, result, 0);
+        return result;
+    }
+
+    /**
+     * @param id an identifier I have allocated.
+     * @return the length in bytes of the UTF-8 spelling of the token it
+     * identifies.
+     */
+    int getSpellingLength(int id) {
+        return starts.get(id + 1) - starts.get(id);
+    }
+
+    /**
+     * Copy the UTF-8 spelling of a token into this array, at this index,
+     * which must leave room for it.
+     *
+     * @param id an identifier I have allocated.
+     * @param into the array.
+     * @param at the index in the array at which the spelling is to start.
+     */
+    void copySpelling(int id, byte[] into, int at) {
+        final int start = starts.get(id);
+        final int length = starts.get(id + 1) - start;
+
+        if (text.hasArray()) {
+            System.arraycopy(text.array(), text.arrayOffset() + start, into,
+                    at, length);
+        } else {
+            /* a view of my own, since the position of a buffer is no more
+             * thread safe than anything else about it */
+            final ByteBuffer view = text.duplicate();
+
+            view.position(start);
+            view.get(into, at, length);
+        }
+    }
+
+    /**
+     * @return what the tokens I know need by way of orthography when written,
+     * worked out the first time it is asked for, and again, for the tokens
+     * learned since, only should I have learned any. Should two threads ask
+     * at once each may work it out, but each gets the same answer.
+     */
+    Orthography getOrthography() {
+        Orthography result = orthography;
+
+        if (result == null || result.size() < size) {
+            result = new Orthography(this, result);
+            orthography = result;
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the number of distinct tokens I know, including the root magic
+     * token.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of bytes of store I occupy, near enough: that of my
+     * buffers, whose headers are as nothing beside them.
+     */
+    long getStoreSize() {
+        return text.capacity() + 4L * (starts.capacity() + hashes.capacity()
+                + table.capacity());
+    }
+
+    /**
+     * Allocate the next identifier to the token with this spelling, and put
+     * it in this slot.
+     *
+     * @param slot an empty slot in my table.
+     * @param hash the hash of the token.
+     * @param bytes an array holding the spelling of the token.
+     * @param offset the index in the array at which the spelling starts.
+     * @param length the length of the spelling in bytes.
+     * @return the identifier allocated.
+     */
+    private int add(int slot, int hash, byte[] bytes, int offset,
+            int length) {
+        final int result = size++;
+        final int start = starts.get(result);
+        final boolean direct = this.isOffHeap();
+
+        if (result == hashes.capacity()) {
+            starts = copy(starts, result * 2 + 1, direct);
+            hashes = copy(hashes, result * 2, direct);
+        }
+        if (start + length > text.capacity()) {
+            text = copy(text, Math.max(text.capacity() * 2, start + length),
+                    direct);
+        }
+        for (int i = 0; i < length; i++) {
+            text.put(start + i, bytes[offset + i]);
+        }
+        starts.put(result + 1, start + length);
+        hashes.put(result, hash);
+        table.put(slot, result);
+
+        if (size * 2 > table.capacity()) {
+            this.rehash();
+        }
+
+        return result;
+    }
+
+    /**
+     * Find the slot in my table which holds, or would hold, the token with
+     * this spelling.
+     *
+     * @param hash the hash of the token.
+     * @param bytes an array holding the spelling of the token.
+     * @param offset the index in the array at which the spelling starts.
+     * @param length the length of the spelling in bytes.
+     * @return the index of that slot.
+     */
+    private int find(int hash, byte[] bytes, int offset, int length) {
+        final int mask = table.capacity() - 1;
+        int slot = mix(hash) & mask;
+
+        while (table.get(slot) != NOTFOUND
+                && !(hashes.get(table.get(slot)) == hash && this.spelt(table
+                        .get(slot), bytes, offset, length))) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    /**
+     * Double the size of my table and reinsert everything I know.
+     */
+    private void rehash() {
+        table = emptyTable(table.capacity() * 2, this.isOffHeap());
+
+        final int mask = table.capacity() - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = mix(hashes.get(id)) & mask;
+            while (table.get(slot) != NOTFOUND) {
+                slot = (slot + 1) & mask;
+            }
+            table.put(slot, id);
+        }
+    }
+
+    /**
+     * @param id an identifier I have allocated.
+     * @param bytes an array.
+     * @param offset an index into the array.
+     * @param length a number of bytes.
+     * @return true if the spelling of the token it identifies is the same as
+     * that run of bytes in the array.
+     */
+    private boolean spelt(int id, byte[] bytes, int offset, int length) {
+        final int start = starts.get(id);
+        boolean result = starts.get(id + 1) - start == length;
+
+        for (int i = 0; result && i < length; i++) {
+            result = text.get(start + i) == bytes[offset + i];
+        }
+
+        return result;
+    }
+
+    /**
+     * @param capacity a number of bytes.
+     * @param direct whether they are to be outside the heap.
+     * @return a new buffer of that many bytes.
+     */
+    private static ByteBuffer allocate(int capacity, boolean direct) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer
+                .allocate(capacity);
+    }
+
+    /**
+     * @param capacity a number of ints.
+     * @param direct whether they are to be outside the heap.
+     * @return a new buffer of that many ints.
+     */
+    private static IntBuffer allocateInts(int capacity, boolean direct) {
+        return direct ? ByteBuffer.allocateDirect(capacity * 4)
+                .order(ByteOrder.nativeOrder()).asIntBuffer() : IntBuffer
+                .allocate(capacity);
+    }
+
+    /**
+     * @param capacity a number of slots; a power of two.
+     * @param direct whether they are to be outside the heap.
+     * @return a new hash table of that many slots, all empty.
+     */
+    private static IntBuffer emptyTable(int capacity, boolean direct) {
+        final IntBuffer result = allocateInts(capacity, direct);
+
+        for (int slot = 0; slot < capacity; slot++) {
+            result.put(slot, NOTFOUND);
+        }
+
+        return result;
+    }
+
+    /**
+     * @param from a buffer.
+     * @param capacity a number of bytes, at least as many as it holds.
+     * @param direct whether the copy is to be outside the heap.
+     * @return a new buffer of that many bytes, starting with a copy of it.
+     */
+    private static ByteBuffer copy(ByteBuffer from, int capacity,
+            boolean direct) {
+        final ByteBuffer source = from.duplicate();
+        final ByteBuffer result = allocate(capacity, direct);
+
+        source.clear();
+        result.put(source);
+        result.clear();
+
+        return result;
+    }
+
+    /**
+     * @param from a buffer.
+     * @param capacity a number of ints, at least as many as it holds.
+     * @param direct whether the copy is to be outside the heap.
+     * @return a new buffer of that many ints, starting with a copy of it.
+     */
+    private static IntBuffer copy(IntBuffer from, int capacity,
+            boolean direct) {
+        final IntBuffer source = from.duplicate();
+        final IntBuffer result = allocateInts(capacity, direct);
+
+        source.clear();
+        result.put(source);
+        result.clear();
+
+        return result;
+    }
+
+    /**
+     * Hash a run of bytes, FNV-1a fashion.
+     *
+     * @param bytes an array.
+     * @param offset an index into the array.
+     * @param length a number of bytes.
+     * @return the hash of that run of bytes in the array.
+     */
+    static int hash(byte[] bytes, int offset, int length) {
+        int result = 0x811C9DC5;
+
+        for (int i = offset; i < offset + length; i++) {
+            result = (result ^ (bytes[i] & 0xFF)) * 0x01000193;
+        }
+
+        return result;
+    }
+
+    /**
+     * Spread the bits of a hash code, since hash codes of short words
+     * cluster badly in a power-of-two table.
+     *
+     * @param hash a hash code.
+     * @return a better distributed hash code.
+     */
+    static int mix(int hash) {
+        final int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
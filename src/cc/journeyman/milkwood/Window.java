@@ -1,56 +1,118 @@
 package cc.journeyman.milkwood;
 
-import java.util.Stack;
-
 /**
- * Sliding window which rules may match.
+ * Sliding window which rules may match: the last few word identifiers
+ * output, oldest first. The window is a ring buffer of fixed capacity, so
+ * that sliding it along by a word costs an assignment and nothing more, and
+ * it may be matched by index any number of times without being consumed or
+ * copied.
  *
  * @author simon
  *
  */
-public class Window extends Stack<String> {
+public class Window {
 
-    private static final long serialVersionUID = 1L;
+    /**
+     * The word identifiers in me, as a ring.
+     */
+    private final int[] words;
+    /**
+     * The index in words of the oldest word in me.
+     */
+    private int start = 0;
+    /**
+     * The number of words in me.
+     */
+    private int size = 0;
 
     /**
-     * Create a new, empty, wordstack.
+     * Create a new, empty, window.
+     *
+     * @param capacity the most words I may hold; once I hold that many,
+     * shifting a new word in shifts the oldest out.
      */
-    public Window() {
-        super();
+    public Window(int capacity) {
+        this.words = new int[Math.max(capacity, 1)];
     }
 
     /**
-     * create a new window from this window, having this new word as its
-     * terminal and ommitting the current first word. That is, the new window
-     * should be as long as the old, with each word shuffled up one place.
+     * Slide me along by one word: this word becomes my newest and, if I am
+     * already full, my oldest is forgotten.
      *
-     * @param prototype the window to copy from.
-     * @param terminal the new terminal word.
+     * @param word the identifier of the new word.
      */
-    public Window(Window prototype, String terminal) {
-        this();
+    public void shift(int word) {
+        if (size == words.length) {
+            words[start] = word;
+            start = start + 1 == words.length ? 0 : start + 1;
+        } else {
+            final int end = start + size;
 
-        Window copy = prototype.duplicate();
-        copy.pop();
-        this.populate(copy, terminal);
+            words[end < words.length ? end : end - words.length] = word;
+            size++;
+        }
     }
 
-    private void populate(Window copy, String terminal) {
-        if (copy.isEmpty()) {
-            this.push(terminal);
-        } else {
-            String token = copy.pop();
-            this.populate(copy, terminal);
-            this.push(token);
-        }
+    /**
+     * @param index an index from zero, my oldest word, to size() - 1, my
+     * newest.
+     * @return the identifier of the word at that index.
+     */
+    public int get(int index) {
+        final int i = start + index;
+
+        return words[i < words.length ? i : i - words.length];
     }
 
     /**
-     * A wrapper round clone which hides all the ugly casting.
-     *
-     * @return a duplicate copy of myself.
+     * Forget all my words.
+     */
+    public void clear() {
+        start = 0;
+        size = 0;
+    }
+
+    /**
+     * @return true if I hold no words.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the number of words I hold.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return a copy of myself, independent of me thereafter.
      */
     public Window duplicate() {
-        return (Window) this.clone();
+        final Window result = new Window(words.length);
+
+        System.arraycopy(this.words, 0, result.words, 0, words.length);
+        result.start = this.start;
+        result.size = this.size;
+
+        return result;
+    }
+
+    /**
+     * @return my word identifiers, oldest first.
+     */
+    @Override
+    public String toString() {
+        final StringBuilder result = new StringBuilder("[");
+
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                result.append(", ");
+            }
+            result.append(this.get(i));
+        }
+
+        return result.append(']').toString();
     }
 }
@@ -1,69 +1,151 @@
 /*
- * Proprietary unpublished source code property of 
+ * Proprietary unpublished source code property of
  * Simon Brooke <simon@journeyman.cc>.
- * 
+ *
  * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
  */
 package cc.journeyman.milkwood;
 
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.Arrays;
 
 /**
- * An ordered sequence of words. Of course it implements Queue since it is a
- * LinkedList and LinkedList implements Queue, but I want to make it explicitly
- * clear that this is a queue and can be used as such. Different from WordStack
- * which is a Stack.
+ * An ordered sequence of word identifiers, held in a primitive array which
+ * may be cheaply added to at either end. Different from Window, which is a
+ * Stack.
  *
- * @see WordStack
+ * @see Window
  *
  * @author Simon Brooke <simon@journeyman.cc>
  */
-public class WordSequence extends LinkedList<String> implements Queue<String> {
+public class WordSequence {
+
+    /**
+     * The word identifiers in me; those in use run from head up to (but
+     * excluding) tail.
+     */
+    private int[] words = new int[16];
+    /**
+     * The index in words of my first word.
+     */
+    private int head = 8;
+    /**
+     * The index in words after my last word.
+     */
+    private int tail = 8;
+
+    /**
+     * @param word the identifier of a word to add at my end.
+     */
+    public void add(int word) {
+        if (tail == words.length) {
+            this.grow();
+        }
+        words[tail++] = word;
+    }
+
+    /**
+     * @param word the identifier of a word to add at my beginning.
+     */
+    public void push(int word) {
+        if (head == 0) {
+            this.grow();
+        }
+        words[--head] = word;
+    }
+
+    /**
+     * @param other a sequence whose words should be added at my end.
+     */
+    public void addAll(WordSequence other) {
+        for (int i = 0; i < other.size(); i++) {
+            this.add(other.get(i));
+        }
+    }
+
+    /**
+     * @param index an index into me.
+     * @return the identifier of the word at that index.
+     */
+    public int get(int index) {
+        return words[head + index];
+    }
 
-    private static final long serialVersionUID = 1L;
+    /**
+     * @return the number of words in me.
+     */
+    public int size() {
+        return tail - head;
+    }
+
+    /**
+     * @return true if I hold no words.
+     */
+    public boolean isEmpty() {
+        return tail == head;
+    }
+
+    /**
+     * @param word the identifier of a word.
+     * @return true if that word appears in me.
+     */
+    public boolean contains(int word) {
+        return this.lastIndexOf(word) >= 0;
+    }
 
     /**
      *
-     * @param tokens a sequence of tokens
-     * @param marker a marker to terminate after the last occurrance of.
-     * @return a copy of tokens, truncated at the last occurrance of the marker.
+     * @param marker the identifier of a marker to terminate after the last
+     * occurrance of.
+     * @return a copy of me, truncated at the last occurrance of the marker.
      */
-    public WordSequence truncateAtLastInstance(String marker) {
+    public WordSequence truncateAtLastInstance(int marker) {
         final WordSequence result = new WordSequence();
+        final int last = this.lastIndexOf(marker);
 
-        for (String token : this) {
-            result.add(token);
-            if (token.endsWith(marker) && !this.contains(marker)) {
-                /*
-                 * If the token we're looking at ends with the marker, and the
-                 * remainder of the tokens does not include a token ending with
-                 * the marker, we're done. Otherwise, we continue. OK?
-                 */
-                break;
-            }
+        for (int i = 0; i <= last; i++) {
+            result.add(this.get(i));
         }
 
         return result;
     }
 
     /**
-     * Specialisation: Working around the bug that the tokeniser treats PERIOD
-     * as a word character.
+     * @param word the identifier of a word.
+     * @return the index of the last occurrance of that word in me, or -1 if
+     * it does not occur.
      */
-    @Override
-    public boolean contains(Object target) {
-        boolean result = false;
-        if (target != null) {
-            String marker = target.toString();
-
-            for (String token : this) {
-                if (token.endsWith(marker)) {
-                    result = true;
-                    break;
-                }
+    private int lastIndexOf(int word) {
+        int result = -1;
+
+        for (int i = tail - 1; i >= head; i--) {
+            if (words[i] == word) {
+                result = i - head;
+                break;
             }
         }
+
         return result;
     }
+
+    /**
+     * Double my capacity, leaving equal free space at either end.
+     */
+    private void grow() {
+        final int size = this.size();
+        final int[] grown = new int[words.length * 2];
+        final int newHead = (grown.length - size) / 2;
+
+        System.arraycopy(words, head, grown, newHead, size);
+        words = grown;
+        head = newHead;
+        tail = newHead + size;
+    }
+
+    /**
+     * @return my word identifiers, in order.
+     */
+    @Override
+    public String toString() {
+        return Arrays.toString(Arrays.copyOfRange(words, head, tail));
+    }
 }
@@ -1,25 +1,38 @@
 /*
- * Proprietary unpublished source code property of 
+ * Proprietary unpublished source code property of
  * Simon Brooke <simon@journeyman.cc>.
- * 
+ *
  * Copyright (c) 2013 Simon Brooke <simon@journeyman.cc>
  */
 package cc.journeyman.milkwood;
 
-import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.util.Locale;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.Random;
 
 /**
  * A special purpose writer to write sequences of tokens, chopping them up into
  * paragraphs on the fly..
+ * <p>
+ * Output is always UTF-8, which is what the tokens' spellings are held in
+ * already; so a token is written by copying its spelling straight into a
+ * buffer of bytes, with no encoding, and the buffer is written to a channel
+ * only when it is full. What each token needs by way of orthography (whether
+ * it wants a space before it, whether it ends a sentence, and how it is
+ * spelt capitalised) is worked out once for the whole vocabulary, as an
+ * {@link Orthography} shared by every writer of it, so that writing a token
+ * allocates nothing, and a writer made for a single request costs nothing
+ * in proportion to the vocabulary.</p>
  *
  * @author Simon Brooke <simon@journeyman.cc>
  */
-class Writer extends BufferedWriter {
+class Writer implements Closeable, Flushable {
 
     /**
      * Line separator on this platform.
@@ -30,21 +43,139 @@ class Writer extends BufferedWriter {
      */
     public static final int AVSENTENCESPERPARA = 5;
     /**
-     * A random number generator.
+     * The size of the buffer through which I write.
+     */
+    public static final int BUFFERSIZE = 64 * 1024;
+    /**
+     * Line separator on this platform, encoded.
+     */
+    private static final byte[] NEWLINEBYTES = NEWLINE
+            .getBytes(Vocabulary.UTF8);
+    /**
+     * The random number generator from which I decide where paragraphs end.
+     */
+    private final Random random;
+    /**
+     * The vocabulary from which the identifiers of the tokens I write were
+     * drawn.
      */
-    private static Random RANDOM = new Random();
+    private final Vocabulary vocabulary;
     /**
      * Whether or not I am in debugging mode.
      */
     @SuppressWarnings("unused")
     private final boolean debug;
+    /**
+     * The channel I write to.
+     */
+    private final WritableByteChannel channel;
+    /**
+     * The stream my channel writes to, if I was given one, which must be
+     * flushed when I am; else null.
+     */
+    private final OutputStream stream;
+    /**
+     * Whether to flush each sentence as soon as it is ended, rather than
+     * waiting for my buffer to fill.
+     */
+    private final boolean eager;
+    /**
+     * The bytes written but not yet sent to my channel.
+     */
+    private final byte[] buffer = new byte[BUFFERSIZE];
+    /**
+     * The number of bytes in my buffer.
+     */
+    private int filled = 0;
+    /**
+     * What the tokens of my vocabulary need by way of orthography, shared
+     * with every other writer of it; null until I first write a token.
+     */
+    private Orthography orthography = null;
+    /**
+     * Whether the next token I write should be capitalised.
+     */
+    private boolean capitaliseNext = true;
+    /**
+     * When I was opened, by System.nanoTime().
+     */
+    private final long opened = System.nanoTime();
 
     /**
      * @param out the output stream to which I shall write.
+     * @param vocabulary the vocabulary from which the identifiers of the
+     * tokens I write were drawn.
      * @param debug Whether or not I am in debugging mode.
      */
-    public Writer(OutputStream out, final boolean debug) {
-        super(new OutputStreamWriter(out));
+    public Writer(OutputStream out, Vocabulary vocabulary,
+            final boolean debug) {
+        this(out, vocabulary, new Random(), debug);
+    }
+
+    /**
+     * @param out the output stream to which I shall write.
+     * @param vocabulary the vocabulary from which the identifiers of the
+     * tokens I write were drawn.
+     * @param random the random number generator from which to decide where
+     * paragraphs end.
+     * @param debug Whether or not I am in debugging mode.
+     */
+    public Writer(OutputStream out, Vocabulary vocabulary, Random random,
+            final boolean debug) {
+        this(out, vocabulary, random, false, debug);
+    }
+
+    /**
+     * @param out the output stream to which I shall write; if it is a file,
+     * I write to its channel directly.
+     * @param vocabulary the vocabulary from which the identifiers of the
+     * tokens I write were drawn.
+     * @param random the random number generator from which to decide where
+     * paragraphs end.
+     * @param eager whether to flush each sentence as soon as it is ended, for
+     * a reader who is waiting for it, rather than when my buffer fills.
+     * @param debug Whether or not I am in debugging mode.
+     */
+    public Writer(OutputStream out, Vocabulary vocabulary, Random random,
+            boolean eager, final boolean debug) {
+        this(out instanceof FileOutputStream ? ((FileOutputStream) out)
+                .getChannel() : Channels.newChannel(out), out, vocabulary,
+                random, eager, debug);
+    }
+
+    /**
+     * @param channel the channel to which I shall write.
+     * @param vocabulary the vocabulary from which the identifiers of the
+     * tokens I write were drawn.
+     * @param random the random number generator from which to decide where
+     * paragraphs end.
+     * @param eager whether to flush each sentence as soon as it is ended, for
+     * a reader who is waiting for it, rather than when my buffer fills.
+     * @param debug Whether or not I am in debugging mode.
+     */
+    public Writer(WritableByteChannel channel, Vocabulary vocabulary,
+            Random random, boolean eager, final boolean debug) {
+        this(channel, null, vocabulary, random, eager, debug);
+    }
+
+    /**
+     * @param channel the channel to which I shall write.
+     * @param stream the stream my channel writes to, or null.
+     * @param vocabulary the vocabulary from which the identifiers of the
+     * tokens I write were drawn.
+     * @param random the random number generator from which to decide where
+     * paragraphs end.
+     * @param eager whether to flush each sentence as soon as it is ended.
+     * @param debug Whether or not I am in debugging mode.
+     */
+    private Writer(WritableByteChannel channel, OutputStream stream,
+            Vocabulary vocabulary, Random random, boolean eager,
+            final boolean debug) {
+        this.channel = channel;
+        this.stream = stream;
+        this.vocabulary = vocabulary;
+        this.random = random;
+        this.eager = eager;
         this.debug = debug;
     }
 
@@ -52,122 +183,186 @@ class Writer extends BufferedWriter {
      * Write this sequence of tokens on this stream, sorting out minor issues of
      * orthography.
      *
-     * @param tokens the tokens.
+     * @param tokens the identifiers of the tokens.
      * @throws IOException if it is impossible to write (e.g. file system full).
      */
     public void writeSequence(WordSequence tokens) throws IOException {
-        boolean capitaliseNext = true;
-
-        for (String token : tokens) {
-            capitaliseNext = writeToken(capitaliseNext, token);
+        for (int i = 0; i < tokens.size(); i++) {
+            this.writeToken(tokens.get(i));
         }
-        this.write(NEWLINE);
+        this.endSequence();
     }
 
     /**
-     * Deal with end of paragraph, capital after full stop, and other minor
-     * orthographic conventions.
+     * Write this one token, sorting out minor issues of orthography, as part
+     * of a sequence which is being written piecemeal: deal with end of
+     * paragraph, capital after full stop, and other minor orthographic
+     * conventions.
      *
-     * @param capitalise whether or not the token should be capitalised
-     * @param token the token to write;
-     * @returnvtrue if the next token to be written should be capitalised.
-     * @throws IOException
+     * @param token the identifier of the token.
+     * @throws IOException if it is impossible to write (e.g. file system full).
      */
-    private boolean writeToken(boolean capitalise, String token)
-            throws IOException {
-        if (this.spaceBefore(token)) {
-            this.write(" ");
+    public void writeToken(int token) throws IOException {
+        final Orthography known = this.getOrthography(token);
+        final byte needs = known.getFlags(token);
+
+        if ((needs & Orthography.SPACEBEFORE) != 0) {
+            if (filled == buffer.length) {
+                this.drain();
+            }
+            buffer[filled++] = ' ';
         }
-        if (capitalise) {
-            this.write(token.substring(0, 1).toUpperCase(Locale.getDefault()));
-            this.write(token.substring(1));
+        if (capitaliseNext) {
+            this.put(known.getCapitals(), known.getCapitalStart(token),
+                    known.getCapitalLength(token));
         } else {
-            this.write(token);
+            this.spell(token);
+        }
+
+        capitaliseNext = (needs & Orthography.ENDSSENTENCE) != 0;
+        if (capitaliseNext) {
+            this.maybeParagraph();
+            if (eager) {
+                this.flush();
+            }
         }
+    }
 
-        this.maybeParagraph(token);
+    /**
+     * Finish off a sequence which has been written piecemeal, so that the
+     * next token written will start a new one.
+     *
+     * @throws IOException if it is impossible to write (e.g. file system full).
+     */
+    public void endSequence() throws IOException {
+        this.put(NEWLINEBYTES, 0, NEWLINEBYTES.length);
+        capitaliseNext = true;
+    }
 
-        return (endOfSentence(token));
+    /**
+     * Send everything written so far on to my channel, and on from it.
+     *
+     * @throws IOException if it is impossible to write (e.g. file system full).
+     */
+    @Override
+    public void flush() throws IOException {
+        this.drain();
+        if (stream != null) {
+            stream.flush();
+        }
     }
 
     /**
-     * Return false if token is punctuation, else true. Wouldn't it be nice if
-     * Java provided Character.isPunctuation(char)? However, since it doesn't, I
-     * can give this slightly special semantics: return true only if this is
-     * punctuation which would not normally be preceded with a space.
+     * Flush, and close my channel.
      *
-     * @param ch a character.
-     * @return true if the should be preceded by a space, else false.
-     */
-    private boolean spaceBefore(String token) {
-        final boolean result;
-
-        switch (token.length()) {
-            case 0:
-                result = false;
-                break;
-            case 1:
-                switch (token.charAt(0)) {
-                    case '.':
-                    case ',':
-                    case ':':
-                    case ';':
-                    case '!':
-                    case '?':
-                    case ')':
-                    case ']':
-                    case 's':
-                    /*
-                     * an 's' on its own is probably evidence of a possessive with
-                     * the apostrophe lost
-                     */
-                    case 't':
-                        /*
-                         * similar; probably 'doesn't' or 'shouldn't' or other cases of
-                         * 'not' with an elided 'o'.
-                         */
-                        result = false;
-                        break;
-                    default:
-                        result = true;
-                        break;
-                }
-                break;
-            default:
-                result = true;
+     * @throws IOException if it is impossible to write (e.g. file system full).
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            this.flush();
+        } finally {
+            channel.close();
+            Metrics.GLOBAL.closed(System.nanoTime() - opened);
+        }
+    }
+
+    /**
+     * @param token the identifier of a token.
+     * @return what the tokens of my vocabulary need by way of orthography,
+     * including that one: fetched from the vocabulary the first time it is
+     * needed, and again only should the vocabulary have learned tokens since.
+     */
+    private Orthography getOrthography(int token) {
+        if (orthography == null || token >= orthography.size()) {
+            orthography = vocabulary.getOrthography();
         }
 
-        return result;
+        return orthography;
     }
 
     /**
-     * If this token is an end-of-sentence token, then, on one chance in some,
-     * have the writer write two new lines.
+     * At the end of a sentence, on one chance in some, write two new lines.
      *
-     * @param token a token
      * @throws IOException if Mr this has run out of ink
      */
-    private void maybeParagraph(String token) throws IOException {
-        if (this.endOfSentence(token)
-                && RANDOM.nextInt(AVSENTENCESPERPARA) == 0) {
-            this.write(NEWLINE);
-            this.write(NEWLINE);
+    private void maybeParagraph() throws IOException {
+        if (random.nextInt(AVSENTENCESPERPARA) == 0) {
+            this.put(NEWLINEBYTES, 0, NEWLINEBYTES.length);
+            this.put(NEWLINEBYTES, 0, NEWLINEBYTES.length);
         }
     }
 
     /**
-     * Does this token mark the end of a sentence? NOTE: The tokeniser is
-     * treating PERIOD ('.') as a word character, even though it has not been
-     * told to. Token.endsWith( PERIOD) is a hack to get round this problem.
-     * TODO: investigate and fix.
+     * Put this run of bytes into my buffer, first sending on what is in it
+     * should there not be room; runs too long for my buffer go straight to my
+     * channel.
      *
-     * @param token a token.
-     * @return True if in conventional orthography this token should mark the
-     * end of a sentence, else false.
-     */
-    private boolean endOfSentence(String token) {
-        return token.endsWith(Milkwood.PERIOD)
-                || token.equals("?")
-                || token.endsWith("!");
+     * @param bytes an array holding the bytes.
+     * @param offset the index in the array at which they start.
+     * @param length the number of them.
+     * @throws IOException if it is impossible to write (e.g. file system full).
+     */
+    private void put(byte[] bytes, int offset, int length)
+            throws IOException {
+        if (buffer.length - filled < length) {
+            this.drain();
+        }
+        if (length > buffer.length) {
+            write(channel, bytes, offset, length);
+        } else {
+            System.arraycopy(bytes, offset, buffer, filled, length);
+            filled += length;
+        }
+    }
+
+    /**
+     * Put the spelling of this token in my buffer, copied straight from the
+     * vocabulary, draining the buffer first if there is not room for it.
+     *
+     * @param token the identifier of the token.
+     * @throws IOException if it is impossible to write (e.g. file system full).
+     */
+    private void spell(int token) throws IOException {
+        final int length = vocabulary.getSpellingLength(token);
+
+        if (buffer.length - filled < length) {
+            this.drain();
+        }
+        if (length > buffer.length) {
+            write(channel, vocabulary.getSpelling(token), 0, length);
+        } else {
+            vocabulary.copySpelling(token, buffer, filled);
+            filled += length;
+        }
+    }
+
+    /**
+     * Write everything in my buffer to my channel, and clear it.
+     *
+     * @throws IOException if it is impossible to write (e.g. file system full).
+     */
+    private void drain() throws IOException {
+        write(channel, buffer, 0, filled);
+        filled = 0;
+    }
+
+    /**
+     * Write these bytes to this channel.
+     *
+     * @param channel the channel.
+     * @param bytes an array of bytes.
+     * @param offset the index in the array of the first byte to write.
+     * @param length the number of bytes to write.
+     * @throws IOException if it is impossible to write (e.g. file system full).
+     */
+    private static void write(WritableByteChannel channel, byte[] bytes,
+            int offset, int length) throws IOException {
+        final ByteBuffer wrapped = ByteBuffer.wrap(bytes, offset, length);
+
+        while (wrapped.hasRemaining()) {
+            channel.write(wrapped);
+        }
+        Metrics.GLOBAL.wrote(length);
     }
 }